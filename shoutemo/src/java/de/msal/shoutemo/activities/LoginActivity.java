@@ -183,7 +183,7 @@ public class LoginActivity extends AppCompatActivity {
         protected Boolean doInBackground(Void... params) {
             Log.v(TAG, "Started authenticating.");
             try {
-                return Connection.isCredentialsCorrect(mEmail, mPassword);
+                return Connection.getDefault().isCredentialsCorrect(mEmail, mPassword);
             } catch (IOException e) {
                 return false;
             }
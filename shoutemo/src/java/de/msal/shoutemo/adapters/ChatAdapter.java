@@ -37,6 +37,7 @@ import android.widget.TextView;
 import java.util.List;
 
 import de.msal.shoutemo.R;
+import de.msal.shoutemo.connector.PipelineStats;
 import de.msal.shoutemo.connector.model.Message;
 import de.msal.shoutemo.connector.model.Post;
 import de.msal.shoutemo.helpers.GlideImageGetter;
@@ -77,7 +78,7 @@ public class ChatAdapter extends RecyclerView.Adapter<ChatAdapter.ViewHolder> {
 
             @Override
             public boolean areItemsTheSame(Post item1, Post item2) {
-                return item1.getDate().equals(item2.getDate());
+                return item1.getFingerprint() == item2.getFingerprint();
             }
         }, posts.size());
         mPosts.addAll(posts);
@@ -111,6 +112,7 @@ public class ChatAdapter extends RecyclerView.Adapter<ChatAdapter.ViewHolder> {
     @Override
     public void onBindViewHolder(ChatAdapter.ViewHolder holder, int position) {
         Post post = mPosts.get(position);
+        PipelineStats.onBound(post);
 
         long timestamp = post.getDate().getTime();
         String message = post.getMessage().getHtml();
@@ -67,7 +67,8 @@ public class AccountAuthenticator extends AbstractAccountAuthenticator {
         if (options != null && options.containsKey(AccountManager.KEY_PASSWORD)) {
             try {
                 final String password = options.getString(AccountManager.KEY_PASSWORD);
-                final boolean verified = Connection.isCredentialsCorrect(account.name, password);
+                final boolean verified = Connection.getDefault()
+                        .isCredentialsCorrect(account.name, password);
 
                 final Bundle result = new Bundle();
                 result.putBoolean(AccountManager.KEY_BOOLEAN_RESULT, verified);
@@ -107,8 +108,8 @@ public class AccountAuthenticator extends AbstractAccountAuthenticator {
         if (password != null) {
             boolean verified = false;
             try {
-                verified = Connection.isCredentialsCorrect(account.name, password);
-                authtoken = Connection.getToken(account.name, password);
+                verified = Connection.getDefault().isCredentialsCorrect(account.name, password);
+                authtoken = Connection.getDefault().getToken(account.name, password);
             } catch (IOException e) {
                 e.printStackTrace();
             }
@@ -0,0 +1,129 @@
+/*
+ * Copyright 2016 Maximilian Salomon.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see http://www.gnu.org/licenses/.
+ */
+
+package de.msal.shoutemo.authenticator;
+
+import android.accounts.Account;
+import android.accounts.AccountManager;
+import android.accounts.AuthenticatorException;
+import android.accounts.OperationCanceledException;
+import android.os.SystemClock;
+import android.util.Log;
+
+import java.io.IOException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import de.msal.shoutemo.activities.LoginActivity;
+
+/**
+ * Keeps the session (the {@code PHPSESSID} authtoken) of an account alive. The session is renewed
+ * in the background when it gets old, or as soon as the server rejected it. Until the new session
+ * is ready, callers keep on using the old one, so they never have to wait for a login.
+ */
+public class SessionManager {
+
+    private static final String TAG = "Shoutemo|SessionManager";
+    /* renew well before the server might throw the session away */
+    private static final long MAX_AGE = 20 * 60 * 1000; // 20min
+    /* don't hammer the login page, if renewing failed */
+    private static final long RETRY_DELAY = 60 * 1000; // 1min
+
+    private final AccountManager accountManager;
+    private final Account account;
+    private final ExecutorService executor = Executors.newSingleThreadExecutor();
+
+    private String token;
+    private long obtainedAt;
+    private long lastAttempt = -RETRY_DELAY;
+    private boolean renewing;
+
+    public SessionManager(AccountManager accountManager, Account account) {
+        this.accountManager = accountManager;
+        this.account = account;
+    }
+
+    /**
+     * Sets the token of a freshly established session.
+     */
+    public synchronized void setToken(String token) {
+        this.token = token;
+        this.obtainedAt = SystemClock.elapsedRealtime();
+    }
+
+    /**
+     * @return the token of the current session. If it is getting old, a new session is
+     * established in the background.
+     */
+    public synchronized String getToken() {
+        if (token != null && SystemClock.elapsedRealtime() - obtainedAt > MAX_AGE) {
+            Log.v(TAG, "Session is getting old, renewing it.");
+            renew();
+        }
+        return token;
+    }
+
+    /**
+     * Reports that the server didn't accept the given token (anymore), e.g. because it answered
+     * with an empty shoutbox. A new session is established in the background.
+     */
+    public synchronized void onRejected(String rejected) {
+        if (rejected != null && rejected.equals(token)) {
+            Log.v(TAG, "Session was rejected, renewing it.");
+            renew();
+        }
+    }
+
+    /**
+     * Stops renewing sessions. Has to be called when the manager is not needed anymore.
+     */
+    public void close() {
+        executor.shutdownNow();
+    }
+
+    private void renew() {
+        long now = SystemClock.elapsedRealtime();
+        if (renewing || executor.isShutdown() || now - lastAttempt < RETRY_DELAY) {
+            return;
+        }
+        renewing = true;
+        lastAttempt = now;
+        final String old = token;
+        executor.execute(new Runnable() {
+            @Override
+            public void run() {
+                String renewed = null;
+                try {
+                    /* only drops the cached token: the old session stays usable meanwhile */
+                    accountManager.invalidateAuthToken(AccountAuthenticator.ACCOUNT_TYPE, old);
+                    renewed = accountManager.blockingGetAuthToken(account,
+                            LoginActivity.PARAM_AUTHTOKEN_TYPE, true);
+                } catch (OperationCanceledException | IOException | AuthenticatorException e) {
+                    Log.e(TAG, "Renewing the session failed: " + e.getMessage());
+                }
+                synchronized (SessionManager.this) {
+                    renewing = false;
+                    if (renewed != null && !renewed.isEmpty()) {
+                        setToken(renewed);
+                        Log.v(TAG, "Session renewed.");
+                    }
+                }
+            }
+        });
+    }
+
+}
@@ -0,0 +1,113 @@
+/*
+ * Copyright 2016 Maximilian Salomon.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see http://www.gnu.org/licenses/.
+ */
+
+package de.msal.shoutemo.connector;
+
+import java.util.Random;
+
+/**
+ * Decides how long to wait before the next poll, depending on how the last ones went.
+ * <ul>
+ * <li><b>closed</b>: all is well, polls happen at the normal interval. Every failed poll doubles
+ * the delay (with some jitter, so that not all clients retry in lockstep).</li>
+ * <li><b>open</b>: after {@value #FAILURE_THRESHOLD} failures in a row the server is assumed to
+ * be unreachable. Instead of polling, only a cheap probe is sent, still with growing delays.</li>
+ * <li><b>half open</b>: a probe went through. The next poll decides whether to close the breaker
+ * again, or to re-open it.</li>
+ * </ul>
+ */
+class CircuitBreaker {
+
+    private static final int FAILURE_THRESHOLD = 5;
+    /* the delay never grows beyond that */
+    private static final long MAX_DELAY = 5 * 60 * 1000; // 5min
+
+    private static final int CLOSED = 0;
+    private static final int OPEN = 1;
+    private static final int HALF_OPEN = 2;
+
+    private final Random random = new Random();
+    private int state = CLOSED;
+    private int failures;
+
+    /**
+     * @return {@code true} if the server seems to be unreachable: probe it, instead of polling.
+     */
+    synchronized boolean isOpen() {
+        return state == OPEN;
+    }
+
+    synchronized void onSuccess() {
+        state = CLOSED;
+        failures = 0;
+    }
+
+    synchronized void onFailure() {
+        failures++;
+        if (state == HALF_OPEN || failures >= FAILURE_THRESHOLD) {
+            state = OPEN;
+        }
+    }
+
+    /**
+     * @param reachable whether the probe got an answer.
+     */
+    synchronized void onProbe(boolean reachable) {
+        if (reachable) {
+            state = HALF_OPEN;
+        } else {
+            failures++;
+        }
+    }
+
+    /**
+     * Opens the breaker right away, e.g. because the device lost its network connection.
+     */
+    synchronized void trip() {
+        state = OPEN;
+        failures = Math.max(failures, FAILURE_THRESHOLD);
+    }
+
+    /**
+     * Forgets all failures, e.g. because the device got a network connection again. The next poll
+     * is a real one.
+     */
+    synchronized void reset() {
+        state = failures > 0 ? HALF_OPEN : CLOSED;
+        failures = 0;
+    }
+
+    /**
+     * @param interval the normal poll interval, in ms.
+     * @return how long to wait until the next poll (or probe), in ms.
+     */
+    synchronized long nextDelay(long interval) {
+        if (failures == 0 || state == HALF_OPEN) {
+            return interval;
+        }
+        /* exponential backoff with "equal jitter": somewhere between half and the full delay */
+        long delay = Math.min(MAX_DELAY, interval << Math.min(failures, 20));
+        return delay / 2 + (long) (random.nextDouble() * (delay / 2));
+    }
+
+    @Override
+    public synchronized String toString() {
+        return "CircuitBreaker{state=" + (state == CLOSED ? "closed" : state == OPEN ? "open"
+                : "half open") + ", failures=" + failures + "}";
+    }
+
+}
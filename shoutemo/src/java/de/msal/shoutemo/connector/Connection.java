@@ -17,24 +17,44 @@
 
 package de.msal.shoutemo.connector;
 
+import com.google.common.base.CharMatcher;
 import com.google.common.base.Splitter;
+import com.google.common.hash.HashCode;
+import com.google.common.hash.Hashing;
 import com.google.common.primitives.Doubles;
 
 import org.jsoup.Jsoup;
 import org.jsoup.nodes.Document;
 import org.jsoup.nodes.Element;
-import org.jsoup.select.Elements;
+import org.jsoup.nodes.TextNode;
 
+import android.os.SystemClock;
 import android.util.Log;
 
+import java.io.ByteArrayInputStream;
 import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.InputStreamReader;
+import java.text.ParseException;
 import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
 import java.util.LinkedList;
 import java.util.List;
 import java.util.Map;
-
+import java.util.concurrent.Callable;
+
+import de.msal.shoutemo.connector.http.ConnectionPool;
+import de.msal.shoutemo.connector.http.EndpointStats;
+import de.msal.shoutemo.connector.http.HttpTransport;
+import de.msal.shoutemo.connector.http.Request;
+import de.msal.shoutemo.connector.http.RequestTemplate;
+import de.msal.shoutemo.connector.http.Response;
 import de.msal.shoutemo.connector.model.Author;
+import de.msal.shoutemo.connector.model.Message;
+import de.msal.shoutemo.connector.model.OnlineUsersScanner;
 import de.msal.shoutemo.connector.model.Post;
+import de.msal.shoutemo.connector.model.PostTokenizer;
 
 /**
  * Builds a connection to <a href="http://autemo.com">autemo.com</a>.
@@ -45,16 +65,94 @@ import de.msal.shoutemo.connector.model.Post;
  * @version 1.0
  * @since 21.09.13
  */
-public class Connection {
+public class Connection implements ShoutboxTransport {
 
     private static final String TAG = "Shoutemo|Connection";
     private static final String USER_AGENT = "Shoutemo";
+    /* used until enough latencies were seen, and the upper limit of the adaptive timeouts */
     private static final int TIMEOUT = 12000;
+    private static final int MIN_TIMEOUT = 3000;
+    /* the timeout of an endpoint is this factor times the 99th percentile of its latency */
+    private static final int TIMEOUT_FACTOR = 3;
+    /* a poll is sent a second time, if it takes longer than this percentile of the latencies */
+    private static final double HEDGE_PERCENTILE = 95;
+    /* keep the sockets open in between two polls, even at the slowest poll rate */
+    private static final int MAX_IDLE_CONNECTIONS = 4;
+    private static final long KEEP_ALIVE = 30000;
+    private static final int MAX_CONNECTIONS_PER_HOST = 4;
+    private static final int MAX_POST_ATTEMPTS = 3;
+    /* a shout that got no answer is looked for among the shouts of that span */
+    private static final long RECENT_SHOUTS = 5 * 60 * 1000; // 5min
+    /* a response of the shoutbox is handed out to callers arriving shortly after it, as well */
+    private static final long POSTS_FRESHNESS = 1000;
+    /* the online users are cached, so that swiping to refresh doesn't always hit the network */
+    private static final long ONLINE_USERS_TTL = 30000;
+
+    /* names the traffic is accounted under, see getEndpointStats() */
+    public static final String ENDPOINT_POSTS = "posts";
+    public static final String ENDPOINT_SHOUT = "shout";
+    public static final String ENDPOINT_ONLINE_USERS = "online users";
+    public static final String ENDPOINT_SETTINGS = "settings";
+    public static final String ENDPOINT_LOGIN = "login";
+    public static final String ENDPOINT_PROBE = "probe";
+
+    private static volatile ShoutboxTransport sDefault = new Connection(Endpoints.AUTEMO);
+
+    private final Endpoints endpoints;
+    private final HttpTransport transport = new HttpTransport(
+            new ConnectionPool(MAX_IDLE_CONNECTIONS, KEEP_ALIVE), MAX_CONNECTIONS_PER_HOST);
+    private final RequestTemplate template = new RequestTemplate(USER_AGENT, TIMEOUT);
+    private final SingleFlight<String, PostsPage> postsFlight =
+            new SingleFlight<>(POSTS_FRESHNESS);
+    private final HedgedExecutor hedgedExecutor = new HedgedExecutor();
+    private final Object onlineUsersLock = new Object();
+    private List<Author> onlineUsers;
+    private long onlineUsersFetchedAt;
+    private long onlineUsersTtl = ONLINE_USERS_TTL;
 
     /**
      * Class for connecting to autemo.com, getting its shoutbox content and send shouts to it.
+     *
+     * @param endpoints where to find the pages of the server.
+     */
+    public Connection(Endpoints endpoints) {
+        this.endpoints = endpoints;
+    }
+
+    /**
+     * @return the transport used throughout the app. By default, a connection to autemo.com.
+     */
+    public static ShoutboxTransport getDefault() {
+        return sDefault;
+    }
+
+    /**
+     * Replaces the transport used throughout the app, e.g. by one to a local fixture server.
+     */
+    public static void setDefault(ShoutboxTransport transport) {
+        sDefault = transport;
+    }
+
+    public Endpoints getEndpoints() {
+        return endpoints;
+    }
+
+    /**
+     * @return the pool all connections to the server are kept in. Its hit and miss counts show how
+     * many connection setups were saved.
+     */
+    @Override
+    public ConnectionPool getConnectionPool() {
+        return transport.getPool();
+    }
+
+    /**
+     * @return traffic and latency of all endpoints used so far, by their names (see the {@code
+     * ENDPOINT_*} constants).
      */
-    private Connection() throws IOException {
+    @Override
+    public Map<String, EndpointStats> getEndpointStats() {
+        return transport.getStats();
     }
 
     /**
@@ -65,7 +163,8 @@ public class Connection {
      * @param password the password of that account.
      * @return {@code true} if the attempt was successful, else {@code false}.
      */
-    public static boolean isCredentialsCorrect(String nick, String password) throws IOException {
+    @Override
+    public boolean isCredentialsCorrect(String nick, String password) throws IOException {
         Map<String, String> cookies = connect(nick, password);
         String token = cookies.get("PHPSESSID");
         return !(getPosts(token).isEmpty());
@@ -76,7 +175,8 @@ public class Connection {
      * @param password the users password for this account.
      * @return The session id that authenticates this user.
      */
-    public static String getToken(String nick, String password) throws IOException {
+    @Override
+    public String getToken(String nick, String password) throws IOException {
         Map<String, String> cookies = connect(nick, password);
         return cookies.get("PHPSESSID");
     }
@@ -87,73 +187,456 @@ public class Connection {
      * @param authtoken this sessions authtoken.
      * @return A {@link java.util.List} of {@link de.msal.shoutemo.connector.model.Post}s,
      * containing the current chat history. The size of it <strong>should</strong> always be 50, but
-     * may differ.
+     * may differ. Shared with concurrent callers, so not modifiable.
      */
-    public static List<Post> getPosts(String authtoken) throws IOException {
-        Document document = Jsoup
-                .connect("http://www.autemo.com/includes/js/ajax/yshout.php")
-                .timeout(TIMEOUT)
-                .ignoreHttpErrors(true)
-                .followRedirects(true)
-                .cookie("PHPSESSID", authtoken)
-                .userAgent(USER_AGENT)
-                .get();
+    @Override
+    public List<Post> getPosts(String authtoken) throws IOException {
+        return fetchPosts(authtoken, null, null).posts();
+    }
+
+    /**
+     * Gets the new posts of the chat history, but only if it changed since the last call with the
+     * same {@link PollState}. Sends the cache validators the server gave at the last poll along,
+     * and compares a fingerprint of the received body with the last one. Parsing is skipped if
+     * nothing changed. Posts below the {@link Watermark} are skipped as well.
+     *
+     * @param authtoken this sessions authtoken.
+     * @param state     the state of the last poll. Gets updated, which takes effect after a
+     *                  {@link PollState#commit()}.
+     * @param watermark the newest post already stored.
+     * @return A {@link java.util.List} of the {@link de.msal.shoutemo.connector.model.Post}s above
+     * the watermark, or {@code null} if there are none. An empty list means that the chat history
+     * contained no posts at all.
+     */
+    @Override
+    public List<Post> getPosts(String authtoken, PollState state, Watermark watermark)
+            throws IOException {
+        long network = PipelineStats.start();
+        PostsPage page = fetchPosts(authtoken, state.getETag(), state.getLastModified());
+        PipelineStats.end(PipelineStats.Stage.NETWORK, network);
+        if (page.statusCode == 304) {
+            state.onNotModified();
+            return null;
+        }
+        HashCode fingerprint = page.fingerprint();
+        if (state.isUnchanged(fingerprint)) {
+            return null;
+        }
+
+        long parse = PipelineStats.start();
+        PostTokenizer tokenizer = new PostTokenizer(toString(page.body, page.charset), watermark);
+        List<Post> posts;
+        int known;
+        try {
+            posts = tokenizer.parse();
+            known = tokenizer.getKnownCount();
+        } catch (ParseException e) {
+            Log.w(TAG, "Falling back to Jsoup: " + e.getMessage());
+            posts = toPosts(parse(page.body, page.charset, page.url));
+            known = posts.size();
+            for (Iterator<Post> it = posts.iterator(); it.hasNext(); ) {
+                if (watermark.isKnown(it.next())) {
+                    it.remove();
+                }
+            }
+            known -= posts.size();
+        }
+        PipelineStats.end(PipelineStats.Stage.PARSE, parse);
+
+        /* an empty result means an invalid session: never skip it, so the caller will notice */
+        if (posts.isEmpty() && known == 0) {
+            state.reset();
+            return posts;
+        }
+        state.update(fingerprint, page.eTag, page.lastModified);
+        return posts.isEmpty() ? null : posts;
+    }
+
+    /**
+     * Requests the shoutbox. Concurrent calls with the same session and cache validators share a
+     * single request: the scheduled poll, a poll of a just restarted {@link GetPostsService} and a
+     * credentials check may easily overlap.
+     * <p/>
+     * If the request takes longer than {@value #HEDGE_PERCENTILE}% of the recent ones did, it is
+     * sent a second time and the first answer is used, so that a stalled request doesn't delay new
+     * messages for a whole timeout.
+     *
+     * @param eTag         the ETag of the last poll to validate against, or {@code null}.
+     * @param lastModified the Last-Modified date of the last poll to validate against, or {@code
+     *                     null}.
+     */
+    private PostsPage fetchPosts(final String authtoken, final String eTag,
+            final String lastModified) throws IOException {
+        String key = authtoken + '\n' + eTag + '\n' + lastModified;
+        return postsFlight.execute(key, new SingleFlight.Call<PostsPage>() {
+            @Override
+            public PostsPage call() throws IOException {
+                return hedgedExecutor.execute(new Callable<PostsPage>() {
+                    @Override
+                    public PostsPage call() throws IOException {
+                        Request request = template
+                                .get(endpoints.posts())
+                                .endpoint(ENDPOINT_POSTS)
+                                .timeout(timeout(ENDPOINT_POSTS))
+                                .cookie("PHPSESSID", authtoken);
+                        if (eTag != null) {
+                            request.header("If-None-Match", eTag);
+                        }
+                        if (lastModified != null) {
+                            request.header("If-Modified-Since", lastModified);
+                        }
+                        Response response = transport.execute(request);
+                        if (response.statusCode() == 304) {
+                            response.close();
+                            return new PostsPage(response, new byte[0]);
+                        }
+                        return new PostsPage(response, response.bodyBytes());
+                    }
+                }, transport.getStats(ENDPOINT_POSTS).getLatencyPercentile(HEDGE_PERCENTILE));
+            }
+        });
+    }
 
-        List<Post> posts = new LinkedList<>();
+    /**
+     * @return the timeout to use for requests to the given endpoint: a multiple of its usual
+     * latency, so that a stalled request is given up on early, but within {@value #MIN_TIMEOUT}ms
+     * and {@value #TIMEOUT}ms.
+     */
+    private int timeout(String endpoint) {
+        long p99 = transport.getStats(endpoint).getLatencyPercentile(99);
+        if (p99 < 0) {
+            return TIMEOUT;
+        }
+        return (int) Math.max(MIN_TIMEOUT, Math.min(TIMEOUT, p99 * TIMEOUT_FACTOR));
+    }
 
-        for (Element element : document.getElementsByClass("ys-post")) {
-            posts.add(new Post(element));
+    /**
+     * Extracts the posts of the shoutbox with the {@link PostTokenizer}. Falls back to parsing the
+     * complete document with Jsoup, if the tokenizer fails.
+     *
+     * @param body    the raw body of the response.
+     * @param charset the charset of the body, or {@code null} if unknown.
+     * @param url     the url the body was read from.
+     */
+    private static List<Post> toPosts(byte[] body, String charset, String url) throws IOException {
+        try {
+            return PostTokenizer.parse(toString(body, charset));
+        } catch (ParseException e) {
+            Log.w(TAG, "Falling back to Jsoup: " + e.getMessage());
         }
+        return toPosts(parse(body, charset, url));
+    }
+
+    private static String toString(byte[] body, String charset) throws IOException {
+        return new String(body, charset != null ? charset : "UTF-8");
+    }
+
+    private static Document parse(byte[] body, String charset, String url) throws IOException {
+        return Jsoup.parse(new ByteArrayInputStream(body), charset != null ? charset : "UTF-8", url);
+    }
+
+    /**
+     * Creates the posts of a big document (e.g. a long history) on all cores.
+     */
+    private static List<Post> toPosts(Document document) throws InterruptedIOException {
+        /*
+         * The posts are created in parallel, so they mustn't share the (not thread safe) encoder of
+         * a legacy charset. The html ends up as a java string anyway.
+         */
+        document.outputSettings().charset("UTF-8");
+        /*
+         * Pretty printing indents the children of block elements, which adds spaces between words
+         * that the server didn't send. Keep the html the way the PostTokenizer keeps it.
+         */
+        document.outputSettings().prettyPrint(false);
+        return ParallelPosts.toPosts(document.getElementsByClass("ys-post"));
+    }
 
-        return posts;
+    /**
+     * Sends a {@code HEAD} request to the shoutbox: no body, no session, no redirects, and a short
+     * timeout.
+     *
+     * @return {@code true} if the server answered without a server error.
+     */
+    @Override
+    public boolean probe() {
+        try {
+            Response response = transport.execute(template
+                    .get(endpoints.posts())
+                    .method(Request.Method.HEAD)
+                    .endpoint(ENDPOINT_PROBE)
+                    .timeout(MIN_TIMEOUT)
+                    .followRedirects(false));
+            response.close();
+            return response.statusCode() < 500;
+        } catch (IOException e) {
+            return false;
+        }
     }
 
     /**
-     * Gets the currently online users. Should be about 7KB per call. There is no need to
-     * authenticate here, as the data is publicly viewable.
+     * Gets the currently online users. There is no need to authenticate here, as the data is
+     * publicly viewable.
+     * <p/>
+     * The forums page is scanned while it is downloaded, and the download is cancelled right
+     * after the list of online users, saving most of the page. The result is cached for {@link
+     * #setOnlineUsersTtl(long) a while}, so refreshing repeatedly doesn't hit the network each time.
      *
      * @return A {@link java.util.List List} of {@link de.msal.shoutemo.connector.model.Author
      * Author}s, containting the currently online users.
      */
-    public static List<Author> getOnlineUsers() throws IOException {
-        List<Author> authors = new ArrayList<>(25);
-
-        Document document = Jsoup
-                .connect("http://www.autemo.com/forums/")
-                .timeout(TIMEOUT)
-                .ignoreHttpErrors(true)
-                .followRedirects(true)
-                .userAgent(USER_AGENT)
-                .get();
-
-        Elements elements = document
-                .getElementsByAttributeValue("style", "width:170px;display:block;float:left;");
-        if (elements == null) {
-            return authors;
+    @Override
+    public List<Author> getOnlineUsers() throws IOException {
+        synchronized (onlineUsersLock) {
+            if (onlineUsers != null
+                    && SystemClock.elapsedRealtime() - onlineUsersFetchedAt < onlineUsersTtl) {
+                return onlineUsers;
+            }
         }
-        for (Element element : elements) {
-            Element user = element.getElementsByTag("a").first();
-            Element avatar = element.getElementsByTag("img").first();
-            if (user != null) {
-                String url = "http://www.autemo.com/" + avatar.attr("src");
-                authors.add(new Author(user, url.replace("_th.", ".")));
+
+        Response response = transport.execute(template
+                .get(endpoints.onlineUsers())
+                .endpoint(ENDPOINT_ONLINE_USERS)
+                .timeout(timeout(ENDPOINT_ONLINE_USERS)));
+        List<Author> authors;
+        try {
+            OnlineUsersScanner scanner = new OnlineUsersScanner(
+                    new InputStreamReader(response.bodyStream(),
+                            response.charset() != null ? response.charset() : "UTF-8"),
+                    new OnlineUsersScanner.AvatarResolver() {
+                        @Override
+                        public String resolve(String src) {
+                            return endpoints.resolve(src).replace("_th.", ".");
+                        }
+                    });
+            authors = Collections.unmodifiableList(scanner.scan());
+            if (scanner.isFinishedEarly()) {
+                response.abort(); // don't download the rest of the page
             }
+        } finally {
+            response.close();
         }
 
+        synchronized (onlineUsersLock) {
+            onlineUsers = authors;
+            onlineUsersFetchedAt = SystemClock.elapsedRealtime();
+        }
         return authors;
     }
 
+    /**
+     * @param ttl how long (in ms) the online users are served from the cache, instead of fetching
+     *            them again. 0 disables the cache.
+     */
+    public void setOnlineUsersTtl(long ttl) {
+        synchronized (onlineUsersLock) {
+            onlineUsersTtl = ttl;
+        }
+    }
+
     /**
      * Sends a new shout to the server: the given message. The server accepts only a limited size
      * for the message. If it is too long, this method will split the message in several chunks and
      * make additional calls.
      *
+     * <p/>
+     * All chunks are sent at once over a single connection, so that the whole message takes about
+     * one round trip instead of one per chunk. The server processes them in the order they were
+     * sent. If a chunk failed, it and the chunks after it are sent again one at a time, so that
+     * they stay in order, up to {@value #MAX_POST_ATTEMPTS} times in total. A chunk that got no
+     * answer may have been posted already: it is only sent again if the shoutbox doesn't show it.
+     *
      * @param authtoken this sessions authtoken.
-     * @param message   the message to send. return the http status code of the request or -1 if
-     *                  nothing was sent. Should be 200 (OK) if everything worked.:
-     * @return the http status code of the response.
+     * @param message   the message to send.
+     * @return the http status code of every chunk. All should be 200 (OK) if everything worked.
      */
-    public static int post(String authtoken, String message) throws IOException {
+    @Override
+    public PostResult post(String authtoken, String message) {
+        return post(authtoken, Collections.singletonList(message)).get(0);
+    }
+
+    /**
+     * Sends several shouts, in order, each like {@link #post(String, String)}. Stops at the first
+     * message that can't be sent completely; the chunks of the messages after it stay {@link
+     * PostResult#NOT_SENT}.
+     *
+     * @param authtoken this sessions authtoken.
+     * @param messages  the messages to send.
+     * @return the result of every message.
+     * @throws IllegalArgumentException if a message contains a word too long to be sent.
+     */
+    @Override
+    public List<PostResult> post(String authtoken, List<String> messages) {
+        return post(authtoken, messages, Collections.<String>nCopies(messages.size(), null));
+    }
+
+    /**
+     * Continues sending several shouts, like {@link #post(String, List)}: chunks that were posted
+     * by an earlier attempt are not sent again.
+     *
+     * @param authtoken this sessions authtoken.
+     * @param messages  the messages to send.
+     * @param progress  the {@link PostResult#getProgress() progress} of every message, {@code null}
+     *                  for a message that wasn't sent yet.
+     * @return the result of every message.
+     * @throws IllegalArgumentException if a message contains a word too long to be sent.
+     */
+    @Override
+    public List<PostResult> post(String authtoken, List<String> messages, List<String> progress) {
+        List<PostResult> results = new ArrayList<>(messages.size());
+        for (int i = 0; i < messages.size(); i++) {
+            results.add(new PostResult(split(messages.get(i)), progress.get(i)));
+        }
+        send(authtoken, results);
+        /* the shoutbox changed: the next poll has to show the messages */
+        postsFlight.invalidate();
+
+        return results;
+    }
+
+    /**
+     * Sends the chunks of the given results which weren't posted yet, one message after the other.
+     * Stops at the first message that can't be sent completely: the later ones have to wait, so
+     * that they can't overtake it.
+     */
+    private void send(String authtoken, List<PostResult> results) {
+        for (PostResult result : results) {
+            if (!send(authtoken, result)) {
+                return;
+            }
+        }
+    }
+
+    /**
+     * Sends the chunks of the given result which weren't posted yet, in order. First all of them
+     * at once, then the failed ones one at a time, until a chunk can't be sent.
+     *
+     * @return {@code true} if all chunks were posted.
+     */
+    private boolean send(String authtoken, PostResult result) {
+        List<String> chunks = result.getChunks();
+        int first = 0;
+        while (first < chunks.size() && result.getStatusCode(first) == 200) {
+            first++;
+        }
+
+        /* the first attempt: everything from the first unsent chunk on, over one connection */
+        List<Request> requests = new ArrayList<>();
+        for (int i = first; i < chunks.size()
+                && result.getStatusCode(i) == PostResult.NOT_SENT; i++) {
+            requests.add(shout(authtoken, chunks.get(i)));
+        }
+        int pipelined = first + requests.size();
+        if (!requests.isEmpty()) {
+            List<Response> responses = Collections.emptyList();
+            try {
+                responses = transport.executePipelined(requests);
+            } catch (IOException e) {
+                Log.w(TAG, "Sending failed: " + e.getMessage());
+            }
+            for (int i = first; i < pipelined; i++) {
+                result.setStatusCode(i, i - first < responses.size()
+                        ? responses.get(i - first).statusCode() : PostResult.NO_ANSWER);
+            }
+        }
+
+        /* the failed chunks: one at a time, so that the later ones can't overtake them */
+        List<Post> recent = null; // the recent shouts, if none was sent since they were fetched
+        for (int i = first; i < chunks.size(); i++) {
+            int attempts = i < pipelined ? 1 : 0;
+            int statusCode;
+            while ((statusCode = result.getStatusCode(i)) != 200) {
+                if (statusCode == PostResult.NO_ANSWER) { // check whether it was posted
+                    if (recent == null) {
+                        try {
+                            recent = fetchRecentShouts(authtoken);
+                        } catch (IOException e) {
+                            Log.w(TAG, "Checking the sent shouts failed: " + e.getMessage());
+                            return false;
+                        }
+                    }
+                    result.setStatusCode(i, removeShout(recent, chunks.get(i))
+                            ? 200 : PostResult.NOT_SENT);
+                } else if (statusCode != PostResult.NOT_SENT && statusCode < 500
+                        || attempts >= MAX_POST_ATTEMPTS) {
+                    return false; // rejected or still failing: the later chunks have to wait
+                } else {
+                    attempts++;
+                    recent = null;
+                    try {
+                        Response response = transport.execute(shout(authtoken, chunks.get(i)));
+                        response.close();
+                        result.setStatusCode(i, response.statusCode());
+                    } catch (IOException e) {
+                        Log.w(TAG, "Sending attempt " + attempts + " failed: " + e.getMessage());
+                        result.setStatusCode(i, PostResult.NO_ANSWER);
+                    }
+                }
+            }
+        }
+        return true;
+    }
+
+    /**
+     * @return the request that posts the given chunk. Doesn't follow redirects, like the pipelined
+     * requests: a shout is answered with 200, a redirect leads to the login.
+     */
+    private Request shout(String authtoken, String chunk) {
+        return template
+                .post(endpoints.shout())
+                .endpoint(ENDPOINT_SHOUT)
+                .timeout(timeout(ENDPOINT_SHOUT))
+                .followRedirects(false)
+                .cookie("PHPSESSID", authtoken)
+                .data("x_message", chunk, "submit", "Shout!");
+    }
+
+    /**
+     * @return the shouts of the last {@value #RECENT_SHOUTS}ms before the newest post, fetched
+     * freshly.
+     */
+    private List<Post> fetchRecentShouts(String authtoken) throws IOException {
+        postsFlight.invalidate();
+        List<Post> posts = fetchPosts(authtoken, null, null).posts();
+        long newest = Long.MIN_VALUE;
+        for (Post post : posts) {
+            newest = Math.max(newest, post.getDate().getTime());
+        }
+        List<Post> recent = new ArrayList<>();
+        for (Post post : posts) {
+            if (post.getMessage().getType() == Message.Type.SHOUT
+                    && post.getDate().getTime() >= newest - RECENT_SHOUTS) {
+                recent.add(post);
+            }
+        }
+        return recent;
+    }
+
+    /**
+     * Looks for a shout showing the given chunk and removes it, so that it doesn't count for an
+     * equal chunk again. Emoticons are compared by their code, whitespace is ignored.
+     *
+     * @return {@code true} if the chunk was found.
+     */
+    private static boolean removeShout(List<Post> shouts, String chunk) {
+        String text = CharMatcher.WHITESPACE.removeFrom(chunk);
+        for (Iterator<Post> it = shouts.iterator(); it.hasNext(); ) {
+            Element body = Jsoup.parseBodyFragment(it.next().getMessage().getHtml()).body();
+            for (Element img : body.getElementsByTag("img")) {
+                img.replaceWith(new TextNode(img.attr("alt"), ""));
+            }
+            if (CharMatcher.WHITESPACE.removeFrom(body.text()).equals(text)) {
+                it.remove();
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Splits the given message into chunks small enough for the server, without cutting words.
+     */
+    private static List<String> split(String message) {
         final int MAX_MESSAGE_LENGTH = 250;
       /* Code when not using the splitting. Just throw if message length is too long */
         // if (message.length() > MAX_MESSAGE_LENGTH) {
@@ -182,22 +665,7 @@ public class Connection {
 
         sewns.add(sb.deleteCharAt(sb.length() - 1).toString());// finally add the last chunk
 
-        int statusCode = -1;
-        for (String stitch : sewns) { // now send all messages from the message list
-            statusCode = Jsoup
-                    .connect("http://www.autemo.com/includes/js/ajax/yshout.php?m=shout")
-                    .timeout(TIMEOUT)
-                    .ignoreHttpErrors(true)
-                    .followRedirects(true)
-                    .cookie("PHPSESSID", authtoken)
-                    .userAgent(USER_AGENT)
-                    .data("x_message", stitch, "submit", "Shout!")
-                    .method(org.jsoup.Connection.Method.POST)
-                    .execute()
-                    .statusCode();
-        }
-
-        return statusCode;
+        return sewns;
     }
 
     /**
@@ -219,7 +687,7 @@ public class Connection {
      * be mapped to a timezone value, {@code -1} is returned.
      */
     @Deprecated
-    public static int setUserTimezone(String authtoken, double offsetInHours) throws IOException {
+    public int setUserTimezone(String authtoken, double offsetInHours) throws IOException {
 
         double[] timezoneMapping = new double[35];
         timezoneMapping[0] = -12;    // value="1"    GMT/UTC -12:00 hours
@@ -276,14 +744,11 @@ public class Connection {
 
         if (offsetCode > 0) {
         /* first get necessary data */
-            Document doc = Jsoup
-                    .connect("http://www.autemo.com/myaccount/?m=settings")
-                    .timeout(TIMEOUT)
-                    .ignoreHttpErrors(true)
-                    .followRedirects(true)
-                    .cookie("PHPSESSID", authtoken)
-                    .userAgent(USER_AGENT)
-                    .get();
+            Document doc = execute(template
+                    .get(endpoints.settings())
+                    .endpoint(ENDPOINT_SETTINGS)
+                    .timeout(timeout(ENDPOINT_SETTINGS))
+                    .cookie("PHPSESSID", authtoken));
 
             String firstName = doc.getElementsByAttributeValue("name", "x_firstname").val();
             String lastName = doc.getElementsByAttributeValue("name", "x_lastname").val();
@@ -292,22 +757,19 @@ public class Connection {
                     .getElementsByAttributeValue("selected", "selected").val();
 
         /* now update the timezone */
-            int statusCode = Jsoup
-                    .connect("http://www.autemo.com/myaccount/?m=settings")
-                    .timeout(TIMEOUT)
-                    .ignoreHttpErrors(true)
-                    .followRedirects(true)
+            Response response = transport.execute(template
+                    .post(endpoints.settings())
+                    .endpoint(ENDPOINT_SETTINGS)
+                    .timeout(timeout(ENDPOINT_SETTINGS))
                     .cookie("PHPSESSID", authtoken)
-                    .userAgent(USER_AGENT)
                     .data("x_timezoneid", String.valueOf(offsetCode))
                     .data("submitted", "true")
                     .data("x_countryid", countryid)
                     .data("x_email", email)
                     .data("x_firstname", firstName)
-                    .data("x_lastname", lastName)
-                    .method(org.jsoup.Connection.Method.POST)
-                    .execute()
-                    .statusCode();
+                    .data("x_lastname", lastName));
+            int statusCode = response.statusCode();
+            response.close();
             Log.v(TAG, "Changing user timezone to " + offsetCode + " (timezone code) (GMT+"
                     + offsetInHours + " (offsetInHours); autemoOffsetInHours=" + autemoOffsetInHours
                     + "). Server answer=" + statusCode);
@@ -323,21 +785,74 @@ public class Connection {
      *
      * @return this sessions cookies.
      */
-    private static Map<String, String> connect(String nick, String password) throws IOException {
-        org.jsoup.Connection.Response response = Jsoup
-                .connect("http://www.autemo.com/login")
-                .timeout(TIMEOUT)
-                .ignoreHttpErrors(true)
-                .followRedirects(true)
-                .userAgent(USER_AGENT)
+    private Map<String, String> connect(String nick, String password) throws IOException {
+        Response response = transport.execute(template
+                .post(endpoints.login())
+                .endpoint(ENDPOINT_LOGIN)
+                .timeout(timeout(ENDPOINT_LOGIN))
                 .data("lgemail", nick,
                         "lgpassword", password,
                         "Submit", "Login >",
-                        "submitted", "TRUE")
-                .method(org.jsoup.Connection.Method.POST)
-                .execute();
+                        "submitted", "TRUE"));
+        response.close();
+
+        return response.cookies().asMap();
+    }
+
+    /**
+     * Executes the given request via the shared, pooled transport and parses the response.
+     *
+     * @return the parsed html document.
+     */
+    private Document execute(Request request) throws IOException {
+        Response response = transport.execute(request);
+        try {
+            return Jsoup.parse(response.bodyStream(), response.charset(),
+                    response.url().toExternalForm());
+        } finally {
+            response.close();
+        }
+    }
 
-        return response.cookies();
+    /**
+     * A response of the shoutbox, as shared by all callers who requested it at the same time.
+     */
+    private static class PostsPage {
+
+        final int statusCode;
+        final byte[] body;
+        final String charset;
+        final String url;
+        final String eTag;
+        final String lastModified;
+        private HashCode fingerprint;
+        private List<Post> posts;
+
+        PostsPage(Response response, byte[] body) {
+            this.statusCode = response.statusCode();
+            this.body = body;
+            this.charset = response.charset();
+            this.url = response.url().toExternalForm();
+            this.eTag = response.header("ETag");
+            this.lastModified = response.header("Last-Modified");
+        }
+
+        synchronized HashCode fingerprint() {
+            if (fingerprint == null) {
+                fingerprint = Hashing.murmur3_128().hashBytes(body);
+            }
+            return fingerprint;
+        }
+
+        /**
+         * @return all posts of the page, parsed once for all callers.
+         */
+        synchronized List<Post> posts() throws IOException {
+            if (posts == null) {
+                posts = Collections.unmodifiableList(toPosts(body, charset, url));
+            }
+            return posts;
+        }
     }
 
 }
@@ -0,0 +1,85 @@
+/*
+ * Copyright 2016 Maximilian Salomon.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see http://www.gnu.org/licenses/.
+ */
+
+package de.msal.shoutemo.connector;
+
+/**
+ * The urls of all pages {@link Connection} talks to, relative to the server they live on.
+ */
+public class Endpoints {
+
+    /**
+     * The real thing: <a href="http://www.autemo.com">autemo.com</a>.
+     */
+    public static final Endpoints AUTEMO = new Endpoints("http://www.autemo.com");
+
+    public static final String PATH_POSTS = "/includes/js/ajax/yshout.php";
+    public static final String PATH_SHOUT = "/includes/js/ajax/yshout.php?m=shout";
+    public static final String PATH_ONLINE_USERS = "/forums/";
+    public static final String PATH_SETTINGS = "/myaccount/?m=settings";
+    public static final String PATH_LOGIN = "/login";
+
+    private final String baseUrl;
+
+    /**
+     * @param baseUrl protocol, host and (optionally) port of the server, e.g. {@code
+     *                http://127.0.0.1:8080}.
+     */
+    public Endpoints(String baseUrl) {
+        this.baseUrl = baseUrl.endsWith("/")
+                ? baseUrl.substring(0, baseUrl.length() - 1)
+                : baseUrl;
+    }
+
+    public String getBaseUrl() {
+        return baseUrl;
+    }
+
+    public String posts() {
+        return baseUrl + PATH_POSTS;
+    }
+
+    public String shout() {
+        return baseUrl + PATH_SHOUT;
+    }
+
+    public String onlineUsers() {
+        return baseUrl + PATH_ONLINE_USERS;
+    }
+
+    public String settings() {
+        return baseUrl + PATH_SETTINGS;
+    }
+
+    public String login() {
+        return baseUrl + PATH_LOGIN;
+    }
+
+    /**
+     * @param path path of a resource on the server, relative to its root.
+     * @return the absolute url of the resource.
+     */
+    public String resolve(String path) {
+        return baseUrl + "/" + (path.startsWith("/") ? path.substring(1) : path);
+    }
+
+    @Override
+    public String toString() {
+        return baseUrl;
+    }
+
+}
@@ -24,26 +24,29 @@ import android.accounts.AccountManagerFuture;
 import android.accounts.AuthenticatorException;
 import android.accounts.OperationCanceledException;
 import android.app.Service;
+import android.content.BroadcastReceiver;
 import android.content.ContentProviderOperation;
+import android.content.Context;
 import android.content.Intent;
+import android.content.IntentFilter;
 import android.content.OperationApplicationException;
-import android.database.Cursor;
+import android.net.ConnectivityManager;
 import android.os.Bundle;
 import android.os.IBinder;
 import android.os.RemoteException;
+import android.preference.PreferenceManager;
 import android.support.v4.content.LocalBroadcastManager;
 import android.util.Log;
 
 import java.io.IOException;
 import java.util.ArrayList;
-import java.util.GregorianCalendar;
+import java.util.HashSet;
 import java.util.List;
-import java.util.concurrent.Executors;
-import java.util.concurrent.ScheduledExecutorService;
-import java.util.concurrent.TimeUnit;
+import java.util.Set;
 
 import de.msal.shoutemo.activities.LoginActivity;
 import de.msal.shoutemo.authenticator.AccountAuthenticator;
+import de.msal.shoutemo.authenticator.SessionManager;
 import de.msal.shoutemo.connector.model.Post;
 import de.msal.shoutemo.db.ChatDb;
 
@@ -57,19 +60,72 @@ public class GetPostsService extends Service {
     private LocalBroadcastManager broadcaster;
     public static final String INTENT_UPDATE = "de.msal.shoutemo.GetPostsService.UPDATING";
     public static final String INTENT_UPDATE_ENABLED = "de.msal.shoutemo.GetPostsService.UPDATING_ENABLED";
+    /* preference: whether to store the plain text of messages, or to derive it from the html */
+    public static final String PREF_STORE_MESSAGE_TEXT = "store_message_text";
     // repeating task (get posts)
-    private static long INTERVAL = 2500; // default: 2.5s
-    private ScheduledExecutorService worker;
+    private static volatile PollScheduler sScheduler;
+    private final PollScheduler mScheduler = new PollScheduler(new GetPostsTask());
+    private volatile long mInterval = PollPlanner.MIN_INTERVAL;
+    /* the planner is learned again from the stored messages that often */
+    private static final long RELEARN_AFTER = 24 * 60 * 60 * 1000; // 1d
+    private PollPlanner mPlanner = PollPlanner.BASELINE;
+    private long mPlannerLearnedAt;
+    private final CircuitBreaker mBreaker = new CircuitBreaker();
+    private final BroadcastReceiver mConnectivityReceiver = new BroadcastReceiver() {
+        @Override
+        public void onReceive(Context context, Intent intent) {
+            if (isInitialStickyBroadcast()) {
+                return;
+            }
+            if (intent.getBooleanExtra(ConnectivityManager.EXTRA_NO_CONNECTIVITY, false)) {
+                Log.v(TAG, "Lost connectivity, pausing polls.");
+                mBreaker.trip();
+            } else {
+                Log.v(TAG, "Regained connectivity, polling now.");
+                mBreaker.reset();
+                mScheduler.pollNow();
+                OutboxService.flush(GetPostsService.this);
+            }
+        }
+    };
+    private final PollState mPollState = new PollState();
+    /* the fingerprints of the posts stored by the last poll that stored any */
+    private final Set<Long> mLastBatch = new HashSet<>();
+    private Watermark mWatermark;
+    /* whether the last poll got the shoutbox, so that new posts are fetched as they come */
+    private boolean mCaughtUp;
     // account handling
-    private String mAuthToken;
+    private SessionManager mSession;
     private AccountManager mAccountManager;
     private Account mAccount;
 
+    /**
+     * Makes the service poll right away, e.g. because a message was just sent. Does nothing if the
+     * service isn't running: in the background, the posts are left to the next sync.
+     */
+    public static void pollNow() {
+        PollScheduler scheduler = sScheduler;
+        if (scheduler != null) {
+            scheduler.pollNow();
+        }
+    }
+
+    /**
+     * @return the scheduler of the running service, to inspect its polls; or {@code null} if the
+     * service isn't running.
+     */
+    public static PollScheduler getScheduler() {
+        return sScheduler;
+    }
+
     @Override
     public void onCreate() {
         super.onCreate();
+        sScheduler = mScheduler;
 
         broadcaster = LocalBroadcastManager.getInstance(this);
+        registerReceiver(mConnectivityReceiver,
+                new IntentFilter(ConnectivityManager.CONNECTIVITY_ACTION));
 
         mAccountManager = AccountManager.get(this);
         Account[] acc = mAccountManager.getAccountsByType(AccountAuthenticator.ACCOUNT_TYPE);
@@ -119,7 +175,14 @@ public class GetPostsService extends Service {
 
     @Override
     public void onDestroy() {
-        stopGetPostsTask();
+        unregisterReceiver(mConnectivityReceiver);
+        mScheduler.shutdown();
+        if (sScheduler == mScheduler) {
+            sScheduler = null;
+        }
+        if (mSession != null) {
+            mSession.close();
+        }
     }
 
     @Override
@@ -128,7 +191,8 @@ public class GetPostsService extends Service {
     }
 
     /**
-     *
+     * Establishes the first session, then starts polling. Later sessions are handled by the {@link
+     * SessionManager} in the background.
      */
     private void startGetPostsTask() {
         mAccountManager.getAuthToken(
@@ -146,14 +210,12 @@ public class GetPostsService extends Service {
                             e.printStackTrace();
                             return;
                         }
-                        mAuthToken = bundle.getString(AccountManager.KEY_AUTHTOKEN);
-                        // now get messages!
-                        if (worker == null || worker.isShutdown()) {
-                            worker = Executors.newSingleThreadScheduledExecutor();
+                        if (mSession == null) {
+                            mSession = new SessionManager(mAccountManager, mAccount);
                         }
-                        // recieve messages
-                        worker.scheduleAtFixedRate(new GetPostsTask(), 0, INTERVAL,
-                                TimeUnit.MILLISECONDS);
+                        mSession.setToken(bundle.getString(AccountManager.KEY_AUTHTOKEN));
+                        // now get messages!
+                        mScheduler.start();
                     }
                 },
                 null
@@ -161,125 +223,195 @@ public class GetPostsService extends Service {
     }
 
     /**
+     * Sets the interval in which the refresh calls should occur, as planned by the {@link
+     * PollPlanner}: dependant on how busy the shoutbox usually is at this hour of the week, and on
+     * how long ago the latest post was. The new interval is used from the next poll on.
      *
+     * @param newestPostTimestamp the timestamp of the latest post, or {@link Long#MIN_VALUE} if
+     *                            there is none.
+     * @return the interval which was set, in ms.
      */
-    private void stopGetPostsTask() {
-        if (worker != null) {
-            worker.shutdown();
-        }
-    }
-
-    /**
-     * Sets the {@code INTERVAL} of this service in which the refresh calls should occur. This
-     * {@code INTERVAL} is dependant on the given {@code timeSinceLastPost}. If the latest post was
-     * some hours ago, it is not necessary to update every some seconds, but maybe every half a
-     * minute. <br/> After the new refresh rate is altered, the task will be stoped and restartet at
-     * its new rate.
-     *
-     * @param timeSinceLastPost the time in ms between the last post and the current time on the
-     *                          phone.
-     * @return the {@code INTERVAL} which was set, in ms.
-     */
-    private long setIntervall(long timeSinceLastPost) {
-        long oldInterval = INTERVAL;
-
-        if (timeSinceLastPost < 120000) { // < 2min
-            INTERVAL = 2500; //   2.5s
-        } else if (timeSinceLastPost < 300000) { // 2min - 5min
-            INTERVAL = 5000; //   5.0s
-        } else if (timeSinceLastPost < 600000) { // 5min - 10min
-            INTERVAL = 10000; // 10.0s
-        } else { // > 10min
-            INTERVAL = 15000; // 15.0s
+    private long setIntervall(long newestPostTimestamp) {
+        long oldInterval = mInterval;
+        long now = System.currentTimeMillis();
+        if (now - mPlannerLearnedAt > RELEARN_AFTER) {
+            mPlanner = PollPlanner.load(getContentResolver());
+            mPlannerLearnedAt = now;
+            Log.v(TAG, "Learned the poll intervals: " + mPlanner);
         }
+        mInterval = mPlanner.nextInterval(now, newestPostTimestamp);
 
-        if (INTERVAL != oldInterval && worker != null && !worker.isShutdown()) {
-            worker.shutdown();
-            worker = Executors.newSingleThreadScheduledExecutor();
-            worker.scheduleAtFixedRate(new GetPostsTask(), 0, INTERVAL, TimeUnit.MILLISECONDS);
+        if (Math.abs(mInterval - oldInterval) >= 1000) {
+            Log.v(TAG, "Polling every " + mInterval + "ms now.");
         }
 
-        return INTERVAL;
+        return mInterval;
     }
 
     /**
      *
      */
-    private class GetPostsTask extends Thread {
-
-        List<Post> posts = null;
+    private class GetPostsTask implements PollScheduler.Poll {
 
         @Override
-        public void run() {
+        public long run() {
+            if (mBreaker.isOpen()) {
+                probe();
+            } else {
+                long start = PipelineStats.start();
+                poll();
+                PipelineStats.end(PipelineStats.Stage.POLL, start);
+            }
+            return mBreaker.nextDelay(mInterval);
+        }
+
+        /**
+         * Checks if the server is reachable again, without polling.
+         */
+        private void probe() {
+            boolean reachable = Connection.getDefault().probe();
+            mBreaker.onProbe(reachable);
+            Log.v(TAG, "Probed the server: " + (reachable ? "reachable" : "unreachable") + ". "
+                    + mBreaker);
+        }
+
+        private void poll() {
             setUpdatingNotification(true);
 
-            try {
-                posts = Connection.getPosts(mAuthToken);
-            } catch (IOException e) {
-                Log.e(TAG, e.getMessage());
+            /* loaded on the first poll, to not hit the database on the main thread */
+            if (mWatermark == null) {
+                mWatermark = Watermark.load(getContentResolver());
             }
 
-            /* check if new posts can be received */
-            if (posts.isEmpty()) {
-                Log.v(TAG, "Received empty data. Invalidating authtoken & fetching new one.");
-                stopGetPostsTask();
-                mAccountManager.invalidateAuthToken(AccountAuthenticator.ACCOUNT_TYPE, mAuthToken);
-                startGetPostsTask();
+            String token = mSession.getToken();
+            /* the newest post before this poll; only newer ones count for the end-to-end latency */
+            long newest = mWatermark.getTimestamp();
+            List<Post> posts;
+            try {
+                posts = Connection.getDefault().getPosts(token, mPollState, mWatermark);
+                mBreaker.onSuccess();
+            } catch (IOException e) {
+                mBreaker.onFailure();
+                Log.e(TAG, "Polling failed: " + e.getMessage() + ". " + mBreaker);
+                setUpdatingNotification(false);
+                return;
             }
 
-            /* insert into DB */
-            ArrayList<ContentProviderOperation> ops = new ArrayList<>();
-            for (Post post : posts) {
-                if (post.getAuthor() != null) {
-                    ops.add(
-                            ContentProviderOperation.newInsert(ChatDb.Authors.CONTENT_URI)
-                                    .withValue(ChatDb.Authors.COLUMN_NAME_NAME,
-                                            post.getAuthor().getName())
-                                    .withValue(ChatDb.Authors.COLUMN_NAME_TYPE,
-                                            post.getAuthor().getType().name())
-                                    .withYieldAllowed(true)
-                                    .build()
-                    );
-                }
-                if (post.getMessage() != null) {
-                    ops.add(
-                            ContentProviderOperation.newInsert(ChatDb.Messages.CONTENT_URI)
-                                    .withValue(ChatDb.Messages.COLUMN_NAME_AUTHOR_NAME,
-                                            post.getAuthor() == null ? null : post.getAuthor().getName())
-                                    .withValue(ChatDb.Messages.COLUMN_NAME_MESSAGE_HTML,
-                                            post.getMessage().getHtml())
-                                    .withValue(ChatDb.Messages.COLUMN_NAME_MESSAGE_TEXT,
-                                            post.getMessage().getText())
-                                    .withValue(ChatDb.Messages.COLUMN_NAME_TYPE,
-                                            post.getMessage().getType().name())
-                                    .withValue(ChatDb.Messages.COLUMN_NAME_TIMESTAMP,
-                                            post.getDate().getTime())
-                                    .withYieldAllowed(true)
-                                    .build()
-                    );
+            /* nothing new since the last poll: nothing to store or notify */
+            if (posts == null) {
+                mPollState.commit();
+                Log.v(TAG, "No new data. " + mPollState + ", " + mWatermark);
+            } else {
+                /* check if new posts can be received */
+                if (posts.isEmpty()) {
+                    Log.v(TAG, "Received empty data. Renewing the session in the background.");
+                    mSession.onRejected(token);
+                } else {
+                    List<Post> delta = withoutLastBatch(posts);
+                    if (delta.isEmpty()) {
+                        mPollState.commit();
+                        Log.v(TAG, "All posts were stored already. " + mWatermark);
+                    } else if (storePosts(GetPostsService.this, delta)) {
+                        /* only now the next poll may skip this body as unchanged */
+                        mPollState.commit();
+                        if (mCaughtUp) {
+                            PipelineStats.onStored(delta, newest);
+                        }
+                        mWatermark.advance(delta);
+                        mLastBatch.clear();
+                        for (Post post : delta) {
+                            mLastBatch.add(post.getFingerprint());
+                        }
+                    }
                 }
             }
-            try {
-                getContentResolver().applyBatch(ChatDb.AUTHORITY, ops);
-            } catch (RemoteException | OperationApplicationException e) {
-                Log.e(TAG, "Error: " + e.getMessage());
-            }
 
-            /* dynamically alter the refresh rate */
-            Cursor c = getContentResolver().query(ChatDb.Messages.CONTENT_URI,
-                    new String[]{ChatDb.Messages.COLUMN_NAME_TIMESTAMP}, null, null,
-                    ChatDb.Messages.COLUMN_NAME_TIMESTAMP + " DESC LIMIT 1");
-            c.moveToFirst();
-            long newestPostTimestamp = c.getLong(0);
-            c.close();
-            GregorianCalendar now = new GregorianCalendar();
-            long timeSinceLastPost = now.getTimeInMillis() - newestPostTimestamp;
-            setIntervall(timeSinceLastPost);
+            /*
+             * the first poll (and the first after the session was renewed) catches up on the posts
+             * written meanwhile, maybe hours ago: their latency says nothing about the polling
+             */
+            mCaughtUp = posts == null || !posts.isEmpty();
+
+            /* dynamically alter the refresh rate; the watermark knows the newest stored post */
+            setIntervall(mWatermark.getTimestamp());
 
             setUpdatingNotification(false);
         }
     }
 
+    /**
+     * @return the given posts, without the ones stored by the last poll. The {@link Watermark}
+     * filters by the same fingerprints already, so this is only a cheap safety net behind it: a
+     * batch that is delivered again doesn't open a transaction at all, even if the watermark
+     * missed it.
+     */
+    private List<Post> withoutLastBatch(List<Post> posts) {
+        if (mLastBatch.isEmpty()) {
+            return posts;
+        }
+        List<Post> delta = new ArrayList<>(posts.size());
+        for (Post post : posts) {
+            if (!mLastBatch.contains(post.getFingerprint())) {
+                delta.add(post);
+            }
+        }
+        return delta;
+    }
+
+    /**
+     * Inserts the given posts (and their authors) into the database, in a single transaction.
+     *
+     * @return {@code true} if the posts were stored.
+     */
+    static boolean storePosts(Context context, List<Post> posts) {
+        boolean storeText = PreferenceManager.getDefaultSharedPreferences(context)
+                .getBoolean(PREF_STORE_MESSAGE_TEXT, true);
+        long build = PipelineStats.start();
+        ArrayList<ContentProviderOperation> ops = new ArrayList<>();
+        for (Post post : posts) {
+            if (post.getAuthor() != null) {
+                ops.add(
+                        ContentProviderOperation.newInsert(ChatDb.Authors.CONTENT_URI)
+                                .withValue(ChatDb.Authors.COLUMN_NAME_NAME,
+                                        post.getAuthor().getName())
+                                .withValue(ChatDb.Authors.COLUMN_NAME_TYPE,
+                                        post.getAuthor().getType().name())
+                                .withYieldAllowed(true)
+                                .build()
+                );
+            }
+            if (post.getMessage() != null) {
+                ops.add(
+                        ContentProviderOperation.newInsert(ChatDb.Messages.CONTENT_URI)
+                                .withValue(ChatDb.Messages.COLUMN_NAME_AUTHOR_NAME,
+                                        post.getAuthor() == null ? null : post.getAuthor().getName())
+                                .withValue(ChatDb.Messages.COLUMN_NAME_MESSAGE_HTML,
+                                        post.getMessage().getHtml())
+                                .withValue(ChatDb.Messages.COLUMN_NAME_MESSAGE_TEXT,
+                                        storeText ? post.getMessage().getText() : null)
+                                .withValue(ChatDb.Messages.COLUMN_NAME_TYPE,
+                                        post.getMessage().getType().name())
+                                .withValue(ChatDb.Messages.COLUMN_NAME_TIMESTAMP,
+                                        post.getDate().getTime())
+                                .withValue(ChatDb.Messages.COLUMN_NAME_FINGERPRINT,
+                                        post.getFingerprint())
+                                .withYieldAllowed(true)
+                                .build()
+                );
+            }
+        }
+        PipelineStats.end(PipelineStats.Stage.BUILD, build);
+        long apply = PipelineStats.start();
+        try {
+            context.getContentResolver().applyBatch(ChatDb.AUTHORITY, ops);
+            PipelineStats.end(PipelineStats.Stage.APPLY, apply);
+            return true;
+        } catch (RemoteException | OperationApplicationException e) {
+            Log.e(TAG, "Error: " + e.getMessage());
+            return false;
+        }
+    }
+
     /**
      * Sends a {@code Intent} with the only data included whether this Service is currently trying
      * to get new {@code Post}s from the server.
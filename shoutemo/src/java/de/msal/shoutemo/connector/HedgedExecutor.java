@@ -0,0 +1,121 @@
+/*
+ * Copyright 2016 Maximilian Salomon.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see http://www.gnu.org/licenses/.
+ */
+
+package de.msal.shoutemo.connector;
+
+import android.util.Log;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletionService;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Executes idempotent calls "hedged": if a call didn't finish after a given delay, the same call
+ * is started a second time, and whichever finishes first wins. A single slow request (e.g. a
+ * stalled socket) this way costs about the delay, instead of a whole timeout.
+ * <p/>
+ * Once a call succeeded, the other one is cancelled by interrupting its thread. A blocking socket
+ * read doesn't notice that, though: the losing call ends at its timeout at the latest.
+ * <p/>
+ * Without a hedge delay, the call simply runs on the calling thread.
+ */
+class HedgedExecutor {
+
+    private static final String TAG = "Shoutemo|HedgedExecutor";
+
+    private final ExecutorService executor = Executors.newCachedThreadPool(new ThreadFactory() {
+        @Override
+        public Thread newThread(Runnable r) {
+            Thread thread = new Thread(r, "Shoutemo hedged call");
+            thread.setDaemon(true);
+            return thread;
+        }
+    });
+
+    /**
+     * @param call       the call. Must be safe to execute twice at the same time.
+     * @param hedgeDelay time in ms after which the call is started a second time; -1 to never do
+     *                   so.
+     * @return the result of the first call to succeed.
+     * @throws IOException if all started calls failed.
+     */
+    <V> V execute(Callable<V> call, long hedgeDelay) throws IOException {
+        if (hedgeDelay < 0) { // nothing to hedge: no need to hand the call over to another thread
+            try {
+                return call.call();
+            } catch (IOException | RuntimeException e) {
+                throw e;
+            } catch (Exception e) {
+                throw new IOException(e);
+            }
+        }
+
+        CompletionService<V> calls = new ExecutorCompletionService<>(executor);
+        List<Future<V>> started = new ArrayList<>(2);
+        started.add(calls.submit(call));
+        int running = 1;
+        boolean hedged = false;
+        Throwable failure = null;
+        try {
+            while (running > 0) {
+                Future<V> done = hedged
+                        ? calls.take()
+                        : calls.poll(hedgeDelay, TimeUnit.MILLISECONDS);
+                if (done == null) { // too slow: start the same call again
+                    started.add(calls.submit(call));
+                    running++;
+                    hedged = true;
+                    Log.v(TAG, "No answer after " + hedgeDelay + "ms, hedging.");
+                    continue;
+                }
+                running--;
+                try {
+                    return done.get();
+                } catch (ExecutionException e) {
+                    failure = e.getCause();
+                    hedged = true; // failed calls are not hedged, but retried by the caller
+                }
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while waiting for a hedged call");
+        } finally {
+            for (Future<V> future : started) { // no-op for the finished ones
+                future.cancel(true);
+            }
+        }
+        if (failure instanceof IOException) {
+            throw (IOException) failure;
+        } else if (failure instanceof RuntimeException) {
+            throw (RuntimeException) failure;
+        } else if (failure instanceof Error) {
+            throw (Error) failure;
+        }
+        throw new IOException(failure);
+    }
+
+}
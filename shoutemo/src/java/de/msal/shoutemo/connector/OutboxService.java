@@ -0,0 +1,254 @@
+/*
+ * Copyright 2016 Maximilian Salomon.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see http://www.gnu.org/licenses/.
+ */
+
+package de.msal.shoutemo.connector;
+
+import android.accounts.Account;
+import android.accounts.AccountManager;
+import android.accounts.AuthenticatorException;
+import android.accounts.OperationCanceledException;
+import android.app.AlarmManager;
+import android.app.IntentService;
+import android.app.PendingIntent;
+import android.content.ContentUris;
+import android.content.ContentValues;
+import android.content.Context;
+import android.content.Intent;
+import android.database.Cursor;
+import android.os.Handler;
+import android.os.Looper;
+import android.os.SystemClock;
+import android.util.Log;
+import android.widget.Toast;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+import de.msal.shoutemo.R;
+import de.msal.shoutemo.activities.LoginActivity;
+import de.msal.shoutemo.authenticator.AccountAuthenticator;
+import de.msal.shoutemo.db.ChatDb;
+
+/**
+ * Sends the shouts waiting in the {@link ChatDb.Outbox outbox}, oldest first, over the pooled
+ * connections; the chunks of each shout at once. A shout that couldn't be sent stays in the outbox,
+ * together with the shouts after it, and is retried later with growing delays. Chunks of it that
+ * were posted already are not sent again. If the server rejected the session, a new one is
+ * established first. A shout that is rejected by the server, too long, or failed
+ * {@value #MAX_ATTEMPTS} times is dropped and the user is told.
+ */
+public class OutboxService extends IntentService {
+
+    private static final String TAG = "Shoutemo|OutboxService";
+    /* at most that many shouts are read from the outbox at once */
+    private static final int BATCH_SIZE = 10;
+    private static final long MIN_RETRY_DELAY = 5000; // 5s
+    private static final long MAX_RETRY_DELAY = 15 * 60 * 1000; // 15min
+    /* a shout that failed that often is dropped: after 9 retries, 5s to 15min (36min in total) */
+    private static final int MAX_ATTEMPTS = 10;
+
+    /* shows the toasts, as the service's own thread may be gone before they are */
+    private final Handler mHandler = new Handler(Looper.getMainLooper());
+
+    public OutboxService() {
+        super("OutboxService");
+    }
+
+    /**
+     * Puts the given message into the outbox and starts sending it. Doesn't wait for the network.
+     */
+    public static void enqueue(Context context, String message) {
+        ContentValues values = new ContentValues();
+        values.put(ChatDb.Outbox.COLUMN_NAME_MESSAGE, message);
+        values.put(ChatDb.Outbox.COLUMN_NAME_CREATED, System.currentTimeMillis());
+        context.getContentResolver().insert(ChatDb.Outbox.CONTENT_URI, values);
+        flush(context);
+    }
+
+    /**
+     * Starts sending all shouts waiting in the outbox, e.g. because the network is back.
+     */
+    public static void flush(Context context) {
+        context.startService(new Intent(context, OutboxService.class));
+    }
+
+    @Override
+    protected void onHandleIntent(Intent intent) {
+        String authtoken = getAuthtoken();
+        if (authtoken == null) { // the shouts stay, until the next flush
+            return;
+        }
+
+        boolean sent = false;
+        boolean renewed = false;
+        while (true) {
+            List<Long> ids = new ArrayList<>(BATCH_SIZE);
+            List<String> messages = new ArrayList<>(BATCH_SIZE);
+            List<Integer> attempts = new ArrayList<>(BATCH_SIZE);
+            List<String> progress = new ArrayList<>(BATCH_SIZE);
+            Cursor c = getContentResolver().query(ChatDb.Outbox.CONTENT_URI,
+                    new String[]{ChatDb.Outbox._ID, ChatDb.Outbox.COLUMN_NAME_MESSAGE,
+                            ChatDb.Outbox.COLUMN_NAME_ATTEMPTS, ChatDb.Outbox.COLUMN_NAME_PROGRESS},
+                    null, null, ChatDb.Outbox._ID + " ASC LIMIT " + BATCH_SIZE);
+            while (c.moveToNext()) {
+                ids.add(c.getLong(0));
+                messages.add(c.getString(1));
+                attempts.add(c.getInt(2));
+                progress.add(c.getString(3));
+            }
+            c.close();
+            if (ids.isEmpty()) {
+                break;
+            }
+
+            List<PostResult> results = post(authtoken, messages, progress);
+            /* keep the order: the shouts after a failed one stay, until it is sent or dropped */
+            int retryAttempts = 0;
+            boolean failed = false;
+            boolean unauthorized = false;
+            for (int i = 0; i < results.size(); i++) {
+                PostResult result = results.get(i);
+                if (failed) { // only remember which chunks went out, e.g. with the first attempt
+                    update(ids.get(i), attempts.get(i), result);
+                } else if (result != null && result.isSuccessful()) {
+                    delete(ids.get(i));
+                    sent = true;
+                } else if (result == null || result.isRejected()
+                        || attempts.get(i) + 1 >= MAX_ATTEMPTS) {
+                    Log.e(TAG, "Dropping a message that can't be sent: " + result);
+                    delete(ids.get(i));
+                    notifyNotSent(messages.get(i));
+                    failed = true;
+                } else if (result.isUnauthorized() && !renewed) { // not the shout's fault
+                    update(ids.get(i), attempts.get(i), result);
+                    unauthorized = true;
+                    failed = true;
+                } else {
+                    retryAttempts = attempts.get(i) + 1;
+                    update(ids.get(i), retryAttempts, result);
+                    failed = true;
+                }
+            }
+            if (unauthorized) { // log in again once, and go on with the new session
+                Log.v(TAG, "Session was rejected, renewing it.");
+                AccountManager.get(this).invalidateAuthToken(AccountAuthenticator.ACCOUNT_TYPE,
+                        authtoken);
+                authtoken = getAuthtoken();
+                renewed = true;
+                if (authtoken == null) { // the shouts stay, until the next flush
+                    break;
+                }
+            } else if (retryAttempts > 0) {
+                scheduleRetry(retryAttempts);
+                break;
+            }
+        }
+
+        if (sent) {
+            /* poll right away, so that a sent message is directly shown without big delay */
+            GetPostsService.pollNow();
+        }
+    }
+
+    /**
+     * @return the result of every message, up to the first one that failed; {@code null} for a
+     * message that can't be sent at all.
+     */
+    private static List<PostResult> post(String authtoken, List<String> messages,
+            List<String> progress) {
+        try {
+            return Connection.getDefault().post(authtoken, messages, progress);
+        } catch (IllegalArgumentException e) { // find the culprit, sending one message at a time
+            List<PostResult> results = new ArrayList<>(messages.size());
+            for (int i = 0; i < messages.size(); i++) {
+                try {
+                    PostResult result = Connection.getDefault().post(authtoken,
+                            messages.subList(i, i + 1), progress.subList(i, i + 1)).get(0);
+                    results.add(result);
+                    if (!result.isSuccessful()) {
+                        break;
+                    }
+                } catch (IllegalArgumentException tooLong) {
+                    Log.e(TAG, "A message can't be sent: " + tooLong.getMessage());
+                    results.add(null);
+                    break;
+                }
+            }
+            return results;
+        }
+    }
+
+    private void delete(long id) {
+        getContentResolver().delete(ContentUris.withAppendedId(ChatDb.Outbox.CONTENT_ID_URI_BASE,
+                id), null, null);
+    }
+
+    private void update(long id, int attempts, PostResult result) {
+        ContentValues values = new ContentValues();
+        values.put(ChatDb.Outbox.COLUMN_NAME_ATTEMPTS, attempts);
+        values.put(ChatDb.Outbox.COLUMN_NAME_PROGRESS, result.getProgress());
+        getContentResolver().update(ChatDb.Outbox.CONTENT_URI, values, ChatDb.Outbox._ID + " = ?",
+                new String[]{String.valueOf(id)});
+    }
+
+    /**
+     * Tells the user that the given message was dropped from the outbox.
+     */
+    private void notifyNotSent(String message) {
+        final String text = getString(R.string.input_not_sent, message);
+        mHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                Toast.makeText(getApplicationContext(), text, Toast.LENGTH_LONG).show();
+            }
+        });
+    }
+
+    /**
+     * Wakes this service up again later, without waking the device.
+     *
+     * @param attempts how often sending failed so far.
+     */
+    private void scheduleRetry(int attempts) {
+        long delay = Math.min(MAX_RETRY_DELAY, MIN_RETRY_DELAY << Math.min(attempts - 1, 20));
+        Log.v(TAG, "Retrying to send in " + delay + "ms.");
+        PendingIntent retry = PendingIntent.getService(this, 0,
+                new Intent(this, OutboxService.class), PendingIntent.FLAG_UPDATE_CURRENT);
+        AlarmManager alarmManager = (AlarmManager) getSystemService(Context.ALARM_SERVICE);
+        alarmManager.set(AlarmManager.ELAPSED_REALTIME, SystemClock.elapsedRealtime() + delay,
+                retry);
+    }
+
+    /* Assume here that a account is already created. Everything else wouldn't make sense. */
+    private String getAuthtoken() {
+        AccountManager accountManager = AccountManager.get(this);
+        Account[] acc = accountManager.getAccountsByType(AccountAuthenticator.ACCOUNT_TYPE);
+        if (acc.length == 0) {
+            Log.e(TAG, "No suitable account found, while trying to send a message.");
+            return null;
+        }
+        try {
+            return accountManager.blockingGetAuthToken(acc[0],
+                    LoginActivity.PARAM_AUTHTOKEN_TYPE, false);
+        } catch (OperationCanceledException | IOException | AuthenticatorException e) {
+            Log.e(TAG, "Getting the authtoken failed: " + e.getMessage());
+            return null;
+        }
+    }
+
+}
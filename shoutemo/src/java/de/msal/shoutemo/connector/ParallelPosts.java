@@ -0,0 +1,117 @@
+/*
+ * Copyright 2016 Maximilian Salomon.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see http://www.gnu.org/licenses/.
+ */
+
+package de.msal.shoutemo.connector;
+
+import org.jsoup.nodes.Element;
+
+import java.io.InterruptedIOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import de.msal.shoutemo.connector.model.Post;
+
+/**
+ * Creates the {@link Post}s of many "ys-post" elements on all cores. The elements are cut into
+ * small chunks, which the calling thread and the helper threads take one after another, so a
+ * thread that is done early simply takes more of them. The posts keep the order of the elements.
+ * <p/>
+ * Below {@value #MIN_PARALLEL} elements (a usual poll brings 50) the threads would cost more than
+ * they save, so the posts are created on the calling thread only.
+ * <p/>
+ * The document must not be modified while its elements are turned into posts.
+ */
+final class ParallelPosts {
+
+    private static final int MIN_PARALLEL = 100;
+    private static final int CHUNK_SIZE = 16;
+    private static final int CORES = Runtime.getRuntime().availableProcessors();
+
+    /* the calling thread does its share as well */
+    private static final ExecutorService HELPERS = Executors.newFixedThreadPool(
+            Math.max(1, CORES - 1), new ThreadFactory() {
+                @Override
+                public Thread newThread(Runnable r) {
+                    Thread thread = new Thread(r, "Shoutemo post parser");
+                    thread.setDaemon(true);
+                    return thread;
+                }
+            });
+
+    private ParallelPosts() {
+    }
+
+    /**
+     * @param elements the "ys-post" elements.
+     * @return the posts of the elements, in the same order.
+     * @throws InterruptedIOException if interrupted while waiting for the helper threads.
+     */
+    static List<Post> toPosts(List<Element> elements) throws InterruptedIOException {
+        return toPosts(elements, elements.size() < MIN_PARALLEL ? 1 : CORES);
+    }
+
+    /**
+     * @param threads how many threads (including the calling one) to use at most.
+     */
+    static List<Post> toPosts(final List<Element> elements, int threads)
+            throws InterruptedIOException {
+        final Post[] posts = new Post[elements.size()];
+        final AtomicInteger nextChunk = new AtomicInteger();
+        int chunks = (elements.size() + CHUNK_SIZE - 1) / CHUNK_SIZE;
+        Runnable worker = new Runnable() {
+            @Override
+            public void run() {
+                int chunk;
+                while ((chunk = nextChunk.getAndIncrement()) * CHUNK_SIZE < posts.length) {
+                    int end = Math.min(posts.length, (chunk + 1) * CHUNK_SIZE);
+                    for (int i = chunk * CHUNK_SIZE; i < end; i++) {
+                        posts[i] = new Post(elements.get(i));
+                    }
+                }
+            }
+        };
+
+        int helpers = Math.min(Math.min(threads, CORES) - 1, chunks - 1);
+        List<Future<?>> running = new ArrayList<>(Math.max(0, helpers));
+        for (int i = 0; i < helpers; i++) {
+            running.add(HELPERS.submit(worker));
+        }
+        worker.run();
+        try {
+            for (Future<?> future : running) {
+                future.get();
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while parsing posts");
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof RuntimeException) {
+                throw (RuntimeException) e.getCause();
+            }
+            throw new IllegalStateException(e.getCause());
+        }
+        return new ArrayList<>(Arrays.asList(posts));
+    }
+
+}
@@ -0,0 +1,294 @@
+/*
+ * Copyright 2016 Maximilian Salomon.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see http://www.gnu.org/licenses/.
+ */
+
+package de.msal.shoutemo.connector;
+
+import android.content.Context;
+
+import com.google.common.base.Charsets;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.EnumMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+
+import de.msal.shoutemo.connector.model.Post;
+
+/**
+ * Where the time of a poll goes: how long each stage of the way from the server to the screen
+ * took, measured with the monotonic {@link System#nanoTime()}. Each stage keeps the durations of
+ * its last {@value #WINDOW} runs, as a rolling histogram.
+ * <p/>
+ * The {@link Stage#END_TO_END end-to-end} latency of a new message is measured from its timestamp
+ * on the server to the moment its row is bound on the screen. As the server only tells the second
+ * and its clock is not the one of the device, this is accurate to a second at best. Posts fetched
+ * while catching up, e.g. on the first poll after the app was started, are left out.
+ */
+public final class PipelineStats {
+
+    /**
+     * The stages of a poll, in the order they happen.
+     */
+    public enum Stage {
+        /* the whole poll, from the request until the posts are stored */
+        POLL,
+        /* the request, until the whole body is received */
+        NETWORK,
+        /* creating the posts from the body */
+        PARSE,
+        /* building the database operations of the new posts */
+        BUILD,
+        /* applying the operations, in one transaction */
+        APPLY,
+        /* notifying the observers of the changed data */
+        NOTIFY,
+        /* from the notification until the re-queried posts were handed to the list */
+        RELOAD,
+        /* from the post on the server until its row is bound on the screen */
+        END_TO_END
+    }
+
+    /* upper bounds of the histogram buckets, in ms; the last bucket takes everything above */
+    private static final long[] BOUNDS = {1, 2, 5, 10, 20, 50, 100, 200, 500, 1000, 2000, 5000,
+            10000};
+    /* the histograms cover that many of the latest runs */
+    private static final int WINDOW = 200;
+    /* new posts waiting to be bound on the screen; older ones are forgotten */
+    private static final int MAX_PENDING = 100;
+    private static final long NANOS_PER_MILLI = 1000 * 1000;
+
+    private static final Map<Stage, StageStats> STAGES = new EnumMap<>(Stage.class);
+    /* the fingerprints and timestamps of stored posts that weren't bound on the screen yet */
+    private static final Map<Long, Long> PENDING = new LinkedHashMap<Long, Long>() {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<Long, Long> eldest) {
+            return size() > MAX_PENDING;
+        }
+    };
+    /* when the observers were notified the last time, 0 if the reload was measured already */
+    private static volatile long sNotifiedAt;
+
+    static {
+        for (Stage stage : Stage.values()) {
+            STAGES.put(stage, new StageStats(stage));
+        }
+    }
+
+    private PipelineStats() {
+    }
+
+    /**
+     * @return the start of a span, to be passed to {@link #end(Stage, long)}.
+     */
+    public static long start() {
+        return System.nanoTime();
+    }
+
+    /**
+     * Records the span of the given stage, from the given start until now.
+     */
+    public static void end(Stage stage, long start) {
+        STAGES.get(stage).record(System.nanoTime() - start);
+    }
+
+    /**
+     * @return the durations of the given stage.
+     */
+    public static StageStats get(Stage stage) {
+        return STAGES.get(stage);
+    }
+
+    /**
+     * Notes that the given posts were stored, to measure their way to the screen. Only posts newer
+     * than the given timestamp are measured: the others were missed by earlier polls, e.g. while
+     * the app was closed, and would swamp the histogram with hours.
+     *
+     * @param newest the timestamp of the newest post stored before.
+     */
+    static void onStored(List<Post> posts, long newest) {
+        synchronized (PENDING) {
+            for (Post post : posts) {
+                if (post.getDate().getTime() > newest) {
+                    PENDING.put(post.getFingerprint(), post.getDate().getTime());
+                }
+            }
+        }
+    }
+
+    /**
+     * Notes that the observers of the posts are about to be notified.
+     */
+    public static void onNotified() {
+        sNotifiedAt = System.nanoTime();
+    }
+
+    /**
+     * Notes that the posts were re-queried and handed to the list, after a notification.
+     */
+    public static void onReloaded() {
+        long notifiedAt = sNotifiedAt;
+        if (notifiedAt != 0) {
+            sNotifiedAt = 0;
+            end(Stage.RELOAD, notifiedAt);
+        }
+    }
+
+    /**
+     * Notes that the given post is bound on the screen. Records its end-to-end latency, if it was
+     * stored recently.
+     */
+    public static void onBound(Post post) {
+        Long timestamp;
+        synchronized (PENDING) {
+            if (PENDING.isEmpty()) {
+                return;
+            }
+            timestamp = PENDING.remove(post.getFingerprint());
+        }
+        if (timestamp != null) {
+            long latency = Math.max(0, System.currentTimeMillis() - timestamp);
+            STAGES.get(Stage.END_TO_END).record(latency * NANOS_PER_MILLI);
+        }
+    }
+
+    /**
+     * @return the upper bounds of the histogram's buckets, in ms. The counts have one more bucket,
+     * for everything above the last bound.
+     */
+    public static long[] getBounds() {
+        return BOUNDS.clone();
+    }
+
+    /**
+     * Writes the histograms of all stages to a text file in the app's (external, if available)
+     * files directory.
+     *
+     * @return the written file.
+     */
+    public static File dump(Context context) throws IOException {
+        File dir = context.getExternalFilesDir(null);
+        if (dir == null) {
+            dir = context.getFilesDir();
+        }
+        File file = new File(dir, "pipeline-stats.txt");
+        Writer writer = new OutputStreamWriter(new FileOutputStream(file), Charsets.UTF_8);
+        try {
+            writer.write("# " + new Date() + "\n");
+            writer.write("# stage\truns\tp50 ms\tp95 ms\tmax ms"
+                    + "\thistogram (upper bound ms:count)\n");
+            for (StageStats stats : STAGES.values()) {
+                writer.write(stats.toString());
+                writer.write('\n');
+            }
+        } finally {
+            writer.close();
+        }
+        return file;
+    }
+
+    /**
+     * The durations of the last runs of one stage.
+     */
+    public static final class StageStats {
+
+        private final Stage stage;
+        private final long[] window = new long[WINDOW];
+        private long count;
+
+        StageStats(Stage stage) {
+            this.stage = stage;
+        }
+
+        synchronized void record(long nanos) {
+            window[(int) (count++ % WINDOW)] = nanos;
+        }
+
+        public Stage getStage() {
+            return stage;
+        }
+
+        /**
+         * @return how often the stage ran since the app was started.
+         */
+        public synchronized long getCount() {
+            return count;
+        }
+
+        /**
+         * @param percentile the percentile to compute, e.g. 95.
+         * @return the given percentile of the latest durations in ms, or -1 if there are none.
+         */
+        public synchronized double getPercentile(double percentile) {
+            int size = (int) Math.min(count, WINDOW);
+            if (size == 0) {
+                return -1;
+            }
+            long[] sorted = Arrays.copyOf(window, size);
+            Arrays.sort(sorted);
+            int index = (int) Math.ceil(percentile / 100 * size) - 1;
+            return sorted[Math.max(0, Math.min(size - 1, index))] / (double) NANOS_PER_MILLI;
+        }
+
+        /**
+         * @return the number of the latest durations per bucket.
+         * @see PipelineStats#getBounds()
+         */
+        public synchronized long[] getCounts() {
+            long[] counts = new long[BOUNDS.length + 1];
+            for (int i = 0; i < Math.min(count, WINDOW); i++) {
+                int bucket = 0;
+                while (bucket < BOUNDS.length && window[i] > BOUNDS[bucket] * NANOS_PER_MILLI) {
+                    bucket++;
+                }
+                counts[bucket]++;
+            }
+            return counts;
+        }
+
+        /**
+         * @return the histogram, e.g. {@code "<=1:3 <=2:12 ... >10000:0"}, leaving out empty
+         * buckets.
+         */
+        public String getHistogram() {
+            long[] counts = getCounts();
+            StringBuilder histogram = new StringBuilder();
+            for (int i = 0; i < counts.length; i++) {
+                if (counts[i] > 0) {
+                    histogram.append(i < BOUNDS.length ? "<=" + BOUNDS[i] : ">" + BOUNDS[i - 1])
+                            .append(':').append(counts[i]).append(' ');
+                }
+            }
+            return histogram.toString().trim();
+        }
+
+        @Override
+        public String toString() {
+            return String.format(Locale.US, "%s\t%d\t%.1f\t%.1f\t%.1f\t%s", stage, getCount(),
+                    getPercentile(50), getPercentile(95), getPercentile(100), getHistogram());
+        }
+
+    }
+
+}
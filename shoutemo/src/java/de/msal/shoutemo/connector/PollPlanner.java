@@ -0,0 +1,218 @@
+/*
+ * Copyright 2016 Maximilian Salomon.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see http://www.gnu.org/licenses/.
+ */
+
+package de.msal.shoutemo.connector;
+
+import android.content.ContentResolver;
+import android.database.Cursor;
+
+import java.util.TimeZone;
+
+import de.msal.shoutemo.db.ChatDb;
+
+/**
+ * Plans the interval between two polls from how busy the shoutbox usually is at this hour of the
+ * week. The rates are learned from the timestamps of the stored messages.
+ * <p/>
+ * If messages arrive at a rate {@code r} and the shoutbox is polled every {@code t} ms, a message
+ * waits {@code t/2} on average until it is fetched. The interval of each hour of the week is chosen
+ * as {@code t = c / sqrt(r)}: this is the plan with the fewest polls for which the messages of a
+ * whole week wait {@value #TARGET_DELAY}ms on average. Busy hours are polled often, dead ones
+ * rarely.
+ * <p/>
+ * Conversations come in bursts, which the hourly rates don't see. So for {@value #BURST}ms after
+ * the newest post, the shortest interval is used regardless of the hour.
+ * <p/>
+ * History spans longer than {@value #MAX_GAP}ms without a message are left out when learning: the
+ * app most likely wasn't polling then, so nothing is known about these hours.
+ */
+public final class PollPlanner {
+
+    /* the average time a message should wait until it is fetched */
+    static final long TARGET_DELAY = 3000; // 3s
+    static final long MIN_INTERVAL = 2500; // 2.5s
+    static final long MAX_INTERVAL = 60 * 1000; // 1min
+    /* replies to a post are likely to follow within that time */
+    private static final long BURST = 30 * 1000; // 30s
+    /* the baseline: the interval grows from 2.5s to 15s while the newest post gets older */
+    private static final long BASELINE_MAX_INTERVAL = 15000; // 15s
+    private static final long QUIET_AFTER = 2 * 60 * 1000; // 2min
+    private static final long SILENT_AFTER = 10 * 60 * 1000; // 10min
+
+    private static final long HOUR = 60 * 60 * 1000;
+    private static final int HOURS_PER_WEEK = 7 * 24;
+    /* longer spans without a message are assumed to be unobserved */
+    private static final long MAX_GAP = 2 * HOUR;
+    /* less history than that gives no useful rates */
+    private static final int MIN_MESSAGES = 200;
+    private static final long MIN_OBSERVED = 24 * HOUR;
+    /* each hour of the week starts with that much observed time at the average rate */
+    private static final long PRIOR_OBSERVED = HOUR;
+    /* how much history is learned from */
+    private static final long HISTORY = 8 * 7 * 24 * HOUR; // 8 weeks
+
+    /**
+     * Plans by the age of the newest post only, without any history.
+     */
+    public static final PollPlanner BASELINE = new PollPlanner(null, TimeZone.getDefault());
+
+    /* the planned interval of each hour of the week (monday 0:00 first); null for the baseline */
+    private final long[] intervals;
+    private final TimeZone timeZone;
+
+    private PollPlanner(long[] intervals, TimeZone timeZone) {
+        this.intervals = intervals;
+        this.timeZone = timeZone;
+    }
+
+    /**
+     * @return a planner learned from the messages of the last weeks in the database, or the {@link
+     * #BASELINE} if there are too few of them.
+     */
+    static PollPlanner load(ContentResolver resolver) {
+        return learn(loadHistory(resolver), TimeZone.getDefault(), TARGET_DELAY);
+    }
+
+    /**
+     * @return the timestamps of the messages of the last weeks in the database, oldest first.
+     */
+    public static long[] loadHistory(ContentResolver resolver) {
+        Cursor c = resolver.query(ChatDb.Messages.CONTENT_URI,
+                new String[]{ChatDb.Messages.COLUMN_NAME_TIMESTAMP},
+                ChatDb.Messages.COLUMN_NAME_TIMESTAMP + " > ?",
+                new String[]{String.valueOf(System.currentTimeMillis() - HISTORY)},
+                ChatDb.Messages.COLUMN_NAME_TIMESTAMP + " ASC");
+        if (c == null) {
+            return new long[0];
+        }
+        long[] timestamps = new long[c.getCount()];
+        for (int i = 0; c.moveToNext(); i++) {
+            timestamps[i] = c.getLong(0);
+        }
+        c.close();
+        return timestamps;
+    }
+
+    /**
+     * @param timestamps  the timestamps of the messages to learn from, oldest first.
+     * @param timeZone    the time zone the hours of the week are counted in.
+     * @param targetDelay the time a message should wait on average until it is fetched, in ms.
+     * @return a planner learned from the given messages, or the {@link #BASELINE} if there are too
+     * few of them.
+     */
+    public static PollPlanner learn(long[] timestamps, TimeZone timeZone, long targetDelay) {
+        long[] counts = new long[HOURS_PER_WEEK];
+        long[] observed = new long[HOURS_PER_WEEK];
+        long totalObserved = 0;
+        int messages = 0;
+        for (int i = 1; i < timestamps.length; i++) {
+            long from = timestamps[i - 1];
+            long to = timestamps[i];
+            if (to - from > MAX_GAP) { // not observed: neither the gap, nor its end
+                continue;
+            }
+            counts[hourOfWeek(to, timeZone)]++;
+            messages++;
+            totalObserved += to - from;
+            /* spread the span over the hours it touches */
+            while (from < to) {
+                long local = from + timeZone.getOffset(from);
+                long end = Math.min(to, from + HOUR - floorMod(local, HOUR));
+                observed[hourOfWeek(from, timeZone)] += end - from;
+                from = end;
+            }
+        }
+        if (messages < MIN_MESSAGES || totalObserved < MIN_OBSERVED) {
+            return BASELINE;
+        }
+
+        /* rates in messages per hour, pulled towards the average where little was observed */
+        double average = messages * (double) HOUR / totalObserved;
+        double[] rates = new double[HOURS_PER_WEEK];
+        double sumRates = 0, sumRoots = 0;
+        for (int h = 0; h < HOURS_PER_WEEK; h++) {
+            rates[h] = (counts[h] + average * PRIOR_OBSERVED / HOUR)
+                    / ((observed[h] + PRIOR_OBSERVED) / (double) HOUR);
+            sumRates += rates[h];
+            sumRoots += Math.sqrt(rates[h]);
+        }
+        /* t = c / sqrt(r); the week's average delay sum(r * t/2) / sum(r) is the target for: */
+        double c = 2 * targetDelay * sumRates / sumRoots;
+        long[] intervals = new long[HOURS_PER_WEEK];
+        for (int h = 0; h < HOURS_PER_WEEK; h++) {
+            double interval = rates[h] > 0 ? c / Math.sqrt(rates[h]) : MAX_INTERVAL;
+            intervals[h] = Math.max(MIN_INTERVAL, Math.min(MAX_INTERVAL, Math.round(interval)));
+        }
+        return new PollPlanner(intervals, timeZone);
+    }
+
+    /**
+     * @param now        the current time.
+     * @param newestPost the timestamp of the newest known post, or {@link Long#MIN_VALUE} if none
+     *                   is known.
+     * @return the time to wait until the next poll, in ms.
+     */
+    public long nextInterval(long now, long newestPost) {
+        long sinceNewest = newestPost == Long.MIN_VALUE ? Long.MAX_VALUE : now - newestPost;
+        long quiet = Math.max(0, Math.min(SILENT_AFTER, sinceNewest) - QUIET_AFTER);
+        long baseline = MIN_INTERVAL + (BASELINE_MAX_INTERVAL - MIN_INTERVAL) * quiet
+                / (SILENT_AFTER - QUIET_AFTER);
+        if (intervals == null) {
+            return baseline;
+        }
+        return sinceNewest < BURST ? MIN_INTERVAL : intervals[hourOfWeek(now, timeZone)];
+    }
+
+    /**
+     * @return whether the intervals were learned from history; otherwise this is the {@link
+     * #BASELINE}.
+     */
+    public boolean isLearned() {
+        return intervals != null;
+    }
+
+    /**
+     * @return the hour of the week of the given time, from 0 (monday 0:00) to 167.
+     */
+    static int hourOfWeek(long time, TimeZone timeZone) {
+        long hours = floorDiv(time + timeZone.getOffset(time), HOUR);
+        return (int) floorMod(hours + 3 * 24, HOURS_PER_WEEK); // the epoch was a thursday
+    }
+
+    private static long floorDiv(long x, long y) {
+        long q = x / y;
+        return (x % y != 0 && (x ^ y) < 0) ? q - 1 : q;
+    }
+
+    private static long floorMod(long x, long y) {
+        return x - floorDiv(x, y) * y;
+    }
+
+    @Override
+    public String toString() {
+        if (intervals == null) {
+            return "PollPlanner{baseline}";
+        }
+        long min = Long.MAX_VALUE, max = 0;
+        for (long interval : intervals) {
+            min = Math.min(min, interval);
+            max = Math.max(max, interval);
+        }
+        return "PollPlanner{intervals=" + min + ".." + max + "ms}";
+    }
+
+}
@@ -0,0 +1,226 @@
+/*
+ * Copyright 2016 Maximilian Salomon.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see http://www.gnu.org/licenses/.
+ */
+
+package de.msal.shoutemo.connector;
+
+import android.os.SystemClock;
+import android.util.Log;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Runs a poll over and over again, on a single thread that lives as long as the scheduler. Each
+ * poll tells how long to wait until the next one, so the interval can change from poll to poll
+ * without restarting anything. At most one poll is in flight: the next one is only scheduled after
+ * the current one is done.
+ * <p/>
+ * Remembers the last {@value #TIMELINE_SIZE} polls, see {@link #getTimeline()}.
+ */
+public final class PollScheduler {
+
+    /**
+     * A single poll.
+     */
+    interface Poll {
+        /**
+         * @return the delay until the next poll, in ms.
+         */
+        long run();
+    }
+
+    /**
+     * A finished poll.
+     */
+    public static final class Run {
+
+        private final long startedAt;
+        private final long duration;
+        private final long lateness;
+        private final long nextDelay;
+
+        Run(long startedAt, long duration, long lateness, long nextDelay) {
+            this.startedAt = startedAt;
+            this.duration = duration;
+            this.lateness = lateness;
+            this.nextDelay = nextDelay;
+        }
+
+        /**
+         * @return when the poll started, in ms since the epoch.
+         */
+        public long getStartedAt() {
+            return startedAt;
+        }
+
+        /**
+         * @return how long the poll took, in ms.
+         */
+        public long getDuration() {
+            return duration;
+        }
+
+        /**
+         * @return how much later than planned the poll started, in ms.
+         */
+        public long getLateness() {
+            return lateness;
+        }
+
+        /**
+         * @return the delay the poll asked for until the next one, in ms.
+         */
+        public long getNextDelay() {
+            return nextDelay;
+        }
+
+        @Override
+        public String toString() {
+            return "Run{startedAt=" + startedAt + ", duration=" + duration + "ms, lateness="
+                    + lateness + "ms, nextDelay=" + nextDelay + "ms}";
+        }
+
+    }
+
+    private static final String TAG = "Shoutemo|PollScheduler";
+    private static final int TIMELINE_SIZE = 50;
+    /* the delay after a poll that crashed */
+    private static final long ERROR_DELAY = 15000; // 15s
+
+    private final ScheduledExecutorService executor = Executors.newSingleThreadScheduledExecutor(
+            new ThreadFactory() {
+                @Override
+                public Thread newThread(Runnable r) {
+                    Thread thread = new Thread(r, "Shoutemo poller");
+                    thread.setDaemon(true);
+                    return thread;
+                }
+            });
+    private final Poll poll;
+    private final Deque<Run> timeline = new ArrayDeque<>(TIMELINE_SIZE);
+    private ScheduledFuture<?> next;
+    /* in elapsed realtime */
+    private long nextAt;
+    /* counts the scheduled polls; a poll that isn't the last scheduled one doesn't run */
+    private long generation;
+    private boolean started;
+    private boolean running;
+
+    PollScheduler(Poll poll) {
+        this.poll = poll;
+    }
+
+    /**
+     * Starts polling right away. Does nothing if polling was started already.
+     */
+    synchronized void start() {
+        if (!started) {
+            started = true;
+            schedule(0);
+        }
+    }
+
+    /**
+     * Polls right away, instead of waiting for the next poll. Does nothing if a poll is running at
+     * the moment, or polling wasn't started yet.
+     */
+    synchronized void pollNow() {
+        if (started && !running) {
+            next.cancel(false);
+            schedule(0);
+        }
+    }
+
+    /**
+     * Stops polling for good. A poll running at the moment still finishes.
+     */
+    synchronized void shutdown() {
+        if (next != null) {
+            next.cancel(false);
+        }
+        executor.shutdown();
+    }
+
+    /**
+     * @return the last polls, oldest first.
+     */
+    public synchronized List<Run> getTimeline() {
+        return new ArrayList<>(timeline);
+    }
+
+    /**
+     * @return time until the next poll in ms, 0 if it is due or running, or -1 if none is planned.
+     */
+    public synchronized long getTimeUntilNextPoll() {
+        if (!started || executor.isShutdown()) {
+            return -1;
+        }
+        return running ? 0 : Math.max(0, nextAt - SystemClock.elapsedRealtime());
+    }
+
+    private synchronized void schedule(long delay) {
+        if (executor.isShutdown()) {
+            return;
+        }
+        final long scheduled = ++generation;
+        nextAt = SystemClock.elapsedRealtime() + delay;
+        next = executor.schedule(new Runnable() {
+            @Override
+            public void run() {
+                runPoll(scheduled);
+            }
+        }, delay, TimeUnit.MILLISECONDS);
+    }
+
+    private void runPoll(long scheduled) {
+        long plannedAt;
+        synchronized (this) {
+            if (scheduled != generation) { // replaced by pollNow() just before it started
+                return;
+            }
+            running = true;
+            plannedAt = nextAt;
+        }
+        long startedAt = System.currentTimeMillis();
+        long start = SystemClock.elapsedRealtime();
+        long delay = ERROR_DELAY;
+        try {
+            delay = poll.run();
+        } catch (RuntimeException e) {
+            Log.e(TAG, "Poll failed", e);
+        } finally {
+            long end = SystemClock.elapsedRealtime();
+            synchronized (this) {
+                running = false;
+                if (timeline.size() == TIMELINE_SIZE) {
+                    timeline.removeFirst();
+                }
+                timeline.addLast(new Run(startedAt, end - start, Math.max(0, start - plannedAt),
+                        delay));
+                schedule(delay);
+            }
+        }
+    }
+
+}
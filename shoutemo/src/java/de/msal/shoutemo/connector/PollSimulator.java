@@ -0,0 +1,153 @@
+/*
+ * Copyright 2016 Maximilian Salomon.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see http://www.gnu.org/licenses/.
+ */
+
+package de.msal.shoutemo.connector;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.TimeZone;
+
+/**
+ * Replays recorded messages against a {@link PollPlanner}, without any network: the polls happen at
+ * the planned intervals, and each message is fetched by the first poll after it was posted.
+ * <p/>
+ * Just like when learning, spans without a message longer than two hours count as times the app
+ * wasn't running: the replay pauses, and starts over at the next message (which isn't counted).
+ */
+public final class PollSimulator {
+
+    private static final long HOUR = 60 * 60 * 1000;
+    private static final long MAX_GAP = 2 * HOUR;
+
+    /**
+     * The outcome of a replay.
+     */
+    public static final class Report {
+
+        private final int polls;
+        private final long duration;
+        private final long[] delays;
+
+        Report(int polls, long duration, long[] delays) {
+            this.polls = polls;
+            this.duration = duration;
+            this.delays = delays;
+            Arrays.sort(this.delays);
+        }
+
+        /**
+         * @return the polls per hour of replayed time.
+         */
+        public double getRequestsPerHour() {
+            return duration == 0 ? 0 : polls * (double) HOUR / duration;
+        }
+
+        /**
+         * @return the median time a message waited until it was fetched, in ms.
+         */
+        public long getMedianDelay() {
+            return percentile(50);
+        }
+
+        /**
+         * @return the time 95% of the messages waited at most until they were fetched, in ms.
+         */
+        public long getP95Delay() {
+            return percentile(95);
+        }
+
+        /**
+         * @return the number of messages replayed.
+         */
+        public int getMessages() {
+            return delays.length;
+        }
+
+        private long percentile(int p) {
+            if (delays.length == 0) {
+                return 0;
+            }
+            return delays[(int) Math.min(delays.length - 1, (long) delays.length * p / 100)];
+        }
+
+        @Override
+        public String toString() {
+            return String.format("%.0f requests/h, delay median %dms, p95 %dms (%d messages)",
+                    getRequestsPerHour(), getMedianDelay(), getP95Delay(), getMessages());
+        }
+
+    }
+
+    private PollSimulator() {
+    }
+
+    /**
+     * @param timestamps the timestamps of the recorded messages, oldest first.
+     * @param planner    plans the polls.
+     * @return how many polls were needed, and how long the messages waited.
+     */
+    public static Report replay(long[] timestamps, PollPlanner planner) {
+        long[] delays = new long[timestamps.length];
+        int messages = 0, polls = 0;
+        long duration = 0;
+        int i = 0;
+        while (i < timestamps.length) {
+            /* (re)start at a message: it is known right away, as if the app was just opened */
+            long start = timestamps[i];
+            long newest = timestamps[i++];
+            long now = start;
+            while (i < timestamps.length && timestamps[i] - newest <= MAX_GAP) {
+                now += planner.nextInterval(now, newest);
+                polls++;
+                while (i < timestamps.length && timestamps[i] <= now) {
+                    delays[messages++] = now - timestamps[i];
+                    newest = timestamps[i++];
+                }
+            }
+            duration += now - start;
+        }
+        return new Report(polls, duration, Arrays.copyOf(delays, messages));
+    }
+
+    /**
+     * Learns planners from the older three quarters of the given history, then replays the newest
+     * quarter with the {@link PollPlanner#BASELINE} and with each of them.
+     *
+     * @param timestamps   the timestamps of the recorded messages, oldest first.
+     * @param timeZone     the time zone the hours of the week are counted in.
+     * @param targetDelays the target delays to learn a planner for, in ms.
+     * @return the report of the baseline, followed by the ones of the learned planners; or only the
+     * one of the baseline, if there is too little history to learn from.
+     */
+    public static Report[] compare(long[] timestamps, TimeZone timeZone, long... targetDelays) {
+        int split = timestamps.length * 3 / 4;
+        long[] learned = Arrays.copyOf(timestamps, split);
+        long[] replayed = Arrays.copyOfRange(timestamps, split, timestamps.length);
+        List<Report> reports = new ArrayList<>(targetDelays.length + 1);
+        reports.add(replay(replayed, PollPlanner.BASELINE));
+        for (long targetDelay : targetDelays) {
+            PollPlanner planner = PollPlanner.learn(learned, timeZone, targetDelay);
+            if (!planner.isLearned()) {
+                break;
+            }
+            reports.add(replay(replayed, planner));
+        }
+        return reports.toArray(new Report[reports.size()]);
+    }
+
+}
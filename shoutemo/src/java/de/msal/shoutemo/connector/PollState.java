@@ -0,0 +1,141 @@
+/*
+ * Copyright 2016 Maximilian Salomon.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see http://www.gnu.org/licenses/.
+ */
+
+package de.msal.shoutemo.connector;
+
+import com.google.common.hash.HashCode;
+
+/**
+ * Remembers what the shoutbox looked like at the last poll: its cache validators ({@code ETag},
+ * {@code Last-Modified}) and a fingerprint of the raw response body. Used by {@link
+ * Connection#getPosts(String, PollState, Watermark)} to skip all work, if nothing changed in the
+ * meantime.
+ * <p/>
+ * A changed body only becomes the one to compare against once its posts were stored (see {@link
+ * #commit()}): if storing fails, the next poll must not skip them as unchanged.
+ */
+public class PollState {
+
+    private String eTag;
+    private String lastModified;
+    private HashCode fingerprint;
+    /* the validators of the last changed body, until its posts are stored */
+    private String pendingETag;
+    private String pendingLastModified;
+    private HashCode pendingFingerprint;
+    private long pollCount;
+    private long notModifiedCount;
+    private long unchangedCount;
+
+    synchronized String getETag() {
+        return eTag;
+    }
+
+    synchronized String getLastModified() {
+        return lastModified;
+    }
+
+    /**
+     * Called when the server answered {@code 304 Not Modified}.
+     */
+    synchronized void onNotModified() {
+        pollCount++;
+        notModifiedCount++;
+    }
+
+    /**
+     * Called when a complete body was received.
+     *
+     * @return {@code true} if the body is identical to the one of the last poll.
+     */
+    synchronized boolean isUnchanged(HashCode fingerprint) {
+        pollCount++;
+        if (fingerprint.equals(this.fingerprint)) {
+            unchangedCount++;
+            return true;
+        }
+        return false;
+    }
+
+    /**
+     * Called after a changed body was parsed successfully. The next poll is only compared against
+     * it after a {@link #commit()}.
+     */
+    synchronized void update(HashCode fingerprint, String eTag, String lastModified) {
+        pendingFingerprint = fingerprint;
+        pendingETag = eTag;
+        pendingLastModified = lastModified;
+    }
+
+    /**
+     * Called after the posts of the last poll were stored (or there were none to store), so that
+     * the next poll is compared against it. Does nothing if the last poll brought no changed body.
+     */
+    synchronized void commit() {
+        if (pendingFingerprint == null) {
+            return;
+        }
+        fingerprint = pendingFingerprint;
+        eTag = pendingETag;
+        lastModified = pendingLastModified;
+        pendingFingerprint = null;
+        pendingETag = null;
+        pendingLastModified = null;
+    }
+
+    /**
+     * Forgets the last poll, so that the next one is parsed in any case.
+     */
+    synchronized void reset() {
+        fingerprint = null;
+        eTag = null;
+        lastModified = null;
+        pendingFingerprint = null;
+        pendingETag = null;
+        pendingLastModified = null;
+    }
+
+    /**
+     * @return the number of polls done with this state.
+     */
+    public synchronized long getPollCount() {
+        return pollCount;
+    }
+
+    /**
+     * @return the number of polls that were short-circuited, either by the server answering {@code
+     * 304 Not Modified} or by receiving the very same body again.
+     */
+    public synchronized long getShortCircuitCount() {
+        return notModifiedCount + unchangedCount;
+    }
+
+    /**
+     * @return the number of polls answered with {@code 304 Not Modified}.
+     */
+    public synchronized long getNotModifiedCount() {
+        return notModifiedCount;
+    }
+
+    @Override
+    public synchronized String toString() {
+        return "PollState{polls=" + pollCount
+                + ", notModified=" + notModifiedCount
+                + ", unchanged=" + unchangedCount + "}";
+    }
+
+}
@@ -0,0 +1,149 @@
+/*
+ * Copyright 2016 Maximilian Salomon.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see http://www.gnu.org/licenses/.
+ */
+
+package de.msal.shoutemo.connector;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * The outcome of sending a message via {@link ShoutboxTransport#post(String, String)}: the chunks
+ * the message was split into, and the http status code the server answered for each of them.
+ */
+public class PostResult {
+
+    /**
+     * Status of a chunk that wasn't sent, or is known not to have been posted: it is safe to send
+     * it (again).
+     */
+    public static final int NOT_SENT = -1;
+    /**
+     * Status of a chunk that was sent, but the connection broke before its response arrived. The
+     * server may have posted it already, so it must not be sent again blindly.
+     */
+    public static final int NO_ANSWER = -2;
+
+    /* the chars of the progress, for a chunk that was posted, got no answer, or is still to send */
+    private static final char POSTED = '+';
+    private static final char UNANSWERED = '?';
+    private static final char PENDING = '-';
+
+    private final List<String> chunks;
+    private final int[] statusCodes;
+
+    PostResult(List<String> chunks) {
+        this.chunks = Collections.unmodifiableList(new ArrayList<>(chunks));
+        this.statusCodes = new int[chunks.size()];
+        Arrays.fill(statusCodes, NOT_SENT);
+    }
+
+    /**
+     * @param progress the progress of an earlier attempt to send the same chunks, as given by
+     *                 {@link #getProgress()}, or {@code null} if they weren't sent yet.
+     */
+    PostResult(List<String> chunks, String progress) {
+        this(chunks);
+        if (progress != null && progress.length() == statusCodes.length) {
+            for (int i = 0; i < statusCodes.length; i++) {
+                if (progress.charAt(i) == POSTED) {
+                    statusCodes[i] = 200;
+                } else if (progress.charAt(i) == UNANSWERED) {
+                    statusCodes[i] = NO_ANSWER;
+                }
+            }
+        }
+    }
+
+    void setStatusCode(int chunk, int statusCode) {
+        statusCodes[chunk] = statusCode;
+    }
+
+    public List<String> getChunks() {
+        return chunks;
+    }
+
+    /**
+     * @return the http status code of the given chunk, {@link #NOT_SENT} or {@link #NO_ANSWER}.
+     */
+    public int getStatusCode(int chunk) {
+        return statusCodes[chunk];
+    }
+
+    /**
+     * @return {@code true} if all chunks were answered with 200 (OK).
+     */
+    public boolean isSuccessful() {
+        for (int statusCode : statusCodes) {
+            if (statusCode != 200) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * @return {@code true} if a chunk was rejected by the server for good (4xx), so that sending it
+     * again is pointless. A rejected session doesn't count, see {@link #isUnauthorized()}.
+     */
+    public boolean isRejected() {
+        for (int statusCode : statusCodes) {
+            if (statusCode >= 400 && statusCode < 500 && !isUnauthorized(statusCode)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * @return {@code true} if the server didn't accept the session for a chunk: it redirected to
+     * the login (3xx), or answered 401 or 403. Sending it again needs a new session.
+     */
+    public boolean isUnauthorized() {
+        for (int statusCode : statusCodes) {
+            if (isUnauthorized(statusCode)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static boolean isUnauthorized(int statusCode) {
+        return statusCode >= 300 && statusCode < 400 || statusCode == 401 || statusCode == 403;
+    }
+
+    /**
+     * @return which chunks were posted already, which got no answer and which are still to send,
+     * e.g. {@code "+?-"}; to continue sending later without posting a chunk twice.
+     */
+    public String getProgress() {
+        StringBuilder progress = new StringBuilder(statusCodes.length);
+        for (int statusCode : statusCodes) {
+            progress.append(statusCode == 200 ? POSTED
+                    : statusCode == NO_ANSWER ? UNANSWERED : PENDING);
+        }
+        return progress.toString();
+    }
+
+    @Override
+    public String toString() {
+        return "PostResult{chunks=" + chunks.size()
+                + ", statusCodes=" + Arrays.toString(statusCodes) + "}";
+    }
+
+}
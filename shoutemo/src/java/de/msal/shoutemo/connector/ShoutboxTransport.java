@@ -0,0 +1,116 @@
+/*
+ * Copyright 2016 Maximilian Salomon.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see http://www.gnu.org/licenses/.
+ */
+
+package de.msal.shoutemo.connector;
+
+import java.io.IOException;
+import java.util.List;
+import java.util.Map;
+
+import de.msal.shoutemo.connector.http.ConnectionPool;
+import de.msal.shoutemo.connector.http.EndpointStats;
+import de.msal.shoutemo.connector.model.Author;
+import de.msal.shoutemo.connector.model.Post;
+
+/**
+ * Everything the app needs from the shoutbox server. The implementation in use is available via
+ * {@link Connection#getDefault()} and can be replaced, e.g. to talk to a local {@link
+ * de.msal.shoutemo.connector.fixture.FixtureServer} instead of autemo.com.
+ *
+ * @see Connection
+ */
+public interface ShoutboxTransport {
+
+    /**
+     * Checks if the given nickname and password combination can successfully authenticate on the
+     * server and receive messages from it.
+     *
+     * @param nick     the username. On autemo that is the email address which is registered.
+     * @param password the password of that account.
+     * @return {@code true} if the attempt was successful, else {@code false}.
+     */
+    boolean isCredentialsCorrect(String nick, String password) throws IOException;
+
+    /**
+     * @param nick     the username. On autemo that is the email address which is registered.
+     * @param password the users password for this account.
+     * @return The session id that authenticates this user.
+     */
+    String getToken(String nick, String password) throws IOException;
+
+    /**
+     * @param authtoken this sessions authtoken.
+     * @return the current chat history.
+     */
+    List<Post> getPosts(String authtoken) throws IOException;
+
+    /**
+     * @param authtoken this sessions authtoken.
+     * @param state     the state of the last poll. Gets updated, which takes effect after a
+     *                  {@link PollState#commit()}.
+     * @param watermark the newest post already stored.
+     * @return the posts above the watermark, or {@code null} if there are none. An empty list means
+     * that the chat history contained no posts at all.
+     */
+    List<Post> getPosts(String authtoken, PollState state, Watermark watermark) throws IOException;
+
+    /**
+     * Checks cheaply, whether the server can be reached at all.
+     *
+     * @return {@code true} if the server answered.
+     */
+    boolean probe();
+
+    /**
+     * @return the currently online users.
+     */
+    List<Author> getOnlineUsers() throws IOException;
+
+    /**
+     * @param authtoken this sessions authtoken.
+     * @param message   the message to send. Split into several chunks if too long.
+     * @return the http status code of every chunk.
+     */
+    PostResult post(String authtoken, String message);
+
+    /**
+     * @param authtoken this sessions authtoken.
+     * @param messages  the messages to send, in this order.
+     * @return the result of every message.
+     */
+    List<PostResult> post(String authtoken, List<String> messages);
+
+    /**
+     * @param authtoken this sessions authtoken.
+     * @param messages  the messages to send, in this order.
+     * @param progress  the progress of every message from an earlier attempt, {@code null} for a
+     *                  message that wasn't sent yet. Chunks that were posted are not sent again.
+     * @return the result of every message.
+     */
+    List<PostResult> post(String authtoken, List<String> messages, List<String> progress);
+
+    /**
+     * @return the pool the connections to the server are kept in.
+     */
+    ConnectionPool getConnectionPool();
+
+    /**
+     * @return traffic and latency of all endpoints used so far, by their names.
+     */
+    Map<String, EndpointStats> getEndpointStats();
+
+}
@@ -0,0 +1,145 @@
+/*
+ * Copyright 2016 Maximilian Salomon.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see http://www.gnu.org/licenses/.
+ */
+
+package de.msal.shoutemo.connector;
+
+import android.os.SystemClock;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+
+/**
+ * Coalesces concurrent calls for the same key: the first caller executes the call, everyone asking
+ * for the same key meanwhile waits for it and gets the same result (or exception). A successful
+ * result may additionally be handed out for a short time after the call finished.
+ *
+ * @param <K> the key identifying equal calls.
+ * @param <V> the result of a call.
+ */
+class SingleFlight<K, V> {
+
+    interface Call<V> {
+        V call() throws IOException;
+    }
+
+    private final long freshMillis;
+    private final Map<K, Flight<V>> flights = new HashMap<>();
+
+    /**
+     * @param freshMillis how long a result is handed out to new callers after its call finished; 0
+     *                    to only share calls which are still running.
+     */
+    SingleFlight(long freshMillis) {
+        this.freshMillis = freshMillis;
+    }
+
+    /**
+     * Executes the given call, unless a call for the same key is running already (or finished
+     * within the freshness window). Then its result is returned instead.
+     */
+    V execute(K key, Call<V> call) throws IOException {
+        Flight<V> flight;
+        boolean leader = false;
+        synchronized (flights) {
+            long now = SystemClock.elapsedRealtime();
+            for (Iterator<Flight<V>> it = flights.values().iterator(); it.hasNext(); ) {
+                if (it.next().isStale(now, freshMillis)) {
+                    it.remove();
+                }
+            }
+            flight = flights.get(key);
+            if (flight == null) {
+                flight = new Flight<>();
+                flights.put(key, flight);
+                leader = true;
+            }
+        }
+
+        if (leader) {
+            try {
+                flight.complete(call.call(), null);
+            } catch (IOException | RuntimeException e) {
+                flight.complete(null, e);
+            } finally {
+                if (!flight.isDone()) { // an error: don't leave the others waiting forever
+                    flight.complete(null, new IOException("Call for " + key + " aborted"));
+                }
+            }
+        }
+        return flight.await();
+    }
+
+    /**
+     * Forgets all finished results, so that the next caller executes a new call. Running calls
+     * are still shared.
+     */
+    void invalidate() {
+        synchronized (flights) {
+            for (Iterator<Flight<V>> it = flights.values().iterator(); it.hasNext(); ) {
+                if (it.next().isDone()) {
+                    it.remove();
+                }
+            }
+        }
+    }
+
+    private static class Flight<V> {
+
+        private boolean done;
+        private long finishedAt;
+        private V result;
+        private Exception exception;
+
+        synchronized void complete(V result, Exception exception) {
+            this.done = true;
+            this.finishedAt = SystemClock.elapsedRealtime();
+            this.result = result;
+            this.exception = exception;
+            notifyAll();
+        }
+
+        synchronized boolean isDone() {
+            return done;
+        }
+
+        /* failed calls are never handed out to new callers */
+        synchronized boolean isStale(long now, long freshMillis) {
+            return done && (exception != null || now - finishedAt >= freshMillis);
+        }
+
+        synchronized V await() throws IOException {
+            while (!done) {
+                try {
+                    wait();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new InterruptedIOException("Interrupted while waiting for a shared call");
+                }
+            }
+            if (exception instanceof IOException) {
+                throw (IOException) exception;
+            } else if (exception != null) {
+                throw (RuntimeException) exception;
+            }
+            return result;
+        }
+    }
+
+}
@@ -0,0 +1,146 @@
+/*
+ * Copyright 2016 Maximilian Salomon.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see http://www.gnu.org/licenses/.
+ */
+
+package de.msal.shoutemo.connector;
+
+import android.accounts.Account;
+import android.accounts.AccountManager;
+import android.accounts.AuthenticatorException;
+import android.accounts.OperationCanceledException;
+import android.app.AlarmManager;
+import android.app.IntentService;
+import android.app.PendingIntent;
+import android.content.Context;
+import android.content.Intent;
+import android.os.SystemClock;
+import android.preference.PreferenceManager;
+import android.util.Log;
+
+import java.io.IOException;
+import java.util.List;
+
+import de.msal.shoutemo.activities.LoginActivity;
+import de.msal.shoutemo.authenticator.AccountAuthenticator;
+import de.msal.shoutemo.connector.model.Post;
+
+/**
+ * Keeps the chat history fresh while the app is in the background, so that it shows the latest
+ * posts right away when it comes back. Unlike the {@link GetPostsService}, which polls every few
+ * seconds, this fetches the shoutbox only every {@value #INTERVAL}ms, and stores all new posts in
+ * one transaction.
+ * <p/>
+ * The syncs are started by an inexact alarm that doesn't wake the device: they happen together
+ * with the alarms of other apps, while the device is awake anyway. After {@value #MAX_DURATION}ms
+ * in the background the syncs stop, until the app was opened again.
+ */
+public class SyncService extends IntentService {
+
+    private static final String TAG = "Shoutemo|SyncService";
+    /* preference: whether to sync in the background */
+    public static final String PREF_BACKGROUND_SYNC = "background_sync";
+    private static final long INTERVAL = AlarmManager.INTERVAL_FIFTEEN_MINUTES;
+    private static final long MAX_DURATION = 6 * AlarmManager.INTERVAL_HOUR;
+    /* when the app went to the background, in elapsed realtime */
+    private static final String EXTRA_SINCE = "de.msal.shoutemo.SyncService.SINCE";
+
+    public SyncService() {
+        super("SyncService");
+    }
+
+    /**
+     * Starts syncing in the background, e.g. because the app isn't visible anymore. Does nothing if
+     * background syncs are turned off.
+     */
+    public static void start(Context context) {
+        if (!PreferenceManager.getDefaultSharedPreferences(context)
+                .getBoolean(PREF_BACKGROUND_SYNC, true)) {
+            return;
+        }
+        long now = SystemClock.elapsedRealtime();
+        AlarmManager alarmManager = (AlarmManager) context.getSystemService(Context.ALARM_SERVICE);
+        alarmManager.setInexactRepeating(AlarmManager.ELAPSED_REALTIME, now + INTERVAL, INTERVAL,
+                getSyncIntent(context, now));
+    }
+
+    /**
+     * Stops syncing in the background, e.g. because the app polls by itself again.
+     */
+    public static void stop(Context context) {
+        AlarmManager alarmManager = (AlarmManager) context.getSystemService(Context.ALARM_SERVICE);
+        alarmManager.cancel(getSyncIntent(context, 0));
+    }
+
+    private static PendingIntent getSyncIntent(Context context, long since) {
+        Intent intent = new Intent(context, SyncService.class).putExtra(EXTRA_SINCE, since);
+        return PendingIntent.getService(context, 0, intent, PendingIntent.FLAG_UPDATE_CURRENT);
+    }
+
+    @Override
+    protected void onHandleIntent(Intent intent) {
+        long since = intent.getLongExtra(EXTRA_SINCE, 0);
+        if (!PreferenceManager.getDefaultSharedPreferences(this)
+                .getBoolean(PREF_BACKGROUND_SYNC, true)) {
+            stop(this);
+            return;
+        }
+        if (SystemClock.elapsedRealtime() - since > MAX_DURATION) {
+            Log.v(TAG, "In the background for too long, not syncing anymore.");
+            stop(this);
+            return;
+        }
+
+        String authtoken = getAuthtoken();
+        if (authtoken == null) {
+            return;
+        }
+        Watermark watermark = Watermark.load(getContentResolver());
+        List<Post> posts;
+        try {
+            posts = Connection.getDefault().getPosts(authtoken, new PollState(), watermark);
+        } catch (IOException e) {
+            Log.e(TAG, "Syncing failed: " + e.getMessage());
+            return;
+        }
+        if (posts == null) {
+            Log.v(TAG, "No new posts.");
+        } else if (posts.isEmpty()) { // the session is gone: get a new one on the next sync
+            Log.v(TAG, "Received empty data, dropping the session.");
+            AccountManager.get(this).invalidateAuthToken(AccountAuthenticator.ACCOUNT_TYPE,
+                    authtoken);
+        } else if (GetPostsService.storePosts(this, posts)) {
+            Log.v(TAG, "Stored " + posts.size() + " new posts.");
+        }
+    }
+
+    /* Assume here that a account is already created. Everything else wouldn't make sense. */
+    private String getAuthtoken() {
+        AccountManager accountManager = AccountManager.get(this);
+        Account[] acc = accountManager.getAccountsByType(AccountAuthenticator.ACCOUNT_TYPE);
+        if (acc.length == 0) {
+            Log.e(TAG, "No suitable account found, while trying to sync.");
+            return null;
+        }
+        try {
+            return accountManager.blockingGetAuthToken(acc[0],
+                    LoginActivity.PARAM_AUTHTOKEN_TYPE, false);
+        } catch (OperationCanceledException | IOException | AuthenticatorException e) {
+            Log.e(TAG, "Getting the authtoken failed: " + e.getMessage());
+            return null;
+        }
+    }
+
+}
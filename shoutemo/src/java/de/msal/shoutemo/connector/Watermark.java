@@ -0,0 +1,136 @@
+/*
+ * Copyright 2016 Maximilian Salomon.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see http://www.gnu.org/licenses/.
+ */
+
+package de.msal.shoutemo.connector;
+
+import android.content.ContentResolver;
+import android.database.Cursor;
+
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+
+import de.msal.shoutemo.connector.model.Message;
+import de.msal.shoutemo.connector.model.Post;
+import de.msal.shoutemo.connector.model.PostTokenizer;
+import de.msal.shoutemo.db.ChatDb;
+
+/**
+ * Marks the newest post stored in the database, and knows the fingerprints of all posts stored
+ * within {@value #TOLERANCE}ms before it. Posts older than that are known already, so only the
+ * posts of this window need to be compared, and only newer ones need to be stored.
+ * <p/>
+ * The timestamps are local times of the account's timezone, as shown by the server: after a
+ * fall-back to standard time, new posts get timestamps up to an hour older than the ones already
+ * stored, and a time shown to the minute only may be up to a minute off. The window covers that
+ * much, and no more, so that a page of posts is mostly cut off by the timestamp alone. Inside the
+ * window posts are told apart by their {@link Post#getFingerprint() fingerprint}, just like the
+ * unique index of the database does. So several posts in the same second are not lost either.
+ * <p/>
+ * A change of the account's timezone by more than an hour isn't covered: the posts in between may
+ * be taken as known.
+ */
+public class Watermark implements PostTokenizer.Filter {
+
+    /* a fall-back to standard time, plus a time shown to the minute */
+    private static final long TOLERANCE = (60 + 1) * 60 * 1000; // 61min
+
+    private long timestamp = Long.MIN_VALUE;
+    /* the fingerprints and timestamps of all stored posts within the window */
+    private final Map<Long, Long> fingerprints = new HashMap<>();
+
+    /**
+     * Creates a watermark from the newest posts in the database.
+     */
+    public static Watermark load(ContentResolver resolver) {
+        Watermark watermark = new Watermark();
+        Cursor c = resolver.query(ChatDb.Messages.CONTENT_URI,
+                new String[]{ChatDb.Messages.COLUMN_NAME_TIMESTAMP,
+                        ChatDb.Messages.COLUMN_NAME_FINGERPRINT},
+                ChatDb.Messages.COLUMN_NAME_TIMESTAMP + " >= (SELECT MAX("
+                        + ChatDb.Messages.COLUMN_NAME_TIMESTAMP + ") FROM "
+                        + ChatDb.Messages.TABLE_NAME + ") - " + TOLERANCE,
+                null, null);
+        if (c != null) {
+            while (c.moveToNext()) {
+                watermark.add(c.getLong(0), c.getLong(1));
+            }
+            c.close();
+        }
+        return watermark;
+    }
+
+    @Override
+    public synchronized boolean isKnown(long timestamp, String authorName, Message.Type type,
+                                        CharSequence html) {
+        if (isBelowWindow(timestamp)) {
+            return true;
+        }
+        return !fingerprints.isEmpty()
+                && fingerprints.containsKey(Post.fingerprint(timestamp, authorName, type, html));
+    }
+
+    /**
+     * @return {@code true} if the post is known already.
+     */
+    public synchronized boolean isKnown(Post post) {
+        return isBelowWindow(post.getDate().getTime())
+                || fingerprints.containsKey(post.getFingerprint());
+    }
+
+    /**
+     * Raises the watermark after the given posts were stored.
+     */
+    public synchronized void advance(List<Post> stored) {
+        long before = timestamp;
+        for (Post post : stored) {
+            add(post.getDate().getTime(), post.getFingerprint());
+        }
+        if (timestamp != before) { // forget the posts that dropped out of the window
+            for (Iterator<Long> it = fingerprints.values().iterator(); it.hasNext(); ) {
+                if (isBelowWindow(it.next())) {
+                    it.remove();
+                }
+            }
+        }
+    }
+
+    /**
+     * @return the timestamp of the newest stored post, or {@link Long#MIN_VALUE} if none is stored.
+     */
+    public synchronized long getTimestamp() {
+        return timestamp;
+    }
+
+    private boolean isBelowWindow(long timestamp) {
+        return this.timestamp != Long.MIN_VALUE && timestamp < this.timestamp - TOLERANCE;
+    }
+
+    private void add(long timestamp, long fingerprint) {
+        this.timestamp = Math.max(this.timestamp, timestamp);
+        if (!isBelowWindow(timestamp)) {
+            fingerprints.put(fingerprint, timestamp);
+        }
+    }
+
+    @Override
+    public synchronized String toString() {
+        return "Watermark{timestamp=" + timestamp + ", posts=" + fingerprints.size() + "}";
+    }
+
+}
@@ -0,0 +1,331 @@
+/*
+ * Copyright 2016 Maximilian Salomon.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see http://www.gnu.org/licenses/.
+ */
+
+package de.msal.shoutemo.connector.fixture;
+
+import com.google.common.io.ByteStreams;
+
+import android.content.res.AssetManager;
+import android.util.Log;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.SocketException;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicLong;
+
+import de.msal.shoutemo.connector.Endpoints;
+
+/**
+ * A tiny HTTP server on localhost, which mimics autemo.com with recorded pages: the shoutbox
+ * ({@code yshout.php}) and the forums overview containing the online users. Shouts are accepted
+ * but dropped, any login succeeds.
+ * <p/>
+ * Latency, jitter and payload size of the answers are configurable, and the jitter comes from a
+ * seeded random generator. This way polling can be measured offline and reproducibly, by pointing
+ * a {@link de.msal.shoutemo.connector.Connection} at {@link #getEndpoints()}.
+ */
+public class FixtureServer {
+
+    private static final String TAG = "Shoutemo|FixtureServer";
+    /* the session id handed out on login */
+    public static final String TOKEN = "fixture";
+
+    private final byte[] posts;
+    private final byte[] onlineUsers;
+    private final Random random;
+    private final AtomicLong requestCount = new AtomicLong();
+    private volatile int latencyMillis;
+    private volatile int jitterMillis;
+    private volatile byte[] paddedPosts;
+    private final Set<Socket> sockets = Collections.synchronizedSet(new HashSet<Socket>());
+
+    private ServerSocket serverSocket;
+    private ExecutorService executor;
+
+    /**
+     * @param posts       the page to answer polls of the shoutbox with.
+     * @param onlineUsers the forums page to read the online users from.
+     * @param seed        seed for the jitter.
+     */
+    public FixtureServer(byte[] posts, byte[] onlineUsers, long seed) {
+        this.posts = posts;
+        this.onlineUsers = onlineUsers;
+        this.paddedPosts = posts;
+        this.random = new Random(seed);
+    }
+
+    /**
+     * Creates a server serving the pages recorded in {@code assets/fixtures}.
+     */
+    public static FixtureServer fromAssets(AssetManager assets) throws IOException {
+        return new FixtureServer(read(assets, "fixtures/yshout.html"),
+                read(assets, "fixtures/forums.html"), 0);
+    }
+
+    private static byte[] read(AssetManager assets, String name) throws IOException {
+        InputStream in = assets.open(name);
+        try {
+            return ByteStreams.toByteArray(in);
+        } finally {
+            in.close();
+        }
+    }
+
+    /**
+     * Starts listening on a free port of the loopback interface.
+     */
+    public synchronized void start() throws IOException {
+        if (serverSocket != null) {
+            return;
+        }
+        serverSocket = new ServerSocket(0, 50, InetAddress.getByName("127.0.0.1"));
+        executor = Executors.newCachedThreadPool();
+        final ServerSocket server = serverSocket;
+        executor.execute(new Runnable() {
+            @Override
+            public void run() {
+                while (!server.isClosed()) {
+                    try {
+                        final Socket socket = server.accept();
+                        executor.execute(new Runnable() {
+                            @Override
+                            public void run() {
+                                serve(socket);
+                            }
+                        });
+                    } catch (IOException e) {
+                        if (!server.isClosed()) {
+                            Log.e(TAG, "Accepting failed: " + e.getMessage());
+                        }
+                    }
+                }
+            }
+        });
+        Log.v(TAG, "Listening at " + getBaseUrl());
+    }
+
+    public synchronized void stop() {
+        if (serverSocket == null) {
+            return;
+        }
+        try {
+            serverSocket.close();
+        } catch (IOException ignored) {}
+        executor.shutdownNow();
+        synchronized (sockets) { // unblock the threads waiting for the next request
+            for (Socket socket : sockets) {
+                try {
+                    socket.close();
+                } catch (IOException ignored) {}
+            }
+            sockets.clear();
+        }
+        serverSocket = null;
+        executor = null;
+    }
+
+    public synchronized boolean isRunning() {
+        return serverSocket != null;
+    }
+
+    public synchronized int getPort() {
+        return serverSocket == null ? -1 : serverSocket.getLocalPort();
+    }
+
+    public String getBaseUrl() {
+        return "http://127.0.0.1:" + getPort();
+    }
+
+    /**
+     * @return the endpoints to use for talking to this server.
+     */
+    public Endpoints getEndpoints() {
+        return new Endpoints(getBaseUrl());
+    }
+
+    /**
+     * @param millis time every answer is delayed by.
+     */
+    public void setLatency(int millis) {
+        this.latencyMillis = Math.max(0, millis);
+    }
+
+    /**
+     * @param millis maximum time every answer is delayed by additionally, chosen randomly.
+     */
+    public void setJitter(int millis) {
+        this.jitterMillis = Math.max(0, millis);
+    }
+
+    /**
+     * @param bytes minimum size of the shoutbox page. Smaller pages get padded with a comment; 0
+     *              serves the page as recorded.
+     */
+    public void setPayloadSize(int bytes) {
+        this.paddedPosts = pad(posts, bytes);
+    }
+
+    public long getRequestCount() {
+        return requestCount.get();
+    }
+
+    private static byte[] pad(byte[] page, int size) {
+        byte[] start = "<!--".getBytes();
+        byte[] end = "-->".getBytes();
+        if (size <= page.length + start.length + end.length) {
+            return page;
+        }
+        byte[] padded = Arrays.copyOf(page, size);
+        System.arraycopy(start, 0, padded, page.length, start.length);
+        Arrays.fill(padded, page.length + start.length, size - end.length, (byte) ' ');
+        System.arraycopy(end, 0, padded, size - end.length, end.length);
+        return padded;
+    }
+
+    /**
+     * Answers all requests on the given socket, until the client closes it.
+     */
+    private void serve(Socket socket) {
+        sockets.add(socket);
+        try {
+            InputStream in = new BufferedInputStream(socket.getInputStream());
+            OutputStream out = new BufferedOutputStream(socket.getOutputStream());
+            String requestLine;
+            while ((requestLine = readLine(in)) != null) {
+                if (requestLine.isEmpty()) {
+                    continue;
+                }
+                boolean keepAlive = true;
+                long contentLength = 0;
+                String line;
+                while ((line = readLine(in)) != null && !line.isEmpty()) {
+                    String lower = line.toLowerCase();
+                    if (lower.startsWith("content-length:")) {
+                        contentLength = Long.parseLong(line.substring(15).trim());
+                    } else if (lower.startsWith("connection:") && lower.contains("close")) {
+                        keepAlive = false;
+                    }
+                }
+                ByteStreams.skipFully(in, contentLength);
+                requestCount.incrementAndGet();
+
+                delay();
+                String[] request = requestLine.split(" ");
+                String method = request[0];
+                respond(out, method.equals("HEAD") ? "GET" : method,
+                        request.length > 1 ? request[1] : "/", method.equals("HEAD"), keepAlive);
+                out.flush();
+                if (!keepAlive) {
+                    break;
+                }
+            }
+        } catch (SocketException ignored) {
+            // client went away
+        } catch (IOException | InterruptedException e) {
+            Log.e(TAG, "Serving failed: " + e.getMessage());
+        } finally {
+            sockets.remove(socket);
+            try {
+                socket.close();
+            } catch (IOException ignored) {}
+        }
+    }
+
+    private void delay() throws InterruptedException {
+        long delay = latencyMillis;
+        int jitter = jitterMillis;
+        if (jitter > 0) {
+            synchronized (random) {
+                delay += random.nextInt(jitter + 1);
+            }
+        }
+        if (delay > 0) {
+            Thread.sleep(delay);
+        }
+    }
+
+    /**
+     * @param head whether to answer a {@code HEAD} request: with the headers only.
+     */
+    private void respond(OutputStream out, String method, String path, boolean head,
+            boolean keepAlive) throws IOException {
+        if (method.equals("POST") && path.equals(Endpoints.PATH_SHOUT)) {
+            write(out, head, "200 OK", null, new byte[0], keepAlive);
+        } else if (method.equals("POST") && path.equals(Endpoints.PATH_LOGIN)) {
+            write(out, head, "302 Found",
+                    "Location: /\r\nSet-Cookie: PHPSESSID=" + TOKEN + "; path=/\r\n",
+                    new byte[0], keepAlive);
+        } else if (path.equals(Endpoints.PATH_POSTS)) {
+            write(out, head, "200 OK", null, paddedPosts, keepAlive);
+        } else if (path.equals(Endpoints.PATH_ONLINE_USERS)) {
+            write(out, head, "200 OK", null, onlineUsers, keepAlive);
+        } else if (path.equals("/")) {
+            write(out, head, "200 OK", null, "<html><body></body></html>".getBytes(), keepAlive);
+        } else {
+            write(out, head, "404 Not Found", null, new byte[0], keepAlive);
+        }
+    }
+
+    private static void write(OutputStream out, boolean head, String status, String headers,
+            byte[] body, boolean keepAlive) throws IOException {
+        StringBuilder sb = new StringBuilder(128);
+        sb.append("HTTP/1.1 ").append(status).append("\r\n");
+        sb.append("Content-Type: text/html; charset=UTF-8\r\n");
+        sb.append("Content-Length: ").append(body.length).append("\r\n");
+        if (!keepAlive) {
+            sb.append("Connection: close\r\n");
+        }
+        if (headers != null) {
+            sb.append(headers);
+        }
+        sb.append("\r\n");
+        out.write(sb.toString().getBytes("ISO-8859-1"));
+        if (!head) {
+            out.write(body);
+        }
+    }
+
+    private static String readLine(InputStream in) throws IOException {
+        StringBuilder sb = new StringBuilder(64);
+        int c;
+        while ((c = in.read()) != -1) {
+            if (c == '\n') {
+                int length = sb.length();
+                if (length > 0 && sb.charAt(length - 1) == '\r') {
+                    sb.setLength(length - 1);
+                }
+                return sb.toString();
+            }
+            sb.append((char) c);
+        }
+        return sb.length() == 0 ? null : sb.toString();
+    }
+
+}
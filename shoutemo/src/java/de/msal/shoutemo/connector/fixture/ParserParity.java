@@ -0,0 +1,154 @@
+/*
+ * Copyright 2016 Maximilian Salomon.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see http://www.gnu.org/licenses/.
+ */
+
+package de.msal.shoutemo.connector.fixture;
+
+import com.google.common.base.Charsets;
+import com.google.common.base.Objects;
+import com.google.common.io.ByteStreams;
+
+import org.jsoup.Jsoup;
+import org.jsoup.nodes.Document;
+import org.jsoup.nodes.Element;
+import org.jsoup.select.Elements;
+
+import android.content.res.AssetManager;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.text.ParseException;
+import java.util.ArrayList;
+import java.util.List;
+
+import de.msal.shoutemo.connector.model.Author;
+import de.msal.shoutemo.connector.model.Message;
+import de.msal.shoutemo.connector.model.Post;
+import de.msal.shoutemo.connector.model.PostTokenizer;
+
+/**
+ * Checks that the {@link PostTokenizer} and the Jsoup based parsing ({@link Post#Post(Element)})
+ * agree on the posts of the pages recorded in {@code assets/fixtures}, field by field: date,
+ * author, author type, message type, text and fingerprint. The Jsoup based parsing is the fallback
+ * of the tokenizer, so they must not tell the same post apart.
+ * <p/>
+ * The message html itself differs: the tokenizer keeps the one sent by the server, Jsoup
+ * re-serializes it. Both end up in the database, so both have to give the same fingerprint, and
+ * the text derived from the tokenizer's html has to be the one Jsoup gives.
+ */
+public final class ParserParity {
+
+    /* the recorded shoutbox pages to check */
+    private static final String[] PAGES = {"fixtures/yshout.html",
+            "fixtures/yshout-edge-cases.html"};
+
+    private ParserParity() {
+    }
+
+    /**
+     * Compares both parsers on all recorded pages.
+     *
+     * @return the number of posts compared, followed by the differences found; so a single line
+     * means that the parsers agree.
+     */
+    public static List<String> check(AssetManager assets) throws IOException {
+        List<String> result = new ArrayList<>();
+        int posts = 0;
+        for (String page : PAGES) {
+            InputStream in = assets.open(page);
+            String html;
+            try {
+                html = new String(ByteStreams.toByteArray(in), Charsets.UTF_8);
+            } finally {
+                in.close();
+            }
+            List<String> differences = new ArrayList<>();
+            posts += compare(page, html, differences);
+            result.addAll(differences);
+        }
+        result.add(0, posts + " posts compared, " + result.size() + " differences");
+        return result;
+    }
+
+    /**
+     * Compares both parsers on the given page.
+     *
+     * @param name        the name of the page, for the differences.
+     * @param html        the shoutbox, as sent by the server.
+     * @param differences gets a line for each difference found.
+     * @return the number of posts compared.
+     */
+    public static int compare(String name, String html, List<String> differences) {
+        List<Post> tokenized;
+        try {
+            tokenized = PostTokenizer.parse(html);
+        } catch (ParseException e) {
+            differences.add(name + ": the tokenizer failed: " + e.getMessage());
+            return 0;
+        }
+        /* the same output settings as the fallback of the Connection */
+        Document document = Jsoup.parse(html);
+        document.outputSettings().charset("UTF-8").prettyPrint(false);
+        Elements elements = document.getElementsByClass("ys-post");
+        List<Post> parsed = new ArrayList<>();
+        for (Element e : elements) {
+            parsed.add(new Post(e));
+        }
+        if (tokenized.size() != parsed.size()) {
+            differences.add(name + ": " + tokenized.size() + " posts tokenized, " + parsed.size()
+                    + " parsed");
+        }
+
+        int count = Math.min(tokenized.size(), parsed.size());
+        for (int i = 0; i < count; i++) {
+            String post = name + " #" + i + ": ";
+            Post t = tokenized.get(i);
+            Post p = parsed.get(i);
+            compare(differences, post + "date", t.getDate(), p.getDate());
+            compare(differences, post + "author", name(t.getAuthor()), name(p.getAuthor()));
+            compare(differences, post + "author type", type(t.getAuthor()), type(p.getAuthor()));
+            compare(differences, post + "type", t.getMessage().getType(),
+                    p.getMessage().getType());
+            compare(differences, post + "text", t.getMessage().getText(),
+                    elements.get(i).getElementsByClass("ys-post-message").text());
+            compare(differences, post + "text of Jsoup's html", t.getMessage().getText(),
+                    p.getMessage().getText());
+            compare(differences, post + "text of the html",
+                    Message.toText(t.getMessage().getHtml()), p.getMessage().getText());
+            if (t.getFingerprint() != p.getFingerprint()) {
+                differences.add(post + "fingerprint of \"" + t.getMessage().getHtml()
+                        + "\" != \"" + p.getMessage().getHtml() + "\"");
+            }
+        }
+        return count;
+    }
+
+    private static void compare(List<String> differences, String field, Object tokenized,
+                                Object parsed) {
+        if (!Objects.equal(tokenized, parsed)) {
+            differences.add(field + " \"" + tokenized + "\" != \"" + parsed + "\"");
+        }
+    }
+
+    private static String name(Author author) {
+        return author == null ? null : author.getName();
+    }
+
+    private static Author.Type type(Author author) {
+        return author == null ? null : author.getType();
+    }
+
+}
@@ -0,0 +1,138 @@
+/*
+ * Copyright 2016 Maximilian Salomon.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see http://www.gnu.org/licenses/.
+ */
+
+package de.msal.shoutemo.connector.http;
+
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.Iterator;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Keeps a bounded number of idle keep-alive sockets around, so that consecutive requests to the
+ * same host don't need to pay for DNS lookup and TCP (and TLS) handshake again.
+ * <p/>
+ * Counts how many requests could be served by an already open socket (hits) and how many needed a
+ * new one (misses).
+ */
+public class ConnectionPool {
+
+    private final int maxIdle;
+    private final long keepAliveMillis;
+    /* most recently used first */
+    private final Deque<PooledSocket> idle = new ArrayDeque<>();
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+
+    /**
+     * @param maxIdle         maximum number of idle sockets kept open, over all hosts.
+     * @param keepAliveMillis maximum time a socket is kept open while being idle, in ms. Servers
+     *                        announcing a shorter time via {@code Keep-Alive} are respected.
+     */
+    public ConnectionPool(int maxIdle, long keepAliveMillis) {
+        this.maxIdle = maxIdle;
+        this.keepAliveMillis = keepAliveMillis;
+    }
+
+    /**
+     * @return a healthy idle socket to the given address, or {@code null} if there is none.
+     */
+    PooledSocket get(String address) {
+        long now = System.nanoTime() / 1000000;
+        PooledSocket found = null;
+        synchronized (this) {
+            for (Iterator<PooledSocket> it = idle.iterator(); it.hasNext(); ) {
+                PooledSocket socket = it.next();
+                if (socket.isExpired(now, keepAliveMillis)) {
+                    it.remove();
+                    socket.close();
+                } else if (found == null && socket.address().equals(address)) {
+                    it.remove();
+                    found = socket;
+                }
+            }
+        }
+        if (found != null && !found.isHealthy(now)) {
+            found.close();
+            found = null;
+        }
+        if (found != null) {
+            hits.incrementAndGet();
+        } else {
+            misses.incrementAndGet();
+        }
+        return found;
+    }
+
+    /**
+     * Hands a socket back after its last response was read completely.
+     */
+    void put(PooledSocket socket) {
+        if (socket.isClosed()) {
+            return;
+        }
+        socket.setIdle(System.nanoTime() / 1000000);
+        PooledSocket evicted = null;
+        synchronized (this) {
+            idle.addFirst(socket);
+            if (idle.size() > maxIdle) {
+                evicted = idle.removeLast();
+            }
+        }
+        if (evicted != null) {
+            evicted.close();
+        }
+    }
+
+    /**
+     * Closes and removes all idle sockets.
+     */
+    public void evictAll() {
+        synchronized (this) {
+            for (PooledSocket socket : idle) {
+                socket.close();
+            }
+            idle.clear();
+        }
+    }
+
+    public synchronized int getIdleCount() {
+        return idle.size();
+    }
+
+    /**
+     * @return how many requests were sent over an already open socket.
+     */
+    public long getHitCount() {
+        return hits.get();
+    }
+
+    /**
+     * @return how many requests needed to open a new socket.
+     */
+    public long getMissCount() {
+        return misses.get();
+    }
+
+    @Override
+    public String toString() {
+        return "ConnectionPool{hits=" + getHitCount()
+                + ", misses=" + getMissCount()
+                + ", idle=" + getIdleCount() + "}";
+    }
+
+}
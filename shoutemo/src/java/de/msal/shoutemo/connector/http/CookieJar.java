@@ -0,0 +1,111 @@
+/*
+ * Copyright 2016 Maximilian Salomon.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see http://www.gnu.org/licenses/.
+ */
+
+package de.msal.shoutemo.connector.http;
+
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * A minimal, thread safe cookie store. Only name and value of a cookie are kept, as autemo.com
+ * doesn't need anything more than its session cookie to be sent back.
+ */
+public class CookieJar {
+
+    private final Map<String, String> cookies = new LinkedHashMap<>();
+
+    public CookieJar() {
+    }
+
+    public CookieJar(CookieJar other) {
+        putAll(other);
+    }
+
+    public synchronized void put(String name, String value) {
+        cookies.put(name, value);
+    }
+
+    /**
+     * Copies all cookies of the given jar into this one, overwriting cookies with the same name.
+     */
+    public void putAll(CookieJar other) {
+        Map<String, String> copy = other.asMap();
+        synchronized (this) {
+            cookies.putAll(copy);
+        }
+    }
+
+    /**
+     * Copies all cookies of the given jar into this one, keeping already existing cookies with the
+     * same name.
+     */
+    public void putAllAbsent(CookieJar other) {
+        Map<String, String> copy = other.asMap();
+        synchronized (this) {
+            for (Map.Entry<String, String> cookie : copy.entrySet()) {
+                if (!cookies.containsKey(cookie.getKey())) {
+                    cookies.put(cookie.getKey(), cookie.getValue());
+                }
+            }
+        }
+    }
+
+    /**
+     * Parses a single {@code Set-Cookie} header value and stores the contained cookie.
+     *
+     * @param header e.g. {@code PHPSESSID=abc123; path=/; HttpOnly}
+     */
+    public void parse(String header) {
+        int end = header.indexOf(';');
+        String pair = end == -1 ? header : header.substring(0, end);
+        int eq = pair.indexOf('=');
+        if (eq > 0) {
+            put(pair.substring(0, eq).trim(), pair.substring(eq + 1).trim());
+        }
+    }
+
+    public synchronized String get(String name) {
+        return cookies.get(name);
+    }
+
+    public synchronized boolean isEmpty() {
+        return cookies.isEmpty();
+    }
+
+    /**
+     * @return the value of a {@code Cookie} request header containing all cookies of this jar.
+     */
+    public synchronized String toHeader() {
+        StringBuilder sb = new StringBuilder();
+        for (Map.Entry<String, String> cookie : cookies.entrySet()) {
+            if (sb.length() > 0) {
+                sb.append("; ");
+            }
+            sb.append(cookie.getKey()).append('=').append(cookie.getValue());
+        }
+        return sb.toString();
+    }
+
+    /**
+     * @return an unmodifiable copy of all cookies of this jar.
+     */
+    public synchronized Map<String, String> asMap() {
+        return Collections.unmodifiableMap(new LinkedHashMap<>(cookies));
+    }
+
+}
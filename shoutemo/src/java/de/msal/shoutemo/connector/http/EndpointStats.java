@@ -0,0 +1,128 @@
+/*
+ * Copyright 2016 Maximilian Salomon.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see http://www.gnu.org/licenses/.
+ */
+
+package de.msal.shoutemo.connector.http;
+
+import java.util.Arrays;
+
+/**
+ * Traffic and latency of all responses received from one endpoint: how many bytes were received
+ * on the wire (headers and possibly compressed body), how many bytes the body had after decoding,
+ * and how long it took from sending the request until the response was done with.
+ */
+public class EndpointStats {
+
+    /* upper bounds of the latency buckets, in ms; the last bucket takes everything above */
+    private static final long[] LATENCY_BOUNDS = {50, 100, 200, 500, 1000, 2000, 5000};
+    /* how many of the latest latencies are kept for the percentiles */
+    private static final int RECENT_LATENCIES = 100;
+    /* percentiles of fewer latencies than that are too unreliable to be used */
+    private static final int MIN_PERCENTILE_SAMPLES = 10;
+
+    private final String name;
+    private long requestCount;
+    private long wireBytes;
+    private long decodedBytes;
+    private long totalLatency;
+    private final long[] latencyCounts = new long[LATENCY_BOUNDS.length + 1];
+    private final long[] recentLatencies = new long[RECENT_LATENCIES];
+
+    EndpointStats(String name) {
+        this.name = name;
+    }
+
+    synchronized void record(long wireBytes, long decodedBytes, long latencyMillis) {
+        this.requestCount++;
+        this.wireBytes += wireBytes;
+        this.decodedBytes += decodedBytes;
+        this.totalLatency += latencyMillis;
+        int bucket = 0;
+        while (bucket < LATENCY_BOUNDS.length && latencyMillis > LATENCY_BOUNDS[bucket]) {
+            bucket++;
+        }
+        latencyCounts[bucket]++;
+        recentLatencies[(int) ((requestCount - 1) % RECENT_LATENCIES)] = latencyMillis;
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    public synchronized long getRequestCount() {
+        return requestCount;
+    }
+
+    /**
+     * @return all bytes received, including the headers.
+     */
+    public synchronized long getWireBytes() {
+        return wireBytes;
+    }
+
+    /**
+     * @return the size of all bodies after decompressing them.
+     */
+    public synchronized long getDecodedBytes() {
+        return decodedBytes;
+    }
+
+    public synchronized long getAverageLatency() {
+        return requestCount == 0 ? 0 : totalLatency / requestCount;
+    }
+
+    /**
+     * @param percentile the percentile to compute, e.g. 95.
+     * @return the given percentile of the latest latencies in ms, or -1 if there are too few of
+     * them yet.
+     */
+    public synchronized long getLatencyPercentile(double percentile) {
+        int count = (int) Math.min(requestCount, RECENT_LATENCIES);
+        if (count < MIN_PERCENTILE_SAMPLES) {
+            return -1;
+        }
+        long[] sorted = Arrays.copyOf(recentLatencies, count);
+        Arrays.sort(sorted);
+        int index = (int) Math.ceil(percentile / 100 * count) - 1;
+        return sorted[Math.max(0, Math.min(count - 1, index))];
+    }
+
+    /**
+     * @return the upper bounds of the latency histogram's buckets, in ms. The counts have one more
+     * bucket, for everything above the last bound.
+     */
+    public static long[] getLatencyBounds() {
+        return LATENCY_BOUNDS.clone();
+    }
+
+    /**
+     * @return the number of responses per latency bucket.
+     * @see #getLatencyBounds()
+     */
+    public synchronized long[] getLatencyCounts() {
+        return latencyCounts.clone();
+    }
+
+    @Override
+    public synchronized String toString() {
+        return name + "{requests=" + requestCount
+                + ", wire=" + wireBytes
+                + ", decoded=" + decodedBytes
+                + ", avgLatency=" + getAverageLatency()
+                + ", latencies=" + Arrays.toString(latencyCounts) + "}";
+    }
+
+}
@@ -0,0 +1,527 @@
+/*
+ * Copyright 2016 Maximilian Salomon.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see http://www.gnu.org/licenses/.
+ */
+
+package de.msal.shoutemo.connector.http;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.net.SocketException;
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A small HTTP/1.1 client, which keeps its sockets open after a request and reuses them for the
+ * following requests to the same host (see {@link ConnectionPool}). The number of concurrently
+ * open sockets per host is limited.
+ * <p/>
+ * Errors on HTTP level (4xx, 5xx) don't throw, but are returned as {@link Response} like all other
+ * responses, just like {@code Jsoup.connect(...).ignoreHttpErrors(true)} did.
+ * <p/>
+ * Asks for compressed responses, and keeps statistics about traffic and latency per {@link
+ * Request#endpoint() endpoint}.
+ */
+public class HttpTransport {
+
+    private static final int MAX_REDIRECTS = 20;
+
+    private final ConnectionPool pool;
+    private final int maxConnectionsPerHost;
+    private final ConcurrentMap<String, Semaphore> hostLimits = new ConcurrentHashMap<>();
+    private final ConcurrentMap<String, EndpointStats> stats = new ConcurrentHashMap<>();
+
+    /**
+     * @param pool                  the pool idle sockets are kept in.
+     * @param maxConnectionsPerHost maximum number of sockets concurrently in use per host.
+     */
+    public HttpTransport(ConnectionPool pool, int maxConnectionsPerHost) {
+        this.pool = pool;
+        this.maxConnectionsPerHost = maxConnectionsPerHost;
+    }
+
+    public ConnectionPool getPool() {
+        return pool;
+    }
+
+    /**
+     * @return the statistics of all endpoints requested so far, by their names.
+     */
+    public Map<String, EndpointStats> getStats() {
+        return new TreeMap<>(stats);
+    }
+
+    /**
+     * @return the statistics of the given endpoint. Empty, if it wasn't requested yet.
+     */
+    public EndpointStats getStats(String endpoint) {
+        return stats(endpoint);
+    }
+
+    private EndpointStats stats(String endpoint) {
+        EndpointStats endpointStats = stats.get(endpoint);
+        if (endpointStats == null) {
+            EndpointStats created = new EndpointStats(endpoint);
+            endpointStats = stats.putIfAbsent(endpoint, created);
+            if (endpointStats == null) {
+                endpointStats = created;
+            }
+        }
+        return endpointStats;
+    }
+
+    /**
+     * Sends the given request and reads the status line and headers of its response, following
+     * redirects if wanted. The body is left on the socket to be read via the returned {@link
+     * Response}, which needs to be closed afterwards.
+     *
+     * @throws IOException on network errors or timeouts.
+     */
+    public Response execute(Request request) throws IOException {
+        CookieJar received = new CookieJar();
+        Request current = request;
+        for (int redirects = 0; ; redirects++) {
+            Response response = executeOnce(current);
+            response.cookies().putAllAbsent(received);
+            if (!current.followRedirects() || !response.isRedirect()) {
+                return response;
+            }
+            response.close();
+            if (redirects >= MAX_REDIRECTS) {
+                throw new IOException("Too many redirects occurred trying to load URL "
+                        + request.url());
+            }
+            received = new CookieJar(response.cookies());
+            URL location = new URL(current.url(), response.header("Location"));
+            current = current.redirect(location, response.statusCode(), received);
+        }
+    }
+
+    /**
+     * Sends all given requests at once over a single socket (HTTP pipelining), without waiting for
+     * the responses in between, and reads the responses afterwards. The server answers them in the
+     * order they were sent, so they are processed in that order as well. Saves a round trip per
+     * request on high latency links.
+     * <p/>
+     * Redirects are not followed. The bodies of the responses are skipped, the returned responses
+     * are closed already.
+     *
+     * @param requests requests to the same host.
+     * @return the responses, in the order of the requests. If the server closed the socket
+     * prematurely, fewer responses than requests are returned: the remaining requests may or may
+     * not have been processed.
+     * @throws IOException on network errors or timeouts before the first response was read.
+     */
+    public List<Response> executePipelined(List<Request> requests) throws IOException {
+        List<Response> responses = new ArrayList<>(requests.size());
+        if (requests.isEmpty()) {
+            return responses;
+        }
+        Request first = requests.get(0);
+        String address = PooledSocket.address(first.url());
+        for (Request request : requests) {
+            if (!PooledSocket.address(request.url()).equals(address)) {
+                throw new IllegalArgumentException("Can only pipeline requests to the same host");
+            }
+        }
+        Semaphore limit = acquire(address, first.timeout());
+
+        try {
+            while (true) {
+                PooledSocket socket = pool.get(address);
+                boolean reused = socket != null;
+                if (!reused) {
+                    socket = PooledSocket.open(first.url(), first.timeout());
+                }
+                boolean written = false;
+                try {
+                    socket.setTimeout(first.timeout());
+                    long start = System.nanoTime() / 1000000;
+                    written = true; // from now on the server may get (parts of) the requests
+                    for (Request request : requests) {
+                        writeRequest(socket.out(), request);
+                    }
+                    socket.out().flush();
+
+                    boolean reusable = true;
+                    for (Request request : requests) {
+                        String statusLine = Response.readLine(socket.in());
+                        if (statusLine == null) {
+                            if (responses.isEmpty()) {
+                                throw new SocketException("Connection closed by server");
+                            }
+                            break;
+                        }
+                        SocketExchange exchange = new SocketExchange(socket, null, start);
+                        Response response = readResponse(statusLine, request, exchange);
+                        response.close();
+                        responses.add(response);
+                        reusable = exchange.reusable;
+                        if (!reusable) { // not answering any further requests
+                            break;
+                        }
+                    }
+                    if (reusable && responses.size() == requests.size()) {
+                        pool.put(socket);
+                    } else {
+                        socket.close();
+                    }
+                    return responses;
+                } catch (SocketException e) {
+                    socket.close();
+                    if (!reused || !responses.isEmpty() || (written && !isIdempotent(requests))) {
+                        if (responses.isEmpty()) {
+                            throw e;
+                        }
+                        return responses;
+                    }
+                    // the server closed the idle socket in the meantime: try again on a new one
+                } catch (IOException e) {
+                    socket.close();
+                    if (responses.isEmpty()) {
+                        throw e;
+                    }
+                    return responses;
+                }
+            }
+        } finally {
+            limit.release();
+        }
+    }
+
+    private Response executeOnce(Request request) throws IOException {
+        String address = PooledSocket.address(request.url());
+        Semaphore limit = acquire(address, request.timeout());
+
+        long start = System.nanoTime() / 1000000;
+        boolean success = false;
+        try {
+            while (true) {
+                PooledSocket socket = pool.get(address);
+                boolean reused = socket != null;
+                if (!reused) {
+                    socket = PooledSocket.open(request.url(), request.timeout());
+                }
+                boolean written = false;
+                try {
+                    socket.setTimeout(request.timeout());
+                    written = true; // from now on the server may get (parts of) the request
+                    writeRequest(socket.out(), request);
+                    socket.out().flush();
+                    String statusLine = Response.readLine(socket.in());
+                    if (statusLine == null) {
+                        throw new SocketException("Connection closed by server");
+                    }
+                    Response response = readResponse(statusLine, request,
+                            new SocketExchange(socket, limit, start));
+                    success = true;
+                    return response;
+                } catch (SocketException e) {
+                    socket.close();
+                    if (!reused || (written && !isIdempotent(request))) {
+                        throw e;
+                    }
+                    // the server closed the idle socket in the meantime: try again on a new one
+                } catch (IOException e) {
+                    socket.close();
+                    throw e;
+                }
+            }
+        } finally {
+            if (!success) {
+                limit.release();
+            }
+        }
+    }
+
+    /**
+     * @return whether sending the request twice does no harm. A {@code POST} that was received by
+     * the server right before the socket died must not be sent again, or e.g. a shout would be
+     * posted twice.
+     */
+    private static boolean isIdempotent(Request request) {
+        return request.method() != Request.Method.POST;
+    }
+
+    private static boolean isIdempotent(List<Request> requests) {
+        for (Request request : requests) {
+            if (!isIdempotent(request)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Waits for the permission to use another socket to the given address. Needs to be released
+     * afterwards.
+     */
+    private Semaphore acquire(String address, int timeout) throws IOException {
+        Semaphore limit = hostLimit(address);
+        try {
+            if (!limit.tryAcquire(timeout, TimeUnit.MILLISECONDS)) {
+                throw new IOException("Timed out waiting for a free connection to " + address);
+            }
+        } catch (InterruptedException e) {
+            throw new InterruptedIOException("Interrupted waiting for a free connection");
+        }
+        return limit;
+    }
+
+    private Semaphore hostLimit(String address) {
+        Semaphore limit = hostLimits.get(address);
+        if (limit == null) {
+            Semaphore created = new Semaphore(maxConnectionsPerHost, true);
+            limit = hostLimits.putIfAbsent(address, created);
+            if (limit == null) {
+                limit = created;
+            }
+        }
+        return limit;
+    }
+
+    private void writeRequest(OutputStream out, Request request) throws IOException {
+        URL url = request.url();
+        String path = url.getFile().isEmpty() ? "/" : url.getFile();
+        byte[] data = request.hasData() ? request.encodedData().getBytes("UTF-8") : null;
+
+        StringBuilder sb = new StringBuilder(256);
+        sb.append(request.method().name()).append(' ').append(path).append(" HTTP/1.1\r\n");
+        sb.append("Host: ").append(url.getHost());
+        if (url.getPort() != -1 && url.getPort() != url.getDefaultPort()) {
+            sb.append(':').append(url.getPort());
+        }
+        sb.append("\r\n");
+        for (Map.Entry<String, String> header : request.headers().entrySet()) {
+            sb.append(header.getKey()).append(": ").append(header.getValue()).append("\r\n");
+        }
+        if (!request.headers().containsKey("Accept-Encoding")) {
+            sb.append("Accept-Encoding: gzip, deflate\r\n");
+        }
+        sb.append("Connection: keep-alive\r\n");
+        if (!request.cookies().isEmpty()) {
+            sb.append("Cookie: ").append(request.cookies().toHeader()).append("\r\n");
+        }
+        if (data != null) {
+            sb.append("Content-Type: application/x-www-form-urlencoded; charset=UTF-8\r\n");
+            sb.append("Content-Length: ").append(data.length).append("\r\n");
+        }
+        sb.append("\r\n");
+
+        out.write(sb.toString().getBytes("ISO-8859-1"));
+        if (data != null) {
+            out.write(data);
+        }
+    }
+
+    private Response readResponse(String statusLine, Request request, SocketExchange exchange)
+            throws IOException {
+        InputStream in = exchange.socket.in();
+        long headerBytes = 0;
+
+        int statusCode;
+        String statusMessage;
+        Map<String, List<String>> headers;
+        while (true) {
+            // e.g. "HTTP/1.1 200 OK"
+            String[] status = statusLine.split(" ", 3);
+            if (status.length < 2 || !status[0].startsWith("HTTP/")) {
+                throw new IOException("Unexpected status line: " + statusLine);
+            }
+            try {
+                statusCode = Integer.parseInt(status[1]);
+            } catch (NumberFormatException e) {
+                throw new IOException("Unexpected status line: " + statusLine);
+            }
+            statusMessage = status.length > 2 ? status[2] : "";
+            headers = readHeaders(in);
+            headerBytes += statusLine.length() + 2 + size(headers);
+            if (statusCode != 100) {
+                break;
+            }
+            statusLine = Response.readLine(in); // skip "100 Continue"
+            if (statusLine == null) {
+                throw new SocketException("Connection closed by server");
+            }
+        }
+
+        CookieJar cookies = new CookieJar();
+        List<String> setCookies = headers.get("set-cookie");
+        if (setCookies != null) {
+            for (String setCookie : setCookies) {
+                cookies.parse(setCookie);
+            }
+        }
+
+        long bodyLength;
+        boolean keepAlive = isKeepAlive(statusLine, headers);
+        String transferEncoding = first(headers, "transfer-encoding");
+        String contentLength = first(headers, "content-length");
+        if (request.method() == Request.Method.HEAD
+                || statusCode == 204 || statusCode == 304 || (statusCode >= 100 && statusCode < 200)) {
+            bodyLength = 0;
+        } else if (transferEncoding != null && transferEncoding.toLowerCase().contains("chunked")) {
+            bodyLength = Response.LENGTH_CHUNKED;
+        } else if (contentLength != null) {
+            try {
+                bodyLength = Long.parseLong(contentLength.trim());
+            } catch (NumberFormatException e) {
+                throw new IOException("Invalid Content-Length: " + contentLength);
+            }
+        } else {
+            bodyLength = Response.LENGTH_UNTIL_EOF;
+            keepAlive = false;
+        }
+        exchange.socket.setKeepAlive(keepAliveTimeout(first(headers, "keep-alive")));
+
+        exchange.keepAlive = keepAlive;
+        exchange.stats = stats(request.endpoint());
+        return new Response(request.url(), statusCode, statusMessage, headers, cookies,
+                headerBytes, bodyLength, exchange);
+    }
+
+    /**
+     * @return all headers until the empty line, with lower case names.
+     */
+    private static Map<String, List<String>> readHeaders(InputStream in) throws IOException {
+        Map<String, List<String>> headers = new HashMap<>();
+        String line;
+        while ((line = Response.readLine(in)) != null && !line.isEmpty()) {
+            int colon = line.indexOf(':');
+            if (colon <= 0) {
+                continue;
+            }
+            String name = line.substring(0, colon).trim().toLowerCase();
+            List<String> values = headers.get(name);
+            if (values == null) {
+                values = new ArrayList<>(1);
+                headers.put(name, values);
+            }
+            values.add(line.substring(colon + 1).trim());
+        }
+        if (line == null) {
+            throw new SocketException("Connection closed by server while reading headers");
+        }
+        return headers;
+    }
+
+    /**
+     * @return the size of the given headers on the wire, including the terminating empty line.
+     */
+    private static long size(Map<String, List<String>> headers) {
+        long size = 2;
+        for (Map.Entry<String, List<String>> header : headers.entrySet()) {
+            for (String value : header.getValue()) {
+                size += header.getKey().length() + 2 + value.length() + 2;
+            }
+        }
+        return size;
+    }
+
+    private static String first(Map<String, List<String>> headers, String name) {
+        List<String> values = headers.get(name);
+        return values == null || values.isEmpty() ? null : values.get(0);
+    }
+
+    private static boolean isKeepAlive(String statusLine, Map<String, List<String>> headers) {
+        String connection = first(headers, "connection");
+        if (connection != null && connection.toLowerCase().contains("close")) {
+            return false;
+        }
+        if (statusLine.startsWith("HTTP/1.0")) {
+            return connection != null && connection.toLowerCase().contains("keep-alive");
+        }
+        return true;
+    }
+
+    /**
+     * @param keepAlive value of the {@code Keep-Alive} header, e.g. {@code timeout=5, max=100}
+     * @return the announced timeout in ms, or -1 if none.
+     */
+    private static long keepAliveTimeout(String keepAlive) {
+        if (keepAlive != null) {
+            for (String param : keepAlive.split(",")) {
+                param = param.trim();
+                if (param.startsWith("timeout=")) {
+                    try {
+                        return Long.parseLong(param.substring(8).trim()) * 1000;
+                    } catch (NumberFormatException ignored) {}
+                }
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * Ties a response to its socket. Hands the socket back to the pool once the response is done
+     * with it, unless it is used for further pipelined responses.
+     */
+    private class SocketExchange implements Response.Exchange {
+
+        final PooledSocket socket;
+        /* null if the socket is kept by the caller after the response */
+        final Semaphore limit;
+        final long start;
+        boolean keepAlive;
+        boolean reusable;
+        EndpointStats stats;
+
+        SocketExchange(PooledSocket socket, Semaphore limit, long start) {
+            this.socket = socket;
+            this.limit = limit;
+            this.start = start;
+        }
+
+        @Override
+        public void release(boolean reuse) {
+            reusable = reuse;
+            if (limit == null) {
+                return;
+            }
+            if (reuse) {
+                pool.put(socket);
+            } else {
+                socket.close();
+            }
+            limit.release();
+        }
+
+        @Override
+        public void complete(long wireBytes, long decodedBytes) {
+            stats.record(wireBytes, decodedBytes, System.nanoTime() / 1000000 - start);
+        }
+
+        @Override
+        public InputStream in() {
+            return socket.in();
+        }
+
+        @Override
+        public boolean isKeepAlive() {
+            return keepAlive;
+        }
+    }
+
+}
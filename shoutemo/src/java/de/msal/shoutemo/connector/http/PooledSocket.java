@@ -0,0 +1,175 @@
+/*
+ * Copyright 2016 Maximilian Salomon.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see http://www.gnu.org/licenses/.
+ */
+
+package de.msal.shoutemo.connector.http;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.net.URL;
+
+import javax.net.ssl.HttpsURLConnection;
+import javax.net.ssl.SSLSocket;
+import javax.net.ssl.SSLSocketFactory;
+
+/**
+ * A socket to a single host, which can be kept open and reused for several requests.
+ */
+final class PooledSocket {
+
+    private final String address;
+    private final Socket socket;
+    private final InputStream in;
+    private final OutputStream out;
+    private long idleSince;
+    private long keepAliveMillis = -1;
+
+    private PooledSocket(String address, Socket socket) throws IOException {
+        this.address = address;
+        this.socket = socket;
+        this.in = new BufferedInputStream(socket.getInputStream(), 8192);
+        this.out = new BufferedOutputStream(socket.getOutputStream(), 8192);
+    }
+
+    /**
+     * Opens a new socket to the host of the given url.
+     */
+    static PooledSocket open(URL url, int timeout) throws IOException {
+        String host = url.getHost();
+        int port = port(url);
+
+        Socket socket = new Socket();
+        try {
+            socket.setTcpNoDelay(true);
+            socket.setKeepAlive(true);
+            socket.connect(new InetSocketAddress(host, port), timeout);
+            if ("https".equalsIgnoreCase(url.getProtocol())) {
+                SSLSocketFactory factory = (SSLSocketFactory) SSLSocketFactory.getDefault();
+                SSLSocket sslSocket = (SSLSocket) factory.createSocket(socket, host, port, true);
+                sslSocket.startHandshake();
+                if (!HttpsURLConnection.getDefaultHostnameVerifier()
+                        .verify(host, sslSocket.getSession())) {
+                    sslSocket.close();
+                    throw new IOException("Hostname " + host + " not verified");
+                }
+                socket = sslSocket;
+            }
+            socket.setSoTimeout(timeout);
+            return new PooledSocket(address(url), socket);
+        } catch (IOException e) {
+            socket.close();
+            throw e;
+        }
+    }
+
+    /**
+     * @return the key sockets are pooled by: protocol, host and port of the given url.
+     */
+    static String address(URL url) {
+        return url.getProtocol() + "://" + url.getHost() + ":" + port(url);
+    }
+
+    private static int port(URL url) {
+        return url.getPort() != -1 ? url.getPort() : url.getDefaultPort();
+    }
+
+    String address() {
+        return address;
+    }
+
+    InputStream in() {
+        return in;
+    }
+
+    OutputStream out() {
+        return out;
+    }
+
+    void setTimeout(int timeout) throws IOException {
+        socket.setSoTimeout(timeout);
+    }
+
+    void setIdle(long now) {
+        idleSince = now;
+    }
+
+    /**
+     * @param millis how long the server promised to keep this socket open while idle, or -1 if
+     *               unknown.
+     */
+    void setKeepAlive(long millis) {
+        keepAliveMillis = millis;
+    }
+
+    /**
+     * @return {@code true} if this socket was idle for longer than the server (or the given
+     * default) keeps connections open.
+     */
+    boolean isExpired(long now, long defaultKeepAliveMillis) {
+        long keepAlive = keepAliveMillis >= 0
+                ? Math.min(keepAliveMillis, defaultKeepAliveMillis)
+                : defaultKeepAliveMillis;
+        return now - idleSince >= keepAlive;
+    }
+
+    /**
+     * Checks whether the server closed this socket in the meantime. Only done after a socket was
+     * idle for a while, as it blocks for up to 1ms.
+     */
+    boolean isHealthy(long now) {
+        if (socket.isClosed() || socket.isInputShutdown() || socket.isOutputShutdown()) {
+            return false;
+        }
+        if (now - idleSince < 1000) {
+            return true;
+        }
+        try {
+            int timeout = socket.getSoTimeout();
+            try {
+                socket.setSoTimeout(1);
+                in.mark(1);
+                if (in.read() == -1) {
+                    return false; // stream exhausted: the server closed the connection
+                }
+                in.reset();
+                return false; // unexpected data, the socket can't be reused
+            } finally {
+                socket.setSoTimeout(timeout);
+            }
+        } catch (SocketTimeoutException e) {
+            return true; // nothing to read: still open
+        } catch (IOException e) {
+            return false;
+        }
+    }
+
+    boolean isClosed() {
+        return socket.isClosed();
+    }
+
+    void close() {
+        try {
+            socket.close();
+        } catch (IOException ignored) {}
+    }
+
+}
@@ -0,0 +1,201 @@
+/*
+ * Copyright 2016 Maximilian Salomon.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see http://www.gnu.org/licenses/.
+ */
+
+package de.msal.shoutemo.connector.http;
+
+import java.io.UnsupportedEncodingException;
+import java.net.MalformedURLException;
+import java.net.URL;
+import java.net.URLEncoder;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * A single HTTP request, to be executed by a {@link HttpTransport}. Setters return the request
+ * itself, so calls can be chained like with {@link org.jsoup.Connection}.
+ */
+public class Request {
+
+    public enum Method {
+        GET, POST, HEAD
+    }
+
+    private URL url;
+    private Method method = Method.GET;
+    private final Map<String, String> headers = new LinkedHashMap<>();
+    private final CookieJar cookies = new CookieJar();
+    private final List<String> data = new ArrayList<>();
+    private int timeout = 30000;
+    private boolean followRedirects = true;
+    private String endpoint;
+
+    /**
+     * @param url the absolute url to request.
+     * @throws IllegalArgumentException if the url is malformed.
+     */
+    public Request(String url) {
+        try {
+            this.url = new URL(url);
+        } catch (MalformedURLException e) {
+            throw new IllegalArgumentException("Malformed URL: " + url, e);
+        }
+    }
+
+    public Request(URL url) {
+        this.url = url;
+    }
+
+    public URL url() {
+        return url;
+    }
+
+    public Method method() {
+        return method;
+    }
+
+    public Request method(Method method) {
+        this.method = method;
+        return this;
+    }
+
+    public int timeout() {
+        return timeout;
+    }
+
+    /**
+     * @param millis connect and read timeout, in ms.
+     */
+    public Request timeout(int millis) {
+        this.timeout = millis;
+        return this;
+    }
+
+    public boolean followRedirects() {
+        return followRedirects;
+    }
+
+    public Request followRedirects(boolean followRedirects) {
+        this.followRedirects = followRedirects;
+        return this;
+    }
+
+    /**
+     * @return the name the traffic of this request is accounted under. Defaults to the path of
+     * the url.
+     */
+    public String endpoint() {
+        return endpoint != null ? endpoint : url.getPath();
+    }
+
+    /**
+     * @param name the name the traffic of this request is accounted under, see {@link
+     *             HttpTransport#getStats()}.
+     */
+    public Request endpoint(String name) {
+        this.endpoint = name;
+        return this;
+    }
+
+    public Request userAgent(String userAgent) {
+        return header("User-Agent", userAgent);
+    }
+
+    public Request header(String name, String value) {
+        headers.put(name, value);
+        return this;
+    }
+
+    public Map<String, String> headers() {
+        return Collections.unmodifiableMap(headers);
+    }
+
+    public Request cookie(String name, String value) {
+        cookies.put(name, value);
+        return this;
+    }
+
+    public CookieJar cookies() {
+        return cookies;
+    }
+
+    /**
+     * Adds form data. Setting any data turns the request into a {@code POST} request, if it isn't
+     * one already.
+     *
+     * @param keyValuePairs an even number of alternating keys and values.
+     */
+    public Request data(String... keyValuePairs) {
+        if (keyValuePairs.length % 2 != 0) {
+            throw new IllegalArgumentException("Must supply an even number of key value pairs");
+        }
+        Collections.addAll(data, keyValuePairs);
+        method = Method.POST;
+        return this;
+    }
+
+    public boolean hasData() {
+        return !data.isEmpty();
+    }
+
+    /**
+     * @return the form data, url encoded as {@code application/x-www-form-urlencoded}.
+     */
+    public String encodedData() {
+        StringBuilder sb = new StringBuilder();
+        try {
+            for (int i = 0; i < data.size(); i += 2) {
+                if (i > 0) {
+                    sb.append('&');
+                }
+                sb.append(URLEncoder.encode(data.get(i), "UTF-8"))
+                        .append('=')
+                        .append(URLEncoder.encode(data.get(i + 1), "UTF-8"));
+            }
+        } catch (UnsupportedEncodingException e) {
+            throw new IllegalStateException(e); // UTF-8 is always supported
+        }
+        return sb.toString();
+    }
+
+    /**
+     * Creates the follow up request of a redirect: keeps headers, cookies and timeout, adds the
+     * cookies received so far and switches to {@code GET} (dropping all form data), unless the
+     * server asked to repeat the request as is.
+     *
+     * @param location   the absolute url to continue at.
+     * @param statusCode the status code of the redirecting response.
+     * @param received   cookies received with the redirecting response.
+     */
+    Request redirect(URL location, int statusCode, CookieJar received) {
+        Request next = new Request(location);
+        next.timeout = timeout;
+        next.followRedirects = followRedirects;
+        next.endpoint = endpoint;
+        next.headers.putAll(headers);
+        next.cookies.putAll(cookies);
+        next.cookies.putAll(received);
+        if (statusCode == 307 || statusCode == 308) {
+            next.method = method;
+            next.data.addAll(data);
+        }
+        return next;
+    }
+
+}
@@ -0,0 +1,69 @@
+/*
+ * Copyright 2016 Maximilian Salomon.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see http://www.gnu.org/licenses/.
+ */
+
+package de.msal.shoutemo.connector.http;
+
+/**
+ * Holds everything all requests to one site have in common (user agent, timeout, cookies), so that
+ * it doesn't have to be repeated for every single call.
+ */
+public class RequestTemplate {
+
+    private final String userAgent;
+    private final int timeout;
+    private final CookieJar cookies = new CookieJar();
+
+    /**
+     * @param userAgent the user agent to send with every request.
+     * @param timeout   connect and read timeout of every request, in ms.
+     */
+    public RequestTemplate(String userAgent, int timeout) {
+        this.userAgent = userAgent;
+        this.timeout = timeout;
+    }
+
+    /**
+     * @return the cookies that are sent with every request created from this template.
+     */
+    public CookieJar cookies() {
+        return cookies;
+    }
+
+    /**
+     * @return a new {@code GET} request for the given url, set up with this templates values.
+     */
+    public Request get(String url) {
+        return newRequest(url).method(Request.Method.GET);
+    }
+
+    /**
+     * @return a new {@code POST} request for the given url, set up with this templates values.
+     */
+    public Request post(String url) {
+        return newRequest(url).method(Request.Method.POST);
+    }
+
+    private Request newRequest(String url) {
+        Request request = new Request(url)
+                .userAgent(userAgent)
+                .timeout(timeout)
+                .followRedirects(true);
+        request.cookies().putAll(cookies);
+        return request;
+    }
+
+}
@@ -0,0 +1,540 @@
+/*
+ * Copyright 2016 Maximilian Salomon.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see http://www.gnu.org/licenses/.
+ */
+
+package de.msal.shoutemo.connector.http;
+
+import java.io.ByteArrayOutputStream;
+import java.io.EOFException;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.PushbackInputStream;
+import java.net.URL;
+import java.nio.charset.Charset;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.Inflater;
+import java.util.zip.InflaterInputStream;
+
+/**
+ * The response to a {@link Request}. The body is read lazily from the underlying socket, so every
+ * response <strong>must</strong> be {@link #close() closed}, or the socket can neither be reused
+ * nor be freed. Reading the body to its end closes the response automatically.
+ * <p/>
+ * Bodies sent with {@code Content-Encoding: gzip} or {@code deflate} are decompressed on the fly,
+ * while being read.
+ */
+public class Response {
+
+    /* bodies of unfinished responses up to this size get skipped to save the socket for reuse */
+    private static final int MAX_DRAIN_BYTES = 64 * 1024;
+    static final long LENGTH_CHUNKED = -1;
+    static final long LENGTH_UNTIL_EOF = -2;
+
+    private final URL url;
+    private final int statusCode;
+    private final String statusMessage;
+    private final Map<String, List<String>> headers;
+    private final CookieJar cookies;
+    private final long bodyLength;
+    /* the body as received on the wire */
+    private final InputStream body;
+    /* the body as seen by the caller, i.e. decompressed */
+    private InputStream decoded;
+    private Inflater inflater;
+    private final Exchange exchange;
+    private boolean exhausted;
+    private boolean released;
+    private boolean completed;
+    private long wireBytes;
+    private long decodedBytes;
+
+    /**
+     * Ties a response to the socket it is read from. Implemented by the {@link HttpTransport}.
+     */
+    interface Exchange {
+        /**
+         * Called exactly once, after the response is done with its socket.
+         *
+         * @param reusable {@code true} if the body was read completely and the socket can be used
+         *                 for further requests.
+         */
+        void release(boolean reusable);
+
+        /**
+         * Called exactly once, after the caller is done with the response: it was closed, aborted
+         * or its body was read to the end.
+         *
+         * @param wireBytes    the number of bytes received, including the headers.
+         * @param decodedBytes the number of body bytes read by the caller, after decompression.
+         */
+        void complete(long wireBytes, long decodedBytes);
+
+        /**
+         * @return the stream the body is read from.
+         */
+        InputStream in();
+
+        /**
+         * @return {@code true} if the server allows further requests on this socket.
+         */
+        boolean isKeepAlive();
+    }
+
+    /**
+     * @param headerBytes the size of status line and headers, as received.
+     * @param bodyLength  the length of the body, {@link #LENGTH_CHUNKED} or {@link
+     *                    #LENGTH_UNTIL_EOF}.
+     */
+    Response(URL url, int statusCode, String statusMessage, Map<String, List<String>> headers,
+            CookieJar cookies, long headerBytes, long bodyLength, Exchange exchange) {
+        this.url = url;
+        this.statusCode = statusCode;
+        this.statusMessage = statusMessage;
+        this.headers = headers;
+        this.cookies = cookies;
+        this.exchange = exchange;
+        this.wireBytes = headerBytes;
+        this.bodyLength = bodyLength;
+        if (bodyLength == LENGTH_CHUNKED) {
+            this.body = new ChunkedStream();
+        } else if (bodyLength == LENGTH_UNTIL_EOF) {
+            this.body = new UntilEofStream();
+        } else {
+            this.body = new FixedLengthStream(bodyLength);
+        }
+    }
+
+    /**
+     * @return the url this response was received from. May differ from the requested one, if
+     * redirects were followed.
+     */
+    public URL url() {
+        return url;
+    }
+
+    public int statusCode() {
+        return statusCode;
+    }
+
+    public String statusMessage() {
+        return statusMessage;
+    }
+
+    /**
+     * @param name case insensitive name of the header.
+     * @return the first value of the given header, or {@code null} if not present.
+     */
+    public String header(String name) {
+        List<String> values = headers.get(name.toLowerCase());
+        return values == null || values.isEmpty() ? null : values.get(0);
+    }
+
+    /**
+     * @param name case insensitive name of the header.
+     * @return all values of the given header.
+     */
+    public List<String> headers(String name) {
+        List<String> values = headers.get(name.toLowerCase());
+        return values == null ? Collections.<String>emptyList() : values;
+    }
+
+    /**
+     * @return all cookies received with this response, and the ones received with all redirects
+     * leading to it.
+     */
+    public CookieJar cookies() {
+        return cookies;
+    }
+
+    /**
+     * @return the charset given in the {@code Content-Type} header, or {@code null} if the server
+     * didn't provide one.
+     */
+    public String charset() {
+        String contentType = header("Content-Type");
+        if (contentType == null) {
+            return null;
+        }
+        for (String param : contentType.split(";")) {
+            param = param.trim();
+            if (param.regionMatches(true, 0, "charset=", 0, 8)) {
+                String charset = param.substring(8).replace("\"", "").trim();
+                return Charset.isSupported(charset) ? charset : null;
+            }
+        }
+        return null;
+    }
+
+    boolean isRedirect() {
+        switch (statusCode) {
+            case 301:
+            case 302:
+            case 303:
+            case 307:
+            case 308:
+                return header("Location") != null;
+            default:
+                return false;
+        }
+    }
+
+    /**
+     * @return the body of this response as stream, decompressed if necessary. The response gets
+     * closed, as soon as the end of the stream is reached.
+     * @throws IOException if the header of a compressed body can't be read.
+     */
+    public InputStream bodyStream() throws IOException {
+        if (decoded == null) {
+            String encoding = header("Content-Encoding");
+            encoding = encoding == null ? "" : encoding.trim().toLowerCase();
+            if (bodyLength == 0 || released) {
+                decoded = new CountingStream(body);
+            } else if (encoding.equals("gzip") || encoding.equals("x-gzip")) {
+                decoded = new CountingStream(new GZIPInputStream(body));
+            } else if (encoding.equals("deflate")) {
+                decoded = new CountingStream(inflate(body));
+            } else {
+                decoded = new CountingStream(body);
+            }
+        }
+        return decoded;
+    }
+
+    /**
+     * Servers disagree on what "deflate" means: most send zlib wrapped data as specified, some the
+     * raw deflate stream. Tells them apart by the zlib header.
+     */
+    private InputStream inflate(InputStream in) throws IOException {
+        PushbackInputStream pushback = new PushbackInputStream(in, 2);
+        int cmf = pushback.read();
+        int flg = cmf == -1 ? -1 : pushback.read();
+        if (flg != -1) {
+            pushback.unread(flg);
+        }
+        if (cmf != -1) {
+            pushback.unread(cmf);
+        }
+        boolean zlib = cmf != -1 && flg != -1 && (cmf & 0x0f) == 8 && ((cmf << 8) | flg) % 31 == 0;
+        inflater = new Inflater(!zlib);
+        return new InflaterInputStream(pushback, inflater);
+    }
+
+    /**
+     * @return the number of bytes received so far, including the headers.
+     */
+    public long wireBytes() {
+        return wireBytes;
+    }
+
+    /**
+     * @return the number of body bytes read so far, after decompression.
+     */
+    public long decodedBytes() {
+        return decodedBytes;
+    }
+
+    /**
+     * Reads the complete body and closes this response.
+     */
+    public byte[] bodyBytes() throws IOException {
+        try {
+            InputStream in = bodyStream();
+            ByteArrayOutputStream out = new ByteArrayOutputStream(8192);
+            byte[] buffer = new byte[8192];
+            int read;
+            while ((read = in.read(buffer)) != -1) {
+                out.write(buffer, 0, read);
+            }
+            return out.toByteArray();
+        } finally {
+            close();
+        }
+    }
+
+    /**
+     * Reads the complete body as text and closes this response.
+     */
+    public String body() throws IOException {
+        String charset = charset();
+        return new String(bodyBytes(), charset != null ? charset : "UTF-8");
+    }
+
+    /**
+     * Finishes this response. If the body wasn't read completely, the rest of it is skipped, as
+     * long as it is small; else the socket is closed instead of being reused.
+     */
+    public void close() {
+        endInflater();
+        if (!released && !exhausted) {
+            try {
+                long skipped = 0;
+                byte[] buffer = new byte[4096];
+                int read;
+                while (skipped <= MAX_DRAIN_BYTES && (read = body.read(buffer)) != -1) {
+                    skipped += read;
+                }
+            } catch (IOException ignored) {}
+        }
+        release();
+        complete();
+    }
+
+    /**
+     * Finishes this response without reading the rest of the body. The socket gets closed.
+     */
+    public void abort() {
+        if (!released) {
+            released = true;
+            exchange.release(false);
+        }
+        endInflater();
+        complete();
+    }
+
+    private void release() {
+        if (!released) {
+            released = true;
+            exchange.release(exhausted && exchange.isKeepAlive());
+        }
+    }
+
+    private void complete() {
+        if (!completed) {
+            completed = true;
+            exchange.complete(wireBytes, decodedBytes);
+        }
+    }
+
+    /*
+     * Frees the native memory of the inflater, once the caller is done with the body; a
+     * GZIPInputStream does that on its own. Not done on release, as the inflater may still hold
+     * input after the raw body was read completely.
+     */
+    private void endInflater() {
+        if (inflater != null) {
+            inflater.end();
+            inflater = null;
+        }
+    }
+
+    private void onExhausted() {
+        exhausted = true;
+        release();
+    }
+
+    /**
+     * Reads a single line terminated by {@code \n} (or {@code \r\n}), as used in HTTP status lines
+     * and headers.
+     *
+     * @return the line without its terminator, or {@code null} if the stream ended beforehand.
+     */
+    static String readLine(InputStream in) throws IOException {
+        StringBuilder sb = new StringBuilder(64);
+        int c;
+        while ((c = in.read()) != -1) {
+            if (c == '\n') {
+                int length = sb.length();
+                if (length > 0 && sb.charAt(length - 1) == '\r') {
+                    sb.setLength(length - 1);
+                }
+                return sb.toString();
+            }
+            sb.append((char) c);
+        }
+        return sb.length() == 0 ? null : sb.toString();
+    }
+
+    /**
+     * Base for all body streams: calls {@link #onExhausted()} once the end is reached.
+     */
+    private abstract class BodyStream extends InputStream {
+
+        @Override
+        public int read() throws IOException {
+            byte[] b = new byte[1];
+            return read(b, 0, 1) == -1 ? -1 : b[0] & 0xff;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            if (released) {
+                return -1;
+            }
+            int read = readBody(b, off, len);
+            if (read > 0) {
+                wireBytes += read;
+            }
+            if (read == -1 || isComplete()) {
+                onExhausted();
+            }
+            return read;
+        }
+
+        abstract int readBody(byte[] b, int off, int len) throws IOException;
+
+        /**
+         * @return {@code true} if the body is known to be read completely, without trying to read
+         * further.
+         */
+        boolean isComplete() {
+            return false;
+        }
+
+        @Override
+        public void close() {
+            Response.this.close();
+        }
+    }
+
+    private class FixedLengthStream extends BodyStream {
+
+        private long remaining;
+
+        FixedLengthStream(long length) {
+            remaining = length;
+            if (remaining == 0) {
+                onExhausted();
+            }
+        }
+
+        @Override
+        int readBody(byte[] b, int off, int len) throws IOException {
+            if (remaining == 0) {
+                return -1;
+            }
+            int read = exchange.in().read(b, off, (int) Math.min(len, remaining));
+            if (read == -1) {
+                throw new EOFException("Unexpected end of stream; " + remaining + " bytes missing");
+            }
+            remaining -= read;
+            return read;
+        }
+
+        @Override
+        boolean isComplete() {
+            return remaining == 0;
+        }
+    }
+
+    private class ChunkedStream extends BodyStream {
+
+        private long chunkRemaining = 0;
+        private boolean lastChunk = false;
+
+        @Override
+        int readBody(byte[] b, int off, int len) throws IOException {
+            if (lastChunk) {
+                return -1;
+            }
+            if (chunkRemaining == 0) {
+                if (!nextChunk()) {
+                    return -1;
+                }
+            }
+            int read = exchange.in().read(b, off, (int) Math.min(len, chunkRemaining));
+            if (read == -1) {
+                throw new EOFException("Unexpected end of chunked stream");
+            }
+            chunkRemaining -= read;
+            return read;
+        }
+
+        private boolean nextChunk() throws IOException {
+            InputStream in = exchange.in();
+            String line = readLine(in);
+            if (line != null && line.isEmpty()) { // the CRLF that terminates the previous chunk
+                line = readLine(in);
+            }
+            if (line == null) {
+                throw new EOFException("Unexpected end of chunked stream");
+            }
+            int extension = line.indexOf(';');
+            if (extension != -1) {
+                line = line.substring(0, extension);
+            }
+            try {
+                chunkRemaining = Long.parseLong(line.trim(), 16);
+            } catch (NumberFormatException e) {
+                throw new IOException("Invalid chunk size: " + line);
+            }
+            if (chunkRemaining == 0) {
+                // skip the trailers
+                String trailer;
+                do {
+                    trailer = readLine(in);
+                } while (trailer != null && !trailer.isEmpty());
+                lastChunk = true;
+                onExhausted();
+                return false;
+            }
+            return true;
+        }
+    }
+
+    /**
+     * Counts the bytes handed out to the caller.
+     */
+    private class CountingStream extends FilterInputStream {
+
+        CountingStream(InputStream in) {
+            super(in);
+        }
+
+        @Override
+        public int read() throws IOException {
+            int b = in.read();
+            if (b != -1) {
+                decodedBytes++;
+            } else {
+                endInflater();
+                complete();
+            }
+            return b;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            int read = in.read(b, off, len);
+            if (read > 0) {
+                decodedBytes += read;
+            } else if (read == -1) {
+                endInflater();
+                complete();
+            }
+            return read;
+        }
+
+        @Override
+        public long skip(long n) throws IOException {
+            long skipped = in.skip(n);
+            decodedBytes += skipped;
+            return skipped;
+        }
+    }
+
+    private class UntilEofStream extends BodyStream {
+
+        @Override
+        int readBody(byte[] b, int off, int len) throws IOException {
+            return exchange.in().read(b, off, len);
+        }
+    }
+
+}
@@ -37,7 +37,8 @@ public class Author implements Comparable<Author>, Parcelable {
 
     private final String name;
     private final Type type;
-    private final String avatar;
+    /* not part of the identity: attached by the AuthorPool once it is known */
+    private volatile String avatar;
 
     /**
      * Creates a new Author by parsing the given Element and stripping out the (nick)name and type
@@ -49,13 +50,7 @@ public class Author implements Comparable<Author>, Parcelable {
      */
     public Author(Element e1, String avatarUrl) {
         this.name = e1.text();
-        if (e1.getAllElements().hasClass("autemo_admin_color")) {
-            this.type = Type.ADMIN;
-        } else if (e1.getAllElements().hasClass("autemo_color")) {
-            this.type = Type.MOD;
-        } else {
-            this.type = Type.USER;
-        }
+        this.type = toType(e1);
         this.avatar = avatarUrl;
     }
 
@@ -65,12 +60,6 @@ public class Author implements Comparable<Author>, Parcelable {
         this.avatar = avatarUrl;
     }
 
-    public Author(Parcel in) {
-        this.name = in.readString();
-        this.type = (Type) in.readSerializable();
-        this.avatar = in.readString();
-    }
-
     /**
      * @return the (nick)name of this Authors
      */
@@ -92,6 +81,10 @@ public class Author implements Comparable<Author>, Parcelable {
         return avatar;
     }
 
+    void setAvatar(String avatarUrl) {
+        this.avatar = avatarUrl;
+    }
+
     @Override
     public String toString() {
         String s = this.name;
@@ -128,20 +121,35 @@ public class Author implements Comparable<Author>, Parcelable {
         }
         Author author = (Author) o;
         return Objects.equal(name, author.name) &&
-                type == author.type &&
-                Objects.equal(avatar, author.avatar);
+                type == author.type;
     }
 
     @Override
     public int hashCode() {
-        return Objects.hashCode(name, type, avatar);
+        return Objects.hashCode(name, type);
     }
 
     public static Author fromCursor(Cursor c) {
         String authorName = c.getString(c.getColumnIndexOrThrow(ChatDb.Authors.COLUMN_NAME_NAME));
         Type authorType = Type.valueOf(c.getString(c.getColumnIndexOrThrow(ChatDb.Authors.COLUMN_NAME_TYPE)));
 
-        return new Author(authorName, authorType, null);
+        return AuthorPool.get(authorName, authorType, null);
+    }
+
+    /**
+     * Like {@link #Author(Element, String)}, but returns the shared instance of this author.
+     */
+    static Author fromElement(Element e1) {
+        return AuthorPool.get(e1.text(), toType(e1), null);
+    }
+
+    private static Type toType(Element e1) {
+        if (e1.getAllElements().hasClass("autemo_admin_color")) {
+            return Type.ADMIN;
+        } else if (e1.getAllElements().hasClass("autemo_color")) {
+            return Type.MOD;
+        }
+        return Type.USER;
     }
 
     /**
@@ -169,14 +177,12 @@ public class Author implements Comparable<Author>, Parcelable {
 
     @Override
     public void writeToParcel(Parcel dest, int flags) {
-        dest.writeString(name);
-        dest.writeSerializable(type);
-        dest.writeString(avatar);
+        dest.writeByteArray(PostCodec.encode(this));
     }
 
-    public static final Parcelable.Creator CREATOR = new Parcelable.Creator() {
+    public static final Parcelable.Creator<Author> CREATOR = new Parcelable.Creator<Author>() {
         public Author createFromParcel(Parcel in) {
-            return new Author(in);
+            return PostCodec.decodeAuthor(in.createByteArray());
         }
 
         public Author[] newArray(int size) {
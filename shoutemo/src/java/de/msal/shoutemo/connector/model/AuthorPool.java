@@ -0,0 +1,82 @@
+/*
+ * Copyright 2016 Maximilian Salomon.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see http://www.gnu.org/licenses/.
+ */
+
+package de.msal.shoutemo.connector.model;
+
+import com.google.common.cache.CacheBuilder;
+
+import java.util.EnumMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * Hands out one shared {@link Author} per name and type. The same few dozen users write nearly all
+ * posts, so instead of creating a new Author for each of them on every poll and every reload, the
+ * already known one is reused. Comparing them this way mostly ends at the identity check of
+ * {@link Author#equals(Object)}.
+ * <p/>
+ * Once an avatar of a user is known (e.g. from the online users), it is attached to the shared
+ * Author of this user, even if the caller didn't know it. The avatar isn't part of the identity, so
+ * the Author stays equal to itself before and after.
+ * <p/>
+ * Holds at most {@value #MAX_SIZE} users per type; the least recently used ones are dropped.
+ */
+final class AuthorPool {
+
+    private static final int MAX_SIZE = 256;
+
+    private static final Map<Author.Type, ConcurrentMap<String, Author>> AUTHORS =
+            new EnumMap<>(Author.Type.class);
+
+    static {
+        for (Author.Type type : Author.Type.values()) {
+            ConcurrentMap<String, Author> authors = CacheBuilder.newBuilder()
+                    .maximumSize(MAX_SIZE)
+                    .<String, Author>build()
+                    .asMap();
+            AUTHORS.put(type, authors);
+        }
+    }
+
+    private AuthorPool() {
+    }
+
+    /**
+     * @param name      the (nick)name of the author.
+     * @param type      the type of the author.
+     * @param avatarUrl url to the users avatar, or null if not known.
+     * @return the shared Author with the given name and type. Carries the given avatar, or the last
+     * one known.
+     */
+    static Author get(String name, Author.Type type, String avatarUrl) {
+        ConcurrentMap<String, Author> authors = AUTHORS.get(type);
+        Author known = authors.get(name);
+        if (known == null) {
+            Author author = new Author(name, type, avatarUrl);
+            known = authors.putIfAbsent(name, author);
+            if (known == null) {
+                return author;
+            }
+            // lost a race against another thread: use its Author
+        }
+        if (avatarUrl != null) {
+            known.setAvatar(avatarUrl);
+        }
+        return known;
+    }
+
+}
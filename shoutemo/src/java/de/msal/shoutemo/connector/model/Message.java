@@ -19,9 +19,12 @@ package de.msal.shoutemo.connector.model;
 
 import com.google.common.base.Objects;
 
+import org.jsoup.Jsoup;
 import org.jsoup.nodes.Element;
 
 import android.database.Cursor;
+import android.os.Parcel;
+import android.os.Parcelable;
 
 import de.msal.shoutemo.db.ChatDb;
 
@@ -32,44 +35,58 @@ import de.msal.shoutemo.db.ChatDb;
  * @version 1.0
  * @since 21.09.13
  */
-public class Message implements Comparable<Message> {
+public class Message implements Comparable<Message>, Parcelable {
 
-    private final String html, text;
+    private final String html;
+    /* derived from the html when first needed, if not given */
+    private volatile String text;
     private Type type;
 
     /**
-     * Creates a Message by parsing the given {@link Element} and getting the message, both in html
-     * format and as plain text, and the type from it.
+     * Creates a Message by parsing the given {@link Element} and getting the message in html format
+     * and the type from it. The plain text is only derived from the html when needed.
      *
      * @param e needs to be of type getElementsByClass("ys-post")!
      */
     Message(Element e) {
-        this.text = e.getElementsByClass("ys-post-message").text();
         this.html = e.getElementsByClass("ys-post-message").html();
 
-      /* message type: new thread announcement or shout or global announcement? */
-        String type = e.ownText();
-        if (type.equals("says:")) {
-            this.type = Type.SHOUT;
-        } else if (e.hasClass("ys-isglobal")) {
-            this.type = Type.GLOBAL;
-        } else if (type.equals("just started a new thread:")) {
-            this.type = Type.THREAD;
-        } else if (type.equals("just got a new chopping award in:")) {
-            this.type = Type.AWARD;
-        } else if (type.equals("just created a new competition:")) {
-            this.type = Type.COMPETITION;
-        } else if (type.equals("Just got Promoted")) {
-            this.type = Type.PROMOTION;
-        }
+        this.type = toType(e.ownText(), e.hasClass("ys-isglobal"));
     }
 
+    /**
+     * @param text the plain text, or null to derive it from the html when needed.
+     */
     Message(String html, String text, Type type) {
         this.html = html;
         this.text = text;
         this.type = type;
     }
 
+    /**
+     * Determines the message type: new thread announcement or shout or global announcement?
+     *
+     * @param ownText the text of the "ys-post" element itself, without the text of its children.
+     * @param global  whether the "ys-post" element has the class "ys-isglobal".
+     * @return the type, or null if unknown.
+     */
+    static Type toType(String ownText, boolean global) {
+        if (ownText.equals("says:")) {
+            return Type.SHOUT;
+        } else if (global) {
+            return Type.GLOBAL;
+        } else if (ownText.equals("just started a new thread:")) {
+            return Type.THREAD;
+        } else if (ownText.equals("just got a new chopping award in:")) {
+            return Type.AWARD;
+        } else if (ownText.equals("just created a new competition:")) {
+            return Type.COMPETITION;
+        } else if (ownText.equals("Just got Promoted")) {
+            return Type.PROMOTION;
+        }
+        return null;
+    }
+
     /**
      * @return the html-code of this Message or null if not existing.
      */
@@ -82,9 +99,29 @@ public class Message implements Comparable<Message> {
      * text gets stripped, like links or embedded images.
      */
     public String getText() {
+        String text = this.text;
+        if (text == null && html != null) {
+            text = toText(html);
+            this.text = text;
+        }
+        return text;
+    }
+
+    /**
+     * @return the plain text, if it is known already. Doesn't derive it.
+     */
+    String getTextIfKnown() {
         return text;
     }
 
+    /**
+     * @param html the html of a message.
+     * @return the plain text of the html, as {@link #getText()} gives it.
+     */
+    public static String toText(String html) {
+        return Jsoup.parseBodyFragment(html).body().text();
+    }
+
     /**
      * @return the {@link de.msal.shoutemo.connector.model.Message.Type} of this Message or null if
      * not existing.
@@ -95,7 +132,7 @@ public class Message implements Comparable<Message> {
 
     @Override
     public String toString() {
-        return ("(" + this.type + ") " + this.text);
+        return ("(" + this.type + ") " + getText());
     }
 
     /**
@@ -113,7 +150,7 @@ public class Message implements Comparable<Message> {
         int tmp;
         tmp = this.type.compareTo(message.type);
         tmp = tmp == 0 ? this.type.compareTo(message.type) : tmp;
-        return tmp == 0 ? this.text.compareTo(message.text) : tmp;
+        return tmp == 0 ? getText().compareTo(message.getText()) : tmp;
     }
 
     @Override
@@ -125,14 +162,14 @@ public class Message implements Comparable<Message> {
             return false;
         }
         Message message = (Message) o;
+        /* the text follows from the html */
         return Objects.equal(html, message.html) &&
-                Objects.equal(text, message.text) &&
                 type == message.type;
     }
 
     @Override
     public int hashCode() {
-        return Objects.hashCode(html, text, type);
+        return Objects.hashCode(html, type);
     }
 
     public static Message fromCursor(Cursor c) {
@@ -173,4 +210,24 @@ public class Message implements Comparable<Message> {
         PROMOTION;
     }
 
+    @Override
+    public int describeContents() {
+        return 0;
+    }
+
+    @Override
+    public void writeToParcel(Parcel dest, int flags) {
+        dest.writeByteArray(PostCodec.encode(this));
+    }
+
+    public static final Parcelable.Creator<Message> CREATOR = new Parcelable.Creator<Message>() {
+        public Message createFromParcel(Parcel in) {
+            return PostCodec.decodeMessage(in.createByteArray());
+        }
+
+        public Message[] newArray(int size) {
+            return new Message[size];
+        }
+    };
+
 }
@@ -0,0 +1,344 @@
+/*
+ * Copyright 2016 Maximilian Salomon.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see http://www.gnu.org/licenses/.
+ */
+
+package de.msal.shoutemo.connector.model;
+
+import org.jsoup.parser.Parser;
+
+import java.io.IOException;
+import java.io.Reader;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Extracts the online users from the forums page while it is still being downloaded. Every user
+ * is an element like
+ * <pre>{@code <div style="width:170px;display:block;float:left;">
+ *     <img src="avatar_th.jpg" /> <a href="profiles/?id=user" [class="autemo_color"]>user</a>
+ * </div>}</pre>
+ * and all of them are siblings. Scanning stops right after the last one, so the rest of the page
+ * doesn't have to be read at all.
+ * <p/>
+ * Gives the same names and types as {@link Author#Author(org.jsoup.nodes.Element, String)}.
+ */
+public final class OnlineUsersScanner {
+
+    /**
+     * Turns the avatar {@code src} attribute into the url to use.
+     */
+    public interface AvatarResolver {
+        String resolve(String src);
+    }
+
+    private static final String USER_STYLE = "width:170px;display:block;float:left;";
+
+    private final Reader in;
+    private final AvatarResolver resolver;
+    private final StringBuilder tag = new StringBuilder(128);
+    private final StringBuilder text = new StringBuilder(32);
+    private int peeked = -2;
+    private boolean finished;
+
+    /* state of the current user element: the depth of divs in it, or 0 if not inside of one */
+    private int userDepth;
+    private boolean afterUser;
+    private boolean inName, nameDone;
+    private String avatarSrc;
+    private boolean admin, mod;
+
+    /**
+     * @param in       the forums page. Not closed by the scanner.
+     * @param resolver makes the avatar urls absolute.
+     */
+    public OnlineUsersScanner(Reader in, AvatarResolver resolver) {
+        this.in = in;
+        this.resolver = resolver;
+    }
+
+    /**
+     * @return the online users, in order of appearance.
+     */
+    public List<Author> scan() throws IOException {
+        List<Author> authors = new ArrayList<>(25);
+        int c;
+        while (!finished && (c = read()) != -1) {
+            if (c == '<') {
+                readMarkup(authors);
+            } else if (inName) {
+                text.append((char) c);
+            }
+        }
+        return authors;
+    }
+
+    /**
+     * @return {@code true} if the scan ended after the users, before the end of the page.
+     */
+    public boolean isFinishedEarly() {
+        return finished;
+    }
+
+    private void readMarkup(List<Author> authors) throws IOException {
+        int c = peek();
+        if (c == '!') {
+            read();
+            if (peek() == '-') {
+                skipPast("-->");
+            } else {
+                skipPast(">"); // doctype
+            }
+            return;
+        } else if (c == '/') {
+            read();
+            readTag();
+            onEndTag(tagName(), authors);
+            return;
+        } else if (!isLetter(c)) { // just a "<" in the text
+            if (inName) {
+                text.append('<');
+            }
+            return;
+        }
+        readTag();
+        String name = tagName();
+        onStartTag(name);
+        if (name.equals("script") || name.equals("style")) {
+            skipPast("</" + name);
+            skipPast(">");
+        }
+    }
+
+    private void onStartTag(String name) {
+        boolean selfClosing = tag.length() > 0 && tag.charAt(tag.length() - 1) == '/';
+        if (userDepth == 0) {
+            if (name.equals("div") && isUser(attribute("style"))) {
+                userDepth = 1;
+                nameDone = false;
+                avatarSrc = null;
+                admin = mod = false;
+            } else if (afterUser && name.equals("div")) {
+                finished = true; // something else follows the users
+            }
+            return;
+        }
+        if (name.equals("div") && !selfClosing) {
+            userDepth++;
+        } else if (name.equals("img") && avatarSrc == null) {
+            avatarSrc = attribute("src");
+        } else if (name.equals("a") && !nameDone) {
+            inName = true;
+            text.setLength(0);
+        }
+        if (inName) {
+            checkClass();
+        }
+    }
+
+    private void onEndTag(String name, List<Author> authors) {
+        if (userDepth == 0) {
+            if (afterUser) {
+                finished = true; // the parent of the users got closed
+            }
+            return;
+        }
+        if (name.equals("a") && inName) {
+            inName = false;
+            nameDone = true;
+        } else if (name.equals("div") && --userDepth == 0) {
+            if (nameDone) {
+                authors.add(AuthorPool.get(normalize(text), toType(),
+                        avatarSrc == null ? null : resolver.resolve(avatarSrc)));
+            }
+            afterUser = true;
+        }
+    }
+
+    private static boolean isUser(String style) {
+        return style != null && style.trim().equalsIgnoreCase(USER_STYLE);
+    }
+
+    private Author.Type toType() {
+        if (admin) {
+            return Author.Type.ADMIN;
+        } else if (mod) {
+            return Author.Type.MOD;
+        }
+        return Author.Type.USER;
+    }
+
+    private void checkClass() {
+        String classes = attribute("class");
+        if (classes == null) {
+            return;
+        }
+        for (String name : classes.trim().split("\\s+")) {
+            if (name.equalsIgnoreCase("autemo_admin_color")) {
+                admin = true;
+            } else if (name.equalsIgnoreCase("autemo_color")) {
+                mod = true;
+            }
+        }
+    }
+
+    /**
+     * Reads the rest of a tag (after its "&lt;") into {@link #tag}, up to its closing "&gt;".
+     */
+    private void readTag() throws IOException {
+        tag.setLength(0);
+        char quote = 0;
+        int c;
+        while ((c = read()) != -1) {
+            if (quote != 0) {
+                if (c == quote) {
+                    quote = 0;
+                }
+            } else if (c == '"' || c == '\'') {
+                quote = (char) c;
+            } else if (c == '>') {
+                break;
+            }
+            tag.append((char) c);
+        }
+        int length = tag.length();
+        while (length > 0 && Character.isWhitespace(tag.charAt(length - 1))) {
+            length--;
+        }
+        tag.setLength(length);
+    }
+
+    private String tagName() {
+        int end = 0;
+        while (end < tag.length() && !Character.isWhitespace(tag.charAt(end))
+                && tag.charAt(end) != '/') {
+            end++;
+        }
+        return tag.substring(0, end).toLowerCase();
+    }
+
+    /**
+     * @return the decoded value of the given attribute of the current tag, or {@code null}.
+     */
+    private String attribute(String name) {
+        int i = 0;
+        int length = tag.length();
+        while (i < length && !Character.isWhitespace(tag.charAt(i))) { // skip the tag name
+            i++;
+        }
+        while (i < length) {
+            while (i < length && (Character.isWhitespace(tag.charAt(i)) || tag.charAt(i) == '/')) {
+                i++;
+            }
+            int nameStart = i;
+            while (i < length && tag.charAt(i) != '=' && tag.charAt(i) != '/'
+                    && !Character.isWhitespace(tag.charAt(i))) {
+                i++;
+            }
+            int nameEnd = i;
+            while (i < length && Character.isWhitespace(tag.charAt(i))) {
+                i++;
+            }
+            String value = "";
+            if (i < length && tag.charAt(i) == '=') {
+                i++;
+                while (i < length && Character.isWhitespace(tag.charAt(i))) {
+                    i++;
+                }
+                int valueStart;
+                int valueEnd;
+                if (i < length && (tag.charAt(i) == '"' || tag.charAt(i) == '\'')) {
+                    char quote = tag.charAt(i);
+                    valueStart = ++i;
+                    while (i < length && tag.charAt(i) != quote) {
+                        i++;
+                    }
+                    valueEnd = i++;
+                } else {
+                    valueStart = i;
+                    while (i < length && !Character.isWhitespace(tag.charAt(i))) {
+                        i++;
+                    }
+                    valueEnd = i;
+                }
+                value = tag.substring(valueStart, Math.min(valueEnd, length));
+            }
+            if (nameEnd > nameStart && name.length() == nameEnd - nameStart
+                    && tag.substring(nameStart, nameEnd).equalsIgnoreCase(name)) {
+                return Parser.unescapeEntities(value, true);
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Skips everything up to and including the given string, ignoring case.
+     */
+    private void skipPast(String end) throws IOException {
+        int matched = 0;
+        int c;
+        while (matched < end.length() && (c = read()) != -1) {
+            if (Character.toLowerCase((char) c) == end.charAt(matched)) {
+                matched++;
+            } else {
+                matched = Character.toLowerCase((char) c) == end.charAt(0) ? 1 : 0;
+            }
+        }
+    }
+
+    private int read() throws IOException {
+        if (peeked != -2) {
+            int c = peeked;
+            peeked = -2;
+            return c;
+        }
+        return in.read();
+    }
+
+    private int peek() throws IOException {
+        if (peeked == -2) {
+            peeked = in.read();
+        }
+        return peeked;
+    }
+
+    /**
+     * Decodes the entities and collapses the whitespace, like {@link
+     * org.jsoup.nodes.Element#text()}.
+     */
+    private static String normalize(StringBuilder raw) {
+        String decoded = Parser.unescapeEntities(raw.toString(), false);
+        StringBuilder sb = new StringBuilder(decoded.length());
+        boolean space = false;
+        for (int i = 0; i < decoded.length(); i++) {
+            char c = decoded.charAt(i);
+            if (c == ' ' || c == '\t' || c == '\n' || c == '\f' || c == '\r') {
+                space = sb.length() > 0;
+            } else {
+                if (space) {
+                    sb.append(' ');
+                    space = false;
+                }
+                sb.append(c);
+            }
+        }
+        return sb.toString();
+    }
+
+    private static boolean isLetter(int c) {
+        return c >= 'a' && c <= 'z' || c >= 'A' && c <= 'Z';
+    }
+
+}
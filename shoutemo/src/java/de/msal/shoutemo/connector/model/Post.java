@@ -18,16 +18,18 @@
 package de.msal.shoutemo.connector.model;
 
 import com.google.common.base.Objects;
+import com.google.common.hash.Hasher;
+import com.google.common.hash.Hashing;
 
 import org.jsoup.nodes.Element;
+import org.jsoup.parser.Parser;
+import org.jsoup.parser.Tag;
 
 import android.database.Cursor;
+import android.os.Parcel;
+import android.os.Parcelable;
 
-import java.text.ParseException;
-import java.text.SimpleDateFormat;
-import java.util.Calendar;
 import java.util.Date;
-import java.util.GregorianCalendar;
 import java.util.Locale;
 
 import de.msal.shoutemo.db.ChatDb;
@@ -39,11 +41,14 @@ import de.msal.shoutemo.db.ChatDb;
  * @version 1.0
  * @since 22.09.13
  */
-public class Post implements Comparable<Post> {
+public class Post implements Comparable<Post>, Parcelable {
+
+    private static final PostDateDecoder DATE_DECODER = new PostDateDecoder();
 
     private Author author;
     private final Message message;
     private final Date date;
+    private final long fingerprint;
 
     /**
      * Creates a new Post through parsing the given {@link Element}. Tries to set {@link Message},
@@ -53,16 +58,22 @@ public class Post implements Comparable<Post> {
      */
     public Post(Element e) {
         if (e.getAllElements().hasClass("ys-post-nickname")) {
-            this.author = new Author(e.getElementsByClass("ys-post-nickname").first(), null);
+            this.author = Author.fromElement(e.getElementsByClass("ys-post-nickname").first());
         }
         this.message = new Message(e);
         this.date = toDate(e.getElementsByClass("ys-post-info").text());
+        this.fingerprint = fingerprint(date.getTime(), author, message);
     }
 
     public Post(Author author, Message message, Date date) {
+        this(author, message, date, fingerprint(date.getTime(), author, message));
+    }
+
+    Post(Author author, Message message, Date date, long fingerprint) {
         this.author = author;
         this.message = message;
         this.date = date;
+        this.fingerprint = fingerprint;
     }
 
     /**
@@ -86,6 +97,16 @@ public class Post implements Comparable<Post> {
         return message;
     }
 
+    /**
+     * @return a 64 bit hash of date, author, type and html of the Post. Two Posts with a different
+     * fingerprint are different; with the same one they are equal (as far as the shoutbox is
+     * concerned). Doesn't depend on whether the Post was parsed by Jsoup, by the {@link
+     * PostTokenizer} or read from the database.
+     */
+    public long getFingerprint() {
+        return fingerprint;
+    }
+
     @Override
     public String toString() {
         return date + " - " + author + ":\t" + message;
@@ -117,14 +138,15 @@ public class Post implements Comparable<Post> {
             return false;
         }
         Post post = (Post) o;
-        return Objects.equal(author, post.author) &&
+        return fingerprint == post.fingerprint &&
+                Objects.equal(author, post.author) &&
                 Objects.equal(message, post.message) &&
                 Objects.equal(date, post.date);
     }
 
     @Override
     public int hashCode() {
-        return Objects.hashCode(author, message, date);
+        return (int) (fingerprint ^ (fingerprint >>> 32));
     }
 
     public static Post fromCursor(Cursor c) {
@@ -133,7 +155,7 @@ public class Post implements Comparable<Post> {
         String authorName = c.getString(c.getColumnIndexOrThrow(ChatDb.Authors.COLUMN_NAME_NAME));
         if (authorName != null) {
             Author.Type authorType = Author.Type.valueOf(c.getString(c.getColumnIndexOrThrow(ChatDb.Authors.COLUMN_NAME_TYPE)));
-            author = new Author(authorName, authorType, null);
+            author = AuthorPool.get(authorName, authorType, null);
         }
 
         // Message
@@ -144,8 +166,219 @@ public class Post implements Comparable<Post> {
 
         // Post
         Long timestamp = c.getLong(c.getColumnIndexOrThrow(ChatDb.Messages.COLUMN_NAME_TIMESTAMP));
+        int fingerprintIndex = c.getColumnIndex(ChatDb.Messages.COLUMN_NAME_FINGERPRINT);
+        if (fingerprintIndex < 0) {
+            return new Post(author, message, new Date(timestamp));
+        }
+        return new Post(author, message, new Date(timestamp), c.getLong(fingerprintIndex));
+    }
+
+    private static long fingerprint(long timestamp, Author author, Message message) {
+        return fingerprint(timestamp, author == null ? null : author.getName(),
+                message.getType(), message.getHtml());
+    }
+
+    /**
+     * Computes the {@link #getFingerprint() fingerprint} of a Post. The html is hashed in a
+     * canonical form, on which the html sent by the server and the one re-serialized by Jsoup
+     * agree. See {@link #putCanonicalHtml(Hasher, CharSequence)}.
+     *
+     * @param timestamp  the date of the Post, in ms.
+     * @param authorName the name of the author, or null if there is none.
+     * @param type       the type of the message, may be null.
+     * @param html       the html of the message, may be null.
+     * @return the fingerprint.
+     */
+    public static long fingerprint(long timestamp, String authorName, Message.Type type,
+                                   CharSequence html) {
+        Hasher hasher = Hashing.murmur3_128().newHasher()
+                .putLong(timestamp);
+        if (authorName != null) {
+            hasher.putUnencodedChars(authorName);
+        }
+        hasher.putChar('\0');
+        if (type != null) {
+            hasher.putUnencodedChars(type.name());
+        }
+        hasher.putChar('\0');
+        if (html != null) {
+            putCanonicalHtml(hasher, html);
+        }
+        return hasher.hash().asLong();
+    }
+
+    /**
+     * Feeds the given html into the hasher as a sequence of texts and start tags:
+     * <ul>
+     * <li>Texts with decoded entities, and each run of whitespace collapsed to a single space.
+     * Whitespace next to block tags is left out, as Jsoup indents there. Other whitespace is kept,
+     * so that e.g. {@code "a b"} and {@code "ab"} differ.</li>
+     * <li>Start tags by their lower case name and their attributes, with decoded values. How the
+     * values are quoted, the slashes of self-closing tags and the end tags are left out: Jsoup
+     * writes them its own way, and closes elements the server left open.</li>
+     * <li>Comments are left out.</li>
+     * </ul>
+     */
+    private static void putCanonicalHtml(Hasher hasher, CharSequence html) {
+        StringBuilder text = new StringBuilder();
+        boolean afterBlock = true; // the start of the html is like a block boundary
+        int length = html.length();
+        int i = 0;
+        while (i < length) {
+            char c = html.charAt(i);
+            char next = i + 1 < length ? html.charAt(i + 1) : 0;
+            boolean endTag = c == '<' && next == '/' && i + 2 < length
+                    && isLetter(html.charAt(i + 2));
+            if (c != '<' || !(isLetter(next) || endTag || next == '!' || next == '?')) {
+                text.append(c);
+                i++;
+                continue;
+            }
+            if (next == '!' || next == '?') { // comments, doctypes and the like
+                i = startsWith(html, "<!--", i) ? indexAfter(html, "-->", i + 4)
+                        : indexAfter(html, ">", i + 2);
+                continue;
+            }
+            int nameStart = endTag ? i + 2 : i + 1;
+            int nameEnd = nameStart;
+            while (nameEnd < length && !isWhitespace(html.charAt(nameEnd))
+                    && html.charAt(nameEnd) != '/' && html.charAt(nameEnd) != '>') {
+                nameEnd++;
+            }
+            String name = html.subSequence(nameStart, nameEnd).toString().toLowerCase(Locale.US);
+            boolean block = Tag.valueOf(name).isBlock();
+            putText(hasher, text, afterBlock, block);
+            afterBlock = block;
+            if (endTag) {
+                i = indexAfter(html, ">", nameEnd);
+            } else {
+                hasher.putChar('\2').putUnencodedChars(name);
+                i = putAttributes(hasher, html, nameEnd);
+            }
+        }
+        putText(hasher, text, afterBlock, true);
+    }
+
+    /**
+     * Feeds the attributes of a start tag into the hasher, up to its end.
+     *
+     * @return the index after the end of the tag.
+     */
+    private static int putAttributes(Hasher hasher, CharSequence html, int i) {
+        int length = html.length();
+        while (i < length) {
+            char c = html.charAt(i);
+            if (c == '>') {
+                return i + 1;
+            } else if (isWhitespace(c) || c == '/') {
+                i++;
+                continue;
+            }
+            int nameStart = i;
+            while (i < length && !isWhitespace(html.charAt(i)) && html.charAt(i) != '='
+                    && html.charAt(i) != '>' && html.charAt(i) != '/') {
+                i++;
+            }
+            hasher.putChar('\3').putUnencodedChars(
+                    html.subSequence(nameStart, i).toString().toLowerCase(Locale.US));
+            while (i < length && isWhitespace(html.charAt(i))) {
+                i++;
+            }
+            if (i >= length || html.charAt(i) != '=') {
+                continue; // attribute without value, same as an empty one
+            }
+            i++;
+            while (i < length && isWhitespace(html.charAt(i))) {
+                i++;
+            }
+            int valueStart, valueEnd;
+            char quote = i < length ? html.charAt(i) : 0;
+            if (quote == '"' || quote == '\'') {
+                valueStart = i + 1;
+                valueEnd = valueStart;
+                while (valueEnd < length && html.charAt(valueEnd) != quote) {
+                    valueEnd++;
+                }
+                i = Math.min(length, valueEnd + 1);
+            } else {
+                valueStart = i;
+                while (i < length && !isWhitespace(html.charAt(i)) && html.charAt(i) != '>') {
+                    i++;
+                }
+                valueEnd = i;
+            }
+            hasher.putChar('\4').putUnencodedChars(
+                    Parser.unescapeEntities(html.subSequence(valueStart, valueEnd).toString(),
+                            true));
+        }
+        return length;
+    }
 
-        return new Post(author, message, new Date(timestamp));
+    /**
+     * Feeds the collected text into the hasher, and clears it.
+     *
+     * @param afterBlock  whether the text follows a block tag (or is at the start).
+     * @param beforeBlock whether the text is followed by a block tag (or is at the end).
+     */
+    private static void putText(Hasher hasher, StringBuilder text, boolean afterBlock,
+                                boolean beforeBlock) {
+        if (text.length() == 0) {
+            return;
+        }
+        String decoded = Parser.unescapeEntities(text.toString(), false);
+        text.setLength(0);
+        boolean lastWasWhite = afterBlock;
+        for (int i = 0; i < decoded.length(); i++) {
+            char c = decoded.charAt(i);
+            if (!isWhitespace(c)) {
+                text.append(c);
+                lastWasWhite = false;
+            } else if (!lastWasWhite) {
+                text.append(' ');
+                lastWasWhite = true;
+            }
+        }
+        if (beforeBlock && text.length() > 0 && text.charAt(text.length() - 1) == ' ') {
+            text.setLength(text.length() - 1);
+        }
+        if (text.length() > 0) {
+            hasher.putChar('\1').putUnencodedChars(text);
+        }
+        text.setLength(0);
+    }
+
+    private static boolean startsWith(CharSequence s, String prefix, int from) {
+        if (s.length() - from < prefix.length()) {
+            return false;
+        }
+        for (int i = 0; i < prefix.length(); i++) {
+            if (s.charAt(from + i) != prefix.charAt(i)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * @return the index after the next occurrence of {@code end}, or the length of {@code s} if
+     * there is none.
+     */
+    private static int indexAfter(CharSequence s, String end, int from) {
+        for (int i = from; i <= s.length() - end.length(); i++) {
+            if (startsWith(s, end, i)) {
+                return i + end.length();
+            }
+        }
+        return s.length();
+    }
+
+    private static boolean isLetter(char c) {
+        return (c >= 'a' && c <= 'z') || (c >= 'A' && c <= 'Z');
+    }
+
+    /* the same whitespace as Jsoup collapses */
+    private static boolean isWhitespace(char c) {
+        return c == ' ' || c == '\t' || c == '\n' || c == '\f' || c == '\r';
     }
 
     /**
@@ -154,31 +387,44 @@ public class Post implements Comparable<Post> {
      *
      * @param date the {@link String} that should be transformed in the format {@code "EEEE MMM dd,
      *             HH:mm:ss"}
-     * @return the generated date.
+     * @return the generated date, or the current date if it couldn't be parsed.
      */
-    private Date toDate(String date) {
-        SimpleDateFormat sdf = new SimpleDateFormat("EEEE MMM dd, HH:mm:ss", Locale.US);
+    static Date toDate(CharSequence date) {
+        return new Date(toTimestamp(date));
+    }
 
-        Calendar cal = new GregorianCalendar();
+    /**
+     * Like {@link #toDate(CharSequence)}, but without creating any objects.
+     *
+     * @return the timestamp of the given date, in ms.
+     */
+    static long toTimestamp(CharSequence date) {
         try {
-            cal.setTime(sdf.parse(date));
-
-            /*
-             * As autemo doesn't provide year identifier, see that on year swich, the old messages
-             * from december won't be transfered 1 year to the future.
-             * Assumes that no messages are on autemo.com that are older than 1 year!
-             */
-            Calendar now = Calendar.getInstance();
-            if (cal.get(Calendar.MONTH) > now.get(Calendar.MONTH)) {
-                cal.set(Calendar.YEAR, now.get(Calendar.YEAR) - 1);
-            } else {
-                cal.set(Calendar.YEAR, now.get(Calendar.YEAR));
-            }
-        } catch (ParseException e) {
+            return DATE_DECODER.decode(date);
+        } catch (IllegalArgumentException e) {
             e.printStackTrace();
+            return System.currentTimeMillis();
         }
+    }
+
+    @Override
+    public int describeContents() {
+        return 0;
+    }
 
-        return cal.getTime();
+    @Override
+    public void writeToParcel(Parcel dest, int flags) {
+        dest.writeByteArray(PostCodec.encode(this));
     }
 
+    public static final Parcelable.Creator<Post> CREATOR = new Parcelable.Creator<Post>() {
+        public Post createFromParcel(Parcel in) {
+            return PostCodec.decodePost(in.createByteArray());
+        }
+
+        public Post[] newArray(int size) {
+            return new Post[size];
+        }
+    };
+
 }
@@ -0,0 +1,383 @@
+/*
+ * Copyright 2016 Maximilian Salomon.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see http://www.gnu.org/licenses/.
+ */
+
+package de.msal.shoutemo.connector.model;
+
+import com.google.common.base.Charsets;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * A compact binary format for {@link Post}s, {@link Message}s and {@link Author}s. Used for their
+ * {@link android.os.Parcelable} implementations, and for snapshots of whole lists of posts.
+ * <ul>
+ * <li>numbers are written as varints, timestamps as the difference to the previous post</li>
+ * <li>enums are written as their ordinal</li>
+ * <li>strings are written as UTF-8, prefixed with their length</li>
+ * <li>within a snapshot, names and avatars of authors are written only once, and referenced
+ * afterwards</li>
+ * </ul>
+ * The format of snapshots starts with a version, so it can be changed later on. Don't persist
+ * single items, they carry no version.
+ */
+public final class PostCodec {
+
+    private static final int SNAPSHOT_VERSION = 1;
+
+    private PostCodec() {
+    }
+
+    /**
+     * @return the given posts, in the snapshot format.
+     */
+    public static byte[] encode(List<Post> posts) {
+        Writer writer = new Writer(64 + posts.size() * 128, true);
+        writer.writeVarint(SNAPSHOT_VERSION);
+        writer.writeVarint(posts.size());
+        for (Post post : posts) {
+            writer.writePost(post);
+        }
+        return writer.toByteArray();
+    }
+
+    /**
+     * @param snapshot posts in the snapshot format, as created by {@link #encode(List)}.
+     * @return the posts, in the same order.
+     * @throws IllegalArgumentException if the snapshot is malformed or of an unknown version.
+     */
+    public static List<Post> decode(byte[] snapshot) {
+        Reader reader = new Reader(snapshot, true);
+        int version = reader.readVarint();
+        if (version != SNAPSHOT_VERSION) {
+            throw new IllegalArgumentException("Unknown snapshot version " + version);
+        }
+        int size = reader.readVarint();
+        List<Post> posts = new ArrayList<>(Math.min(size, snapshot.length));
+        for (int i = 0; i < size; i++) {
+            posts.add(reader.readPost());
+        }
+        reader.checkFinished();
+        return posts;
+    }
+
+    static byte[] encode(Post post) {
+        Writer writer = new Writer(256, false);
+        writer.writePost(post);
+        return writer.toByteArray();
+    }
+
+    static Post decodePost(byte[] bytes) {
+        Reader reader = new Reader(bytes, false);
+        Post post = reader.readPost();
+        reader.checkFinished();
+        return post;
+    }
+
+    static byte[] encode(Message message) {
+        Writer writer = new Writer(256, false);
+        writer.writeMessage(message);
+        return writer.toByteArray();
+    }
+
+    static Message decodeMessage(byte[] bytes) {
+        Reader reader = new Reader(bytes, false);
+        Message message = reader.readMessage();
+        reader.checkFinished();
+        return message;
+    }
+
+    static byte[] encode(Author author) {
+        Writer writer = new Writer(64, false);
+        writer.writeAuthor(author);
+        return writer.toByteArray();
+    }
+
+    static Author decodeAuthor(byte[] bytes) {
+        Reader reader = new Reader(bytes, false);
+        Author author = reader.readAuthor();
+        reader.checkFinished();
+        return author;
+    }
+
+    /*
+     * Strings start with a varint: 0 for null, an odd number (2 * index + 1) for a reference to an
+     * already written string, or an even number (2 * (length + 1)) for a string that follows.
+     */
+
+    private static final class Writer {
+
+        private final Map<String, Integer> strings;
+        private byte[] buffer;
+        private int size;
+        private long lastTimestamp;
+
+        Writer(int capacity, boolean shareStrings) {
+            buffer = new byte[capacity];
+            strings = shareStrings ? new HashMap<String, Integer>() : null;
+        }
+
+        void writePost(Post post) {
+            writeByte(post.getAuthor() == null ? 0 : 1);
+            if (post.getAuthor() != null) {
+                writeAuthor(post.getAuthor());
+            }
+            writeMessage(post.getMessage());
+            long timestamp = post.getDate().getTime();
+            long delta = timestamp - lastTimestamp;
+            writeVarlong((delta << 1) ^ (delta >> 63)); // zigzag: small negative deltas stay small
+            lastTimestamp = timestamp;
+            writeLong(post.getFingerprint());
+        }
+
+        void writeAuthor(Author author) {
+            writeString(author.getName(), true);
+            writeEnum(author.getType());
+            writeString(author.getAvatar(), true);
+        }
+
+        void writeMessage(Message message) {
+            writeString(message.getHtml(), false);
+            writeString(message.getTextIfKnown(), false);
+            writeEnum(message.getType());
+        }
+
+        void writeEnum(Enum<?> value) {
+            writeVarint(value == null ? 0 : value.ordinal() + 1);
+        }
+
+        void writeString(String s, boolean shared) {
+            if (s == null) {
+                writeVarint(0);
+                return;
+            }
+            if (shared && strings != null) {
+                Integer index = strings.get(s);
+                if (index != null) {
+                    writeVarint(2 * index + 1);
+                    return;
+                }
+                strings.put(s, strings.size());
+            }
+            int length = utf8Length(s);
+            writeVarint(2 * (length + 1));
+            ensureCapacity(length);
+            for (int i = 0; i < s.length(); i++) {
+                char c = s.charAt(i);
+                if (c < 0x80) {
+                    buffer[size++] = (byte) c;
+                } else if (c < 0x800) {
+                    buffer[size++] = (byte) (0xc0 | c >> 6);
+                    buffer[size++] = (byte) (0x80 | c & 0x3f);
+                } else if (Character.isHighSurrogate(c) && i + 1 < s.length()
+                        && Character.isLowSurrogate(s.charAt(i + 1))) {
+                    int codePoint = Character.toCodePoint(c, s.charAt(++i));
+                    buffer[size++] = (byte) (0xf0 | codePoint >> 18);
+                    buffer[size++] = (byte) (0x80 | codePoint >> 12 & 0x3f);
+                    buffer[size++] = (byte) (0x80 | codePoint >> 6 & 0x3f);
+                    buffer[size++] = (byte) (0x80 | codePoint & 0x3f);
+                } else if (isSurrogate(c)) { // unpaired: like String.getBytes() does
+                    buffer[size++] = '?';
+                } else {
+                    buffer[size++] = (byte) (0xe0 | c >> 12);
+                    buffer[size++] = (byte) (0x80 | c >> 6 & 0x3f);
+                    buffer[size++] = (byte) (0x80 | c & 0x3f);
+                }
+            }
+        }
+
+        void writeVarint(int value) {
+            writeVarlong(value & 0xffffffffL);
+        }
+
+        void writeVarlong(long value) {
+            ensureCapacity(10);
+            while ((value & ~0x7fL) != 0) {
+                buffer[size++] = (byte) (value & 0x7f | 0x80);
+                value >>>= 7;
+            }
+            buffer[size++] = (byte) value;
+        }
+
+        void writeLong(long value) {
+            ensureCapacity(8);
+            for (int shift = 56; shift >= 0; shift -= 8) {
+                buffer[size++] = (byte) (value >>> shift);
+            }
+        }
+
+        void writeByte(int value) {
+            ensureCapacity(1);
+            buffer[size++] = (byte) value;
+        }
+
+        byte[] toByteArray() {
+            return Arrays.copyOf(buffer, size);
+        }
+
+        private void ensureCapacity(int more) {
+            if (size + more > buffer.length) {
+                buffer = Arrays.copyOf(buffer, Math.max(buffer.length * 2, size + more));
+            }
+        }
+
+        private static int utf8Length(String s) {
+            int length = s.length();
+            for (int i = 0; i < s.length(); i++) {
+                char c = s.charAt(i);
+                if (c >= 0x800) {
+                    if (Character.isHighSurrogate(c) && i + 1 < s.length()
+                            && Character.isLowSurrogate(s.charAt(i + 1))) {
+                        i++;
+                        length += 2; // 4 bytes for 2 chars
+                    } else if (!isSurrogate(c)) {
+                        length += 2;
+                    }
+                } else if (c >= 0x80) {
+                    length++;
+                }
+            }
+            return length;
+        }
+
+    }
+
+    /* Character.isSurrogate() is API 19 */
+    private static boolean isSurrogate(char c) {
+        return c >= Character.MIN_SURROGATE && c <= Character.MAX_SURROGATE;
+    }
+
+    private static final class Reader {
+
+        private final byte[] buffer;
+        private final List<String> strings;
+        private int pos;
+        private long lastTimestamp;
+
+        Reader(byte[] buffer, boolean shareStrings) {
+            this.buffer = buffer;
+            strings = shareStrings ? new ArrayList<String>() : null;
+        }
+
+        Post readPost() {
+            Author author = readByte() != 0 ? readAuthor() : null;
+            Message message = readMessage();
+            long zigzag = readVarlong();
+            long timestamp = lastTimestamp + ((zigzag >>> 1) ^ -(zigzag & 1));
+            lastTimestamp = timestamp;
+            return new Post(author, message, new Date(timestamp), readLong());
+        }
+
+        Author readAuthor() {
+            String name = readString(true);
+            Author.Type type = readEnum(Author.Type.values());
+            String avatar = readString(true);
+            if (name == null || type == null) {
+                throw new IllegalArgumentException("Author without name or type");
+            }
+            return AuthorPool.get(name, type, avatar);
+        }
+
+        Message readMessage() {
+            String html = readString(false);
+            String text = readString(false);
+            return new Message(html, text, readEnum(Message.Type.values()));
+        }
+
+        <E extends Enum<E>> E readEnum(E[] values) {
+            int value = readVarint();
+            if (value > values.length) {
+                throw new IllegalArgumentException("Unknown ordinal " + (value - 1));
+            }
+            return value == 0 ? null : values[value - 1];
+        }
+
+        String readString(boolean shared) {
+            int value = readVarint();
+            if (value == 0) {
+                return null;
+            }
+            if ((value & 1) != 0) {
+                int index = value >>> 1;
+                if (strings == null || index >= strings.size()) {
+                    throw new IllegalArgumentException("Unknown string reference " + index);
+                }
+                return strings.get(index);
+            }
+            int length = (value >>> 1) - 1;
+            require(length);
+            String s = new String(buffer, pos, length, Charsets.UTF_8);
+            pos += length;
+            if (shared && strings != null) {
+                strings.add(s);
+            }
+            return s;
+        }
+
+        int readVarint() {
+            long value = readVarlong();
+            if (value > Integer.MAX_VALUE) {
+                throw new IllegalArgumentException("Varint too big");
+            }
+            return (int) value;
+        }
+
+        long readVarlong() {
+            long value = 0;
+            for (int shift = 0; shift < 64; shift += 7) {
+                byte b = readByte();
+                value |= (long) (b & 0x7f) << shift;
+                if ((b & 0x80) == 0) {
+                    return value;
+                }
+            }
+            throw new IllegalArgumentException("Malformed varint");
+        }
+
+        long readLong() {
+            require(8);
+            long value = 0;
+            for (int i = 0; i < 8; i++) {
+                value = value << 8 | buffer[pos++] & 0xff;
+            }
+            return value;
+        }
+
+        byte readByte() {
+            require(1);
+            return buffer[pos++];
+        }
+
+        void checkFinished() {
+            if (pos != buffer.length) {
+                throw new IllegalArgumentException((buffer.length - pos) + " bytes left over");
+            }
+        }
+
+        private void require(int length) {
+            if (length < 0 || pos + length > buffer.length) {
+                throw new IllegalArgumentException("Unexpected end of data");
+            }
+        }
+
+    }
+
+}
@@ -0,0 +1,220 @@
+/*
+ * Copyright 2016 Maximilian Salomon.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see http://www.gnu.org/licenses/.
+ */
+
+package de.msal.shoutemo.connector.model;
+
+import java.util.Calendar;
+import java.util.GregorianCalendar;
+import java.util.TimeZone;
+
+/**
+ * Decodes the date of a post, like {@code "Monday Mar 14, 21:31:36"}, into a timestamp in the
+ * device's time zone. Works directly on the characters and allocates nothing (apart from refreshing
+ * the {@link YearRule} once in a while), unlike a {@link java.text.SimpleDateFormat}.
+ * <p/>
+ * As autemo doesn't tell the year, it is guessed like before: a post from a month later than the
+ * current one must be from last year. Assumes that no posts on autemo.com are older than 1 year!
+ * <p/>
+ * The name of the weekday is ignored, just like the lenient {@link java.text.SimpleDateFormat} did.
+ */
+final class PostDateDecoder {
+
+    private static final long MILLIS_PER_DAY = 24 * 60 * 60 * 1000;
+    /* the year rule is refreshed at least that often, to notice changes of the time zone */
+    private static final long MAX_RULE_AGE = 60 * 60 * 1000; // 1h
+
+    /* the (lower case) month abbreviations, packed into an int each */
+    private static final int[] MONTH_KEYS = {key("jan"), key("feb"), key("mar"), key("apr"),
+            key("may"), key("jun"), key("jul"), key("aug"), key("sep"), key("oct"), key("nov"),
+            key("dec")};
+    private static final int[] DAYS_IN_MONTH = {31, 28, 31, 30, 31, 30, 31, 31, 30, 31, 30, 31};
+    /* days of a common year before the first of each month */
+    private static final int[] DAYS_BEFORE_MONTH = new int[12];
+
+    static {
+        for (int month = 1; month < 12; month++) {
+            DAYS_BEFORE_MONTH[month] = DAYS_BEFORE_MONTH[month - 1] + DAYS_IN_MONTH[month - 1];
+        }
+    }
+
+    private volatile YearRule rule;
+
+    /**
+     * @param date the date, in the format {@code "EEEE MMM dd, HH:mm:ss"}. Surrounding whitespace
+     *             is ignored.
+     * @return the timestamp of the date, in ms.
+     * @throws IllegalArgumentException if the date doesn't match the format.
+     */
+    long decode(CharSequence date) {
+        int length = date.length();
+        int i = skipWhitespace(date, 0, length);
+        /* weekday */
+        int start = i;
+        while (i < length && isLetter(date.charAt(i))) {
+            i++;
+        }
+        if (i == start) {
+            throw invalid(date);
+        }
+        i = skipWhitespace(date, i, length);
+        /* month */
+        if (i + 3 > length) {
+            throw invalid(date);
+        }
+        int month = month(date.charAt(i), date.charAt(i + 1), date.charAt(i + 2));
+        if (month < 0) {
+            throw invalid(date);
+        }
+        i += 3;
+        while (i < length && isLetter(date.charAt(i))) { // the full name of the month
+            i++;
+        }
+        i = skipWhitespace(date, i, length);
+        /* day of month */
+        int day = 0;
+        start = i;
+        while (i < length && i - start < 2 && isDigit(date.charAt(i))) {
+            day = day * 10 + date.charAt(i++) - '0';
+        }
+        if (i == start || i >= length || date.charAt(i++) != ',') {
+            throw invalid(date);
+        }
+        i = skipWhitespace(date, i, length);
+        /* time */
+        int hour = twoDigits(date, i, length);
+        int minute = twoDigits(date, i + 3, length);
+        int second = twoDigits(date, i + 6, length);
+        if (hour < 0 || minute < 0 || second < 0 || date.charAt(i + 2) != ':'
+                || date.charAt(i + 5) != ':' || hour > 23 || minute > 59 || second > 59) {
+            throw invalid(date);
+        }
+        if (skipWhitespace(date, i + 8, length) != length) {
+            throw invalid(date);
+        }
+
+        YearRule rule = rule();
+        boolean lastYear = month > rule.month;
+        boolean leap = lastYear ? rule.lastYearLeap : rule.leap;
+        int daysInMonth = DAYS_IN_MONTH[month] + (leap && month == 1 ? 1 : 0);
+        if (day < 1 || day > daysInMonth) {
+            throw invalid(date);
+        }
+        long epochDay = (lastYear ? rule.lastYearStart : rule.yearStart)
+                + DAYS_BEFORE_MONTH[month] + (leap && month > 1 ? 1 : 0) + day - 1;
+        long local = epochDay * MILLIS_PER_DAY + ((hour * 60 + minute) * 60 + second) * 1000L;
+        /* a local time skipped by the switch to daylight saving time ends up after the switch */
+        int offset = rule.timeZone.getOffset(local - rule.timeZone.getRawOffset());
+        return local - rule.timeZone.getOffset(local - offset);
+    }
+
+    private YearRule rule() {
+        YearRule rule = this.rule;
+        long now = System.currentTimeMillis();
+        if (rule == null || now >= rule.validUntil || now < rule.validFrom) {
+            rule = new YearRule(now);
+            this.rule = rule;
+        }
+        return rule;
+    }
+
+    /**
+     * @return the month (0-based), or -1 if unknown.
+     */
+    private static int month(char c0, char c1, char c2) {
+        int key = ((c0 | 0x20) << 16) | ((c1 | 0x20) << 8) | (c2 | 0x20);
+        for (int month = 0; month < MONTH_KEYS.length; month++) {
+            if (MONTH_KEYS[month] == key) {
+                return month;
+            }
+        }
+        return -1;
+    }
+
+    private static int key(String month) {
+        return (month.charAt(0) << 16) | (month.charAt(1) << 8) | month.charAt(2);
+    }
+
+    /**
+     * @return the value of the two digits at the given index, or -1 if there aren't any.
+     */
+    private static int twoDigits(CharSequence s, int i, int length) {
+        if (i + 2 > length || !isDigit(s.charAt(i)) || !isDigit(s.charAt(i + 1))) {
+            return -1;
+        }
+        return (s.charAt(i) - '0') * 10 + s.charAt(i + 1) - '0';
+    }
+
+    private static int skipWhitespace(CharSequence s, int i, int length) {
+        while (i < length && (s.charAt(i) <= ' ' || s.charAt(i) == '\u00a0')) {
+            i++;
+        }
+        return i;
+    }
+
+    private static boolean isLetter(char c) {
+        return c >= 'a' && c <= 'z' || c >= 'A' && c <= 'Z';
+    }
+
+    private static boolean isDigit(char c) {
+        return c >= '0' && c <= '9';
+    }
+
+    private static IllegalArgumentException invalid(CharSequence date) {
+        return new IllegalArgumentException("Unparseable date: \"" + date + "\"");
+    }
+
+    /**
+     * Everything about "now" the decoding depends on. Valid until the month changes.
+     */
+    private static final class YearRule {
+
+        final TimeZone timeZone;
+        final int month;
+        final boolean leap, lastYearLeap;
+        /* the days since the epoch, at the first of january of this and last year */
+        final long yearStart, lastYearStart;
+        final long validFrom, validUntil;
+
+        YearRule(long now) {
+            timeZone = TimeZone.getDefault();
+            GregorianCalendar cal = new GregorianCalendar(timeZone);
+            cal.setTimeInMillis(now);
+            int year = cal.get(Calendar.YEAR);
+            month = cal.get(Calendar.MONTH);
+            leap = cal.isLeapYear(year);
+            lastYearLeap = cal.isLeapYear(year - 1);
+            yearStart = epochDay(year);
+            lastYearStart = epochDay(year - 1);
+
+            cal.set(cal.get(Calendar.YEAR), month, 1, 0, 0, 0);
+            cal.set(Calendar.MILLISECOND, 0);
+            validFrom = cal.getTimeInMillis();
+            cal.add(Calendar.MONTH, 1);
+            validUntil = Math.min(cal.getTimeInMillis(), now + MAX_RULE_AGE);
+        }
+
+        /**
+         * @return the days since the epoch at the first of january of the given (gregorian) year.
+         */
+        private static long epochDay(int year) {
+            long y = year - 1;
+            return 365 * y + y / 4 - y / 100 + y / 400 - 719162; // 719162: days from 0001 to 1970
+        }
+
+    }
+
+}
@@ -0,0 +1,569 @@
+/*
+ * Copyright 2016 Maximilian Salomon.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see http://www.gnu.org/licenses/.
+ */
+
+package de.msal.shoutemo.connector.model;
+
+import org.jsoup.parser.Parser;
+
+import java.text.ParseException;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+
+/**
+ * Extracts the {@link Post}s of the shoutbox in a single pass over its html, without building a
+ * DOM. Only the tags are tracked, that are needed to find the "ys-post" elements and their
+ * "ys-post-info", "ys-post-nickname" and "ys-post-message" children. The buffers are reused for
+ * all posts, so apart from the resulting objects hardly anything gets allocated.
+ * <p/>
+ * Gives the same author, type, text, date and fingerprint as {@link
+ * Post#Post(org.jsoup.nodes.Element)}, as checked on the recorded pages by {@link
+ * de.msal.shoutemo.connector.fixture.ParserParity}. The message html however is the one sent by the
+ * server (with collapsed whitespace), not the one re-serialized by Jsoup.
+ * <p/>
+ * Throws on html it can't make sense of. Use the Jsoup based parsing as fallback then.
+ * <p/>
+ * Posts already known to a {@link Filter} are skipped without creating any objects for them. Once
+ * the posts turn out to be ordered newest first, the first known post ends the parsing, as all
+ * following ones must be known as well.
+ */
+public final class PostTokenizer {
+
+    private static final String[] VOID_TAGS = {"area", "base", "br", "col", "embed", "hr", "img",
+            "input", "link", "meta", "param", "source", "track", "wbr"};
+    /* the block tags of Jsoup, which separate words in Element.text() */
+    private static final String[] BLOCK_TAGS = {"address", "article", "aside", "audio",
+            "blockquote", "body", "canvas", "caption", "col", "colgroup", "dd", "del", "details",
+            "div", "dl", "dt", "fieldset", "figcaption", "figure", "footer", "form", "frame",
+            "frameset", "h1", "h2", "h3", "h4", "h5", "h6", "head", "header", "hgroup", "hr",
+            "html", "ins", "li", "link", "main", "math", "menu", "meta", "nav", "noframes",
+            "noscript", "ol", "p", "plaintext", "pre", "s", "script", "section", "style", "svg",
+            "table", "tbody", "td", "template", "tfoot", "th", "thead", "title", "tr", "ul",
+            "video"};
+    private static final int NONE = -1;
+    private static final int ORDER_UNKNOWN = 0;
+    private static final int ORDER_NEWEST_FIRST = 1;
+    private static final int ORDER_OLDEST_FIRST = 2;
+
+    private final String html;
+    private final Filter filter;
+    private int pos;
+    private boolean stopped;
+    private int knownCount;
+    /* for detecting the order of the posts */
+    private int datedCount;
+    private long lastTimestamp;
+    private int order = ORDER_UNKNOWN;
+
+    /* the open tags, as start and end index of their names in the html */
+    private int[] openStart = new int[16];
+    private int[] openEnd = new int[16];
+    private int depth;
+
+    /* depths of the elements of the current post, or NONE if not inside of one */
+    private int postDepth = NONE;
+    private int infoDepth = NONE;
+    private int nicknameDepth = NONE;
+    private int messageDepth = NONE;
+
+    private final StringBuilder ownText = new StringBuilder(64);
+    private final StringBuilder info = new StringBuilder(32);
+    private final StringBuilder nickname = new StringBuilder(32);
+    private final StringBuilder messageText = new StringBuilder(256);
+    private final StringBuilder messageHtml = new StringBuilder(512);
+    private boolean global, hasNickname, admin, mod;
+    private int messageHtmlStart;
+
+    /* result of the last readStartTag() */
+    private int classStart, classEnd;
+    private boolean selfClosing;
+
+    /**
+     * Tells which posts are known already and don't need to be extracted.
+     */
+    public interface Filter {
+        /**
+         * @param timestamp  the date of the post, in ms.
+         * @param authorName the name of the author, or {@code null} if there is none.
+         * @param type       the type of the message, may be {@code null}.
+         * @param html       the html of the message, to compute the {@link
+         *                   Post#fingerprint(long, String, Message.Type, CharSequence)
+         *                   fingerprint} from if needed. Only valid during the call.
+         * @return {@code true} if the post is known already.
+         */
+        boolean isKnown(long timestamp, String authorName, Message.Type type, CharSequence html);
+    }
+
+    /**
+     * @param html   the shoutbox, as sent by the server.
+     * @param filter decides which posts are skipped, or {@code null} to extract all posts.
+     */
+    public PostTokenizer(String html, Filter filter) {
+        this.html = html;
+        this.filter = filter;
+    }
+
+    /**
+     * @param html the shoutbox, as sent by the server.
+     * @return all posts found, in the order of the html.
+     * @throws ParseException if the html is malformed, e.g. ends inside of a tag or post.
+     */
+    public static List<Post> parse(String html) throws ParseException {
+        return new PostTokenizer(html, null).parse();
+    }
+
+    /**
+     * May only be called once.
+     *
+     * @return all posts found that are not known to the filter, in the order of the html.
+     * @throws ParseException if the html is malformed, e.g. ends inside of a tag or post.
+     */
+    public List<Post> parse() throws ParseException {
+        List<Post> posts = new ArrayList<>(50);
+        int length = html.length();
+        while (pos < length && !stopped) {
+            int lt = html.indexOf('<', pos);
+            int textEnd = lt == -1 ? length : lt;
+            if (textEnd > pos && postDepth != NONE) {
+                onText(pos, textEnd);
+            }
+            if (lt == -1) {
+                break;
+            }
+            pos = lt;
+            if (html.startsWith("<!--", pos)) {
+                pos = skipPast("-->", pos + 4);
+            } else if (html.startsWith("</", pos)) {
+                readEndTag(posts);
+            } else if (pos + 1 < length && isLetter(html.charAt(pos + 1))) {
+                readStartTag();
+            } else if (pos + 1 < length && (html.charAt(pos + 1) == '!'
+                    || html.charAt(pos + 1) == '?')) {
+                pos = skipPast(">", pos + 2);
+            } else { // a lonely '<' is just text
+                if (postDepth != NONE) {
+                    onText(pos, pos + 1);
+                }
+                pos++;
+            }
+        }
+        if (postDepth != NONE) {
+            throw new ParseException("Unexpected end of html inside of a post", length);
+        }
+        return posts;
+    }
+
+    /**
+     * @return the number of posts that were skipped because the filter knew them. Together with the
+     * returned posts, this tells whether the html contained any posts at all.
+     */
+    public int getKnownCount() {
+        return knownCount;
+    }
+
+    private void readStartTag() throws ParseException {
+        int nameStart = pos + 1;
+        int nameEnd = nameStart;
+        while (nameEnd < html.length() && !isWhitespace(html.charAt(nameEnd))
+                && html.charAt(nameEnd) != '>' && html.charAt(nameEnd) != '/') {
+            nameEnd++;
+        }
+        pos = readAttributes(nameEnd);
+
+        boolean isVoid = selfClosing || isOneOf(nameStart, nameEnd, VOID_TAGS);
+        if (postDepth != NONE) {
+            if (messageDepth != NONE && isSeparator(nameStart, nameEnd)) {
+                appendSpace(messageText);
+            } else if (depth == postDepth && isTag(nameStart, nameEnd, "br")) {
+                appendSpace(ownText);
+            }
+            if (nicknameDepth != NONE) {
+                checkAuthorType();
+            }
+        }
+        if (isVoid) {
+            return;
+        }
+        if (isTag(nameStart, nameEnd, "script") || isTag(nameStart, nameEnd, "style")) {
+            pos = skipPastEndTag(nameStart, nameEnd);
+            return;
+        }
+
+        push(nameStart, nameEnd);
+        if (classStart == NONE) {
+            return;
+        }
+        if (postDepth == NONE) {
+            if (hasClass("ys-post")) {
+                startPost();
+                global = hasClass("ys-isglobal");
+            }
+        } else if (hasClass("ys-post-info") && infoDepth == NONE) {
+            appendSeparator(info);
+            infoDepth = depth;
+        } else if (hasClass("ys-post-nickname") && !hasNickname) {
+            hasNickname = true;
+            nicknameDepth = depth;
+            checkAuthorType();
+        } else if (hasClass("ys-post-message") && messageDepth == NONE) {
+            appendSeparator(messageText);
+            if (messageHtml.length() > 0) {
+                messageHtml.append('\n');
+            }
+            messageDepth = depth;
+            messageHtmlStart = pos;
+        }
+    }
+
+    /**
+     * Reads the attributes of a start tag and remembers where the value of its "class" attribute
+     * is.
+     *
+     * @return the index after the end of the tag.
+     */
+    private int readAttributes(int i) throws ParseException {
+        int length = html.length();
+        classStart = classEnd = NONE;
+        selfClosing = false;
+        while (true) {
+            while (i < length && isWhitespace(html.charAt(i))) {
+                i++;
+            }
+            if (i >= length) {
+                throw new ParseException("Unexpected end of html inside of a tag", i);
+            }
+            char c = html.charAt(i);
+            if (c == '>') {
+                return i + 1;
+            } else if (c == '/') {
+                selfClosing = i + 1 < length && html.charAt(i + 1) == '>';
+                i++;
+                continue;
+            }
+            int attrStart = i;
+            while (i < length && !isWhitespace(html.charAt(i)) && html.charAt(i) != '='
+                    && html.charAt(i) != '>' && html.charAt(i) != '/') {
+                i++;
+            }
+            int attrEnd = i;
+            while (i < length && isWhitespace(html.charAt(i))) {
+                i++;
+            }
+            if (i >= length || html.charAt(i) != '=') {
+                continue; // attribute without value
+            }
+            i++;
+            while (i < length && isWhitespace(html.charAt(i))) {
+                i++;
+            }
+            if (i >= length) {
+                throw new ParseException("Unexpected end of html inside of a tag", i);
+            }
+            int valueStart, valueEnd;
+            char quote = html.charAt(i);
+            if (quote == '"' || quote == '\'') {
+                valueStart = i + 1;
+                valueEnd = html.indexOf(quote, valueStart);
+                if (valueEnd == -1) {
+                    throw new ParseException("Unterminated attribute value", valueStart);
+                }
+                i = valueEnd + 1;
+            } else {
+                valueStart = i;
+                while (i < length && !isWhitespace(html.charAt(i)) && html.charAt(i) != '>') {
+                    i++;
+                }
+                valueEnd = i;
+            }
+            if (attrEnd - attrStart == 5 && html.regionMatches(true, attrStart, "class", 0, 5)) {
+                classStart = valueStart;
+                classEnd = valueEnd;
+            }
+        }
+    }
+
+    private void readEndTag(List<Post> posts) throws ParseException {
+        int nameStart = pos + 2;
+        int close = html.indexOf('>', nameStart);
+        if (close == -1) {
+            throw new ParseException("Unexpected end of html inside of a tag", nameStart);
+        }
+        int nameEnd = nameStart;
+        while (nameEnd < close && !isWhitespace(html.charAt(nameEnd))) {
+            nameEnd++;
+        }
+        int tagStart = pos;
+        pos = close + 1;
+
+        /* closes all elements up to the matching one, like browsers do. Ignores stray end tags */
+        for (int d = depth; d > 0; d--) {
+            int start = openStart[d - 1];
+            int length = openEnd[d - 1] - start;
+            if (length == nameEnd - nameStart
+                    && html.regionMatches(true, start, html, nameStart, length)) {
+                while (depth >= d) {
+                    pop(tagStart, posts);
+                }
+                return;
+            }
+        }
+    }
+
+    private void push(int nameStart, int nameEnd) {
+        if (depth == openStart.length) {
+            int[] start = new int[depth * 2];
+            int[] end = new int[depth * 2];
+            System.arraycopy(openStart, 0, start, 0, depth);
+            System.arraycopy(openEnd, 0, end, 0, depth);
+            openStart = start;
+            openEnd = end;
+        }
+        openStart[depth] = nameStart;
+        openEnd[depth] = nameEnd;
+        depth++;
+    }
+
+    /**
+     * Closes the innermost open element.
+     *
+     * @param tagStart index of the end tag, which is also the end of the element's content.
+     */
+    private void pop(int tagStart, List<Post> posts) {
+        if (depth == messageDepth) {
+            appendNormalized(messageHtml, html, messageHtmlStart, tagStart);
+            messageDepth = NONE;
+        } else if (depth == nicknameDepth) {
+            nicknameDepth = NONE;
+        } else if (depth == infoDepth) {
+            infoDepth = NONE;
+        } else if (depth == postDepth) {
+            Post post = endPost();
+            if (post != null) {
+                posts.add(post);
+            }
+        }
+        depth--;
+    }
+
+    private void startPost() {
+        postDepth = depth;
+        ownText.setLength(0);
+        info.setLength(0);
+        nickname.setLength(0);
+        messageText.setLength(0);
+        messageHtml.setLength(0);
+        global = hasNickname = admin = mod = false;
+    }
+
+    /**
+     * @return the post, or {@code null} if it is known to the filter.
+     */
+    private Post endPost() {
+        postDepth = infoDepth = nicknameDepth = messageDepth = NONE;
+
+        long timestamp = Post.toTimestamp(info);
+        String authorName = hasNickname ? trim(nickname) : null;
+        Message.Type type = Message.toType(trim(ownText), global);
+        if (filter != null) {
+            /* global announcements are pinned to the top, so they don't tell about the order */
+            if (!global) {
+                if (order == ORDER_UNKNOWN && datedCount > 0 && timestamp != lastTimestamp) {
+                    order = timestamp < lastTimestamp ? ORDER_NEWEST_FIRST : ORDER_OLDEST_FIRST;
+                }
+                lastTimestamp = timestamp;
+                datedCount++;
+            }
+            if (filter.isKnown(timestamp, authorName, type, messageHtml)) {
+                knownCount++;
+                stopped = order == ORDER_NEWEST_FIRST && !global;
+                return null;
+            }
+        }
+
+        Author author = null;
+        if (hasNickname) {
+            Author.Type authorType = admin ? Author.Type.ADMIN
+                    : mod ? Author.Type.MOD : Author.Type.USER;
+            author = AuthorPool.get(authorName, authorType, null);
+        }
+        Message message = new Message(trim(messageHtml), trim(messageText), type);
+        return new Post(author, message, new Date(timestamp));
+    }
+
+    private void checkAuthorType() {
+        if (classStart == NONE) {
+            return;
+        }
+        if (hasClass("autemo_admin_color")) {
+            admin = true;
+        } else if (hasClass("autemo_color")) {
+            mod = true;
+        }
+    }
+
+    private void onText(int start, int end) {
+        if (depth == postDepth) {
+            appendText(ownText, start, end);
+        }
+        if (infoDepth != NONE) {
+            appendText(info, start, end);
+        }
+        if (nicknameDepth != NONE) {
+            appendText(nickname, start, end);
+        }
+        if (messageDepth != NONE) {
+            appendText(messageText, start, end);
+        }
+    }
+
+    /**
+     * Appends the text with decoded entities and normalized whitespace, like Element.text() does.
+     */
+    private void appendText(StringBuilder sb, int start, int end) {
+        if (contains(start, end, '&')) {
+            String decoded = Parser.unescapeEntities(html.substring(start, end), false);
+            appendNormalized(sb, decoded, 0, decoded.length());
+        } else {
+            appendNormalized(sb, html, start, end);
+        }
+    }
+
+    private static void appendNormalized(StringBuilder sb, String s, int start, int end) {
+        boolean lastWasWhite = endsWithWhitespace(sb);
+        for (int i = start; i < end; i++) {
+            char c = s.charAt(i);
+            if (isWhitespace(c)) {
+                if (!lastWasWhite) {
+                    sb.append(' ');
+                    lastWasWhite = true;
+                }
+            } else {
+                sb.append(c);
+                lastWasWhite = false;
+            }
+        }
+    }
+
+    /* Elements.text() joins the text of several elements with a space */
+    private static void appendSeparator(StringBuilder sb) {
+        if (sb.length() > 0) {
+            sb.append(' ');
+        }
+    }
+
+    private static void appendSpace(StringBuilder sb) {
+        if (sb.length() > 0 && !endsWithWhitespace(sb)) {
+            sb.append(' ');
+        }
+    }
+
+    private static boolean endsWithWhitespace(StringBuilder sb) {
+        return sb.length() > 0 && sb.charAt(sb.length() - 1) == ' ';
+    }
+
+    private static String trim(StringBuilder sb) {
+        int start = 0;
+        int end = sb.length();
+        while (start < end && sb.charAt(start) == ' ') {
+            start++;
+        }
+        while (end > start && sb.charAt(end - 1) == ' ') {
+            end--;
+        }
+        return sb.substring(start, end);
+    }
+
+    /**
+     * @return whether the class attribute of the last read start tag contains the given class.
+     */
+    private boolean hasClass(String name) {
+        int i = classStart;
+        while (i < classEnd) {
+            while (i < classEnd && isWhitespace(html.charAt(i))) {
+                i++;
+            }
+            int start = i;
+            while (i < classEnd && !isWhitespace(html.charAt(i))) {
+                i++;
+            }
+            if (i - start == name.length() && html.regionMatches(true, start, name, 0, i - start)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private boolean isSeparator(int nameStart, int nameEnd) {
+        return isTag(nameStart, nameEnd, "br") || isOneOf(nameStart, nameEnd, BLOCK_TAGS);
+    }
+
+    private boolean isOneOf(int nameStart, int nameEnd, String[] tags) {
+        for (String tag : tags) {
+            if (isTag(nameStart, nameEnd, tag)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private boolean isTag(int nameStart, int nameEnd, String tag) {
+        return nameEnd - nameStart == tag.length()
+                && html.regionMatches(true, nameStart, tag, 0, tag.length());
+    }
+
+    private int skipPast(String end, int from) throws ParseException {
+        int i = html.indexOf(end, from);
+        if (i == -1) {
+            throw new ParseException("Unexpected end of html, missing " + end, from);
+        }
+        return i + end.length();
+    }
+
+    /**
+     * Skips the raw content of script and style elements, which may contain '<'.
+     */
+    private int skipPastEndTag(int nameStart, int nameEnd) throws ParseException {
+        int length = nameEnd - nameStart;
+        int i = pos;
+        while ((i = html.indexOf("</", i)) != -1) {
+            if (html.regionMatches(true, i + 2, html, nameStart, length)) {
+                return skipPast(">", i + 2 + length);
+            }
+            i += 2;
+        }
+        throw new ParseException("Unexpected end of html inside of a script", pos);
+    }
+
+    private boolean contains(int start, int end, char c) {
+        for (int i = start; i < end; i++) {
+            if (html.charAt(i) == c) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static boolean isLetter(char c) {
+        return (c >= 'a' && c <= 'z') || (c >= 'A' && c <= 'Z');
+    }
+
+    /* the same whitespace as Jsoup collapses */
+    private static boolean isWhitespace(char c) {
+        return c == ' ' || c == '\t' || c == '\n' || c == '\f' || c == '\r';
+    }
+
+}
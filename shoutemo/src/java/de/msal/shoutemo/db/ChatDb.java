@@ -91,6 +91,9 @@ public final class ChatDb {
 
         public static final String COLUMN_NAME_AUTHOR_NAME = "message_author_name";
 
+        /* identifies a post, see Post.getFingerprint() */
+        public static final String COLUMN_NAME_FINGERPRINT = "message_fingerprint";
+
         /* This class cannot be instantiated */
         private Messages() {
         }
@@ -144,4 +147,55 @@ public final class ChatDb {
 
     }
 
+    /**
+     * Outbox table contract: the shouts written by the user, which weren't sent yet.
+     */
+    public static final class Outbox implements BaseColumns {
+
+        public static final String TABLE_NAME = "outbox";
+
+        /*
+         * URI definitions
+         */
+        public static final String PATH_OUTBOX = "/outbox";
+
+        public static final String PATH_OUTBOX_ID = "/outbox/";
+
+        public static final int OUTBOX_ID_PATH_POSITION = 1;
+
+        public static final Uri CONTENT_URI = Uri.parse(SCHEME + AUTHORITY
+                + PATH_OUTBOX);
+
+        public static final Uri CONTENT_ID_URI_BASE = Uri.parse(SCHEME
+                + AUTHORITY + PATH_OUTBOX_ID);
+
+        public static final String CONTENT_TYPE = "vnd.android.cursor.dir/vnd."
+                + AUTHORITY + TABLE_NAME;
+
+        /*
+         * MIME type definitions
+         */
+        public static final String CONTENT_ITEM_TYPE = "vnd.android.cursor.item/vnd."
+                + AUTHORITY + TABLE_NAME;
+
+        /*
+         * Column definitions
+         */
+        public static final String COLUMN_NAME_MESSAGE = "outbox_message";
+
+        /* when the user wrote the message, in ms since epoch */
+        public static final String COLUMN_NAME_CREATED = "outbox_created";
+
+        /* how often sending the message failed */
+        public static final String COLUMN_NAME_ATTEMPTS = "outbox_attempts";
+
+        /* which chunks of the message were posted already, as given by PostResult#getProgress() */
+        public static final String COLUMN_NAME_PROGRESS = "outbox_progress";
+
+        /* This class cannot be instantiated */
+        private Outbox() {
+        }
+
+    }
+
 }
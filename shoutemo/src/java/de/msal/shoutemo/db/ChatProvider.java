@@ -20,6 +20,7 @@ package de.msal.shoutemo.db;
 import android.content.ContentProvider;
 import android.content.ContentProviderOperation;
 import android.content.ContentProviderResult;
+import android.content.ContentUris;
 import android.content.ContentValues;
 import android.content.OperationApplicationException;
 import android.content.UriMatcher;
@@ -29,6 +30,10 @@ import android.database.sqlite.SQLiteQueryBuilder;
 import android.net.Uri;
 
 import java.util.ArrayList;
+import java.util.LinkedHashSet;
+import java.util.Set;
+
+import de.msal.shoutemo.connector.PipelineStats;
 
 /**
  * Provides access to a database.
@@ -40,8 +45,12 @@ public class ChatProvider extends ContentProvider {
     private static final int URI_MATCH_AUTHORS = 20;
     private static final int URI_MATCH_AUTHOR_ID = 21;
     private static final int URI_MATCH_POSTS = 30;
+    private static final int URI_MATCH_OUTBOX = 40;
+    private static final int URI_MATCH_OUTBOX_ID = 41;
     private static final UriMatcher mUriMatcher;
     private DatabaseHelper mOpenHelper;
+    /* while applyBatch() runs on a thread: the uris changed so far, to notify them at the end */
+    private final ThreadLocal<Set<Uri>> mBatchChanges = new ThreadLocal<>();
 
     /**
      * A block that instantiates and sets static objects
@@ -54,6 +63,8 @@ public class ChatProvider extends ContentProvider {
         mUriMatcher.addURI(ChatDb.AUTHORITY, "authors", URI_MATCH_AUTHORS);
         mUriMatcher.addURI(ChatDb.AUTHORITY, "author/#", URI_MATCH_AUTHOR_ID);
         mUriMatcher.addURI(ChatDb.AUTHORITY, "posts", URI_MATCH_POSTS);
+        mUriMatcher.addURI(ChatDb.AUTHORITY, "outbox", URI_MATCH_OUTBOX);
+        mUriMatcher.addURI(ChatDb.AUTHORITY, "outbox/#", URI_MATCH_OUTBOX_ID);
     }
 
     /*
@@ -97,9 +108,7 @@ public class ChatProvider extends ContentProvider {
                 .getReadableDatabase(); // READ, since no writes need to be done
         SQLiteQueryBuilder builder = new SQLiteQueryBuilder(); // construct a new query builder
 
-        if (sortOrder == null) {
-            sortOrder = ChatDb.Messages.COLUMN_NAME_TIMESTAMP + " ASC";
-        }
+        String defaultSortOrder = ChatDb.Messages.COLUMN_NAME_TIMESTAMP + " ASC";
 
         switch (mUriMatcher.match(uri)) {
             case URI_MATCH_MESSAGES:
@@ -113,6 +122,7 @@ public class ChatProvider extends ContentProvider {
                         ChatDb.Messages.COLUMN_NAME_MESSAGE_TEXT,
                         ChatDb.Messages.COLUMN_NAME_TIMESTAMP,
                         ChatDb.Messages.COLUMN_NAME_TYPE,
+                        ChatDb.Messages.COLUMN_NAME_FINGERPRINT,
                         ChatDb.Authors.COLUMN_NAME_NAME,
                         ChatDb.Authors.COLUMN_NAME_TYPE
                 };
@@ -138,9 +148,21 @@ public class ChatProvider extends ContentProvider {
                 builder.appendWhere(ChatDb.Messages._ID + "="
                         + uri.getPathSegments().get(ChatDb.Authors.AUTHOR_ID_PATH_POSITION));
                 break;
+            case URI_MATCH_OUTBOX:
+                builder.setTables(ChatDb.Outbox.TABLE_NAME);
+                defaultSortOrder = ChatDb.Outbox._ID + " ASC"; // in the order they were written
+                break;
+            case URI_MATCH_OUTBOX_ID: // select a single entry
+                builder.setTables(ChatDb.Outbox.TABLE_NAME);
+                builder.appendWhere(ChatDb.Outbox._ID + "="
+                        + uri.getPathSegments().get(ChatDb.Outbox.OUTBOX_ID_PATH_POSITION));
+                break;
             default: // If the URI doesn't match any of the known patterns, throw an  exception.
                 throw new IllegalArgumentException("Unknown URI " + uri);
         }
+        if (sortOrder == null) {
+            sortOrder = defaultSortOrder;
+        }
 
         Cursor c = builder.query(db, // The database to query
                 projection, // The columns to return from the query
@@ -175,11 +197,15 @@ public class ChatProvider extends ContentProvider {
                 return ChatDb.Messages.CONTENT_TYPE;
             case URI_MATCH_AUTHORS:
                 return ChatDb.Authors.CONTENT_TYPE;
+            case URI_MATCH_OUTBOX:
+                return ChatDb.Outbox.CONTENT_TYPE;
          /* ID content type. */
             case URI_MATCH_MESSAGE_ID:
                 return ChatDb.Messages.CONTENT_ITEM_TYPE;
             case URI_MATCH_AUTHOR_ID:
                 return ChatDb.Authors.CONTENT_ITEM_TYPE;
+            case URI_MATCH_OUTBOX_ID:
+                return ChatDb.Outbox.CONTENT_ITEM_TYPE;
          /* If the URI pattern doesn't match any permitted patterns, throws an exception. */
             default:
                 throw new IllegalArgumentException("Unknown URI " + uri);
@@ -213,6 +239,13 @@ public class ChatProvider extends ContentProvider {
                 rowId = db.insertWithOnConflict(ChatDb.Authors.TABLE_NAME, null, values,
                         SQLiteDatabase.CONFLICT_IGNORE);
                 break;
+            case URI_MATCH_OUTBOX:
+                rowId = db.insert(ChatDb.Outbox.TABLE_NAME, null, values);
+                if (rowId > 0) {
+                    getContext().getContentResolver().notifyChange(uri, null);
+                    return ContentUris.withAppendedId(ChatDb.Outbox.CONTENT_ID_URI_BASE, rowId);
+                }
+                return uri;
          /* If the URI pattern doesn't match any permitted patterns, throws an exception. */
             default:
                 throw new IllegalArgumentException("Unknown URI " + uri);
@@ -220,8 +253,8 @@ public class ChatProvider extends ContentProvider {
 
         if (rowId > 0) { // if the insert succeeded, the row ID exists
              /* notifies observers registered against this provider that the data changed */
-            getContext().getContentResolver().notifyChange(uri, null);
-            getContext().getContentResolver().notifyChange(ChatDb.Posts.CONTENT_URI, null);
+            notifyChange(uri);
+            notifyChange(ChatDb.Posts.CONTENT_URI);
         }
 //        else { // if the insert didn't succeed, then the rowID is <= 0: throws an exception
 //            throw new SQLException("Failed to insert row into " + uri);
@@ -264,18 +297,43 @@ public class ChatProvider extends ContentProvider {
     public ContentProviderResult[] applyBatch(ArrayList<ContentProviderOperation> operations)
             throws OperationApplicationException {
         final SQLiteDatabase db = mOpenHelper.getWritableDatabase();
+        final Set<Uri> changes = new LinkedHashSet<>();
+        final ContentProviderResult[] results;
+        mBatchChanges.set(changes);
         db.beginTransaction();
         try {
             final int numOperations = operations.size();
-            final ContentProviderResult[] results = new ContentProviderResult[numOperations];
+            results = new ContentProviderResult[numOperations];
             for (int i = 0; i < numOperations; i++) {
                 results[i] = operations.get(i).apply(this, results, i);
             }
             db.setTransactionSuccessful();
-            getContext().getContentResolver().notifyChange(ChatDb.Posts.CONTENT_URI, null);
-            return results;
         } finally {
             db.endTransaction();
+            mBatchChanges.remove();
+        }
+        /* only once, after the transaction, and only if any row really changed */
+        if (!changes.isEmpty()) {
+            long notify = PipelineStats.start();
+            PipelineStats.onNotified();
+            for (Uri uri : changes) {
+                getContext().getContentResolver().notifyChange(uri, null);
+            }
+            PipelineStats.end(PipelineStats.Stage.NOTIFY, notify);
+        }
+        return results;
+    }
+
+    /**
+     * Notifies the observers of the given uri, or remembers to do so at the end of the batch
+     * running on this thread.
+     */
+    private void notifyChange(Uri uri) {
+        Set<Uri> batchChanges = mBatchChanges.get();
+        if (batchChanges != null) {
+            batchChanges.add(uri);
+        } else {
+            getContext().getContentResolver().notifyChange(uri, null);
         }
     }
 
@@ -356,6 +414,20 @@ public class ChatProvider extends ContentProvider {
                         finalWhere, // The final WHERE clause
                         whereArgs); // The incoming where clause values.
                 break;
+            case URI_MATCH_OUTBOX:
+                count = db.delete(ChatDb.Outbox.TABLE_NAME, where, whereArgs);
+                getContext().getContentResolver().notifyChange(uri, null);
+                return count;
+            case URI_MATCH_OUTBOX_ID:
+                finalWhere = ChatDb.Outbox._ID
+                        + " = "
+                        + uri.getPathSegments().get(ChatDb.Outbox.OUTBOX_ID_PATH_POSITION);
+                if (where != null) {
+                    finalWhere = finalWhere + " AND " + where;
+                }
+                count = db.delete(ChatDb.Outbox.TABLE_NAME, finalWhere, whereArgs);
+                getContext().getContentResolver().notifyChange(ChatDb.Outbox.CONTENT_URI, null);
+                return count;
         /* If the incoming pattern is invalid, throws an exception. */
             default:
                 throw new IllegalArgumentException("Unknown URI " + uri);
@@ -438,6 +510,10 @@ public class ChatProvider extends ContentProvider {
                         finalWhere,
                         whereArgs);
                 break;
+            case URI_MATCH_OUTBOX:
+                count = db.update(ChatDb.Outbox.TABLE_NAME, values, where, whereArgs);
+                getContext().getContentResolver().notifyChange(uri, null);
+                return count;
          /* If the incoming pattern is invalid, throws an exception. */
             default:
                 throw new IllegalArgumentException("Unknown URI " + uri);
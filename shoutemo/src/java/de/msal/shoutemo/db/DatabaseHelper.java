@@ -18,10 +18,15 @@
 package de.msal.shoutemo.db;
 
 import android.content.Context;
+import android.database.Cursor;
 import android.database.sqlite.SQLiteDatabase;
 import android.database.sqlite.SQLiteOpenHelper;
+import android.database.sqlite.SQLiteStatement;
 import android.util.Log;
 
+import de.msal.shoutemo.connector.model.Message;
+import de.msal.shoutemo.connector.model.Post;
+
 /**
  * This class helps open, create, and upgrade the database file. Set to package visibility for
  * testing purposes.
@@ -37,7 +42,7 @@ public class DatabaseHelper extends SQLiteOpenHelper {
     /**
      * The database version
      */
-    private static final int DATABASE_VERSION = 3;
+    private static final int DATABASE_VERSION = 7;
 
     DatabaseHelper(Context context) {
         /* calls the super constructor, requesting the default cursor factory. */
@@ -52,6 +57,15 @@ public class DatabaseHelper extends SQLiteOpenHelper {
                 + ChatDb.Authors.COLUMN_NAME_TYPE + " TEXT NOT NULL"
                 + ");");
 
+        createMessages(db);
+        createOutbox(db);
+    }
+
+    /*
+     * Posts are told apart by their fingerprint alone: comparing a 64 bit integer is much cheaper
+     * than comparing (and indexing) the whole html.
+     */
+    private static void createMessages(SQLiteDatabase db) {
         db.execSQL("CREATE TABLE " + ChatDb.Messages.TABLE_NAME + " ("
                 + ChatDb.Messages._ID + " INTEGER PRIMARY KEY,"
                 + ChatDb.Messages.COLUMN_NAME_TIMESTAMP + " INTEGER NOT NULL,"
@@ -59,13 +73,27 @@ public class DatabaseHelper extends SQLiteOpenHelper {
                 + ChatDb.Messages.COLUMN_NAME_MESSAGE_TEXT + " TEXT,"
                 + ChatDb.Messages.COLUMN_NAME_TYPE + " TEXT NOT NULL,"
                 + ChatDb.Messages.COLUMN_NAME_AUTHOR_NAME + " TEXT,"
-                + "UNIQUE("
-                + ChatDb.Messages.COLUMN_NAME_TIMESTAMP + ","
-                + ChatDb.Messages.COLUMN_NAME_MESSAGE_HTML
-                + "),"
+                + ChatDb.Messages.COLUMN_NAME_FINGERPRINT + " INTEGER NOT NULL,"
                 + "FOREIGN KEY (" + ChatDb.Messages.COLUMN_NAME_AUTHOR_NAME + ") REFERENCES "
                 + ChatDb.Authors.TABLE_NAME + "(" + ChatDb.Authors.COLUMN_NAME_NAME + ")"
                 + ");");
+        db.execSQL("CREATE UNIQUE INDEX " + ChatDb.Messages.TABLE_NAME + "_fingerprint ON "
+                + ChatDb.Messages.TABLE_NAME + "(" + ChatDb.Messages.COLUMN_NAME_FINGERPRINT
+                + ");");
+        /* the posts are always sorted by date */
+        db.execSQL("CREATE INDEX " + ChatDb.Messages.TABLE_NAME + "_timestamp ON "
+                + ChatDb.Messages.TABLE_NAME + "(" + ChatDb.Messages.COLUMN_NAME_TIMESTAMP
+                + ");");
+    }
+
+    private static void createOutbox(SQLiteDatabase db) {
+        db.execSQL("CREATE TABLE " + ChatDb.Outbox.TABLE_NAME + " ("
+                + ChatDb.Outbox._ID + " INTEGER PRIMARY KEY AUTOINCREMENT,"
+                + ChatDb.Outbox.COLUMN_NAME_MESSAGE + " TEXT NOT NULL,"
+                + ChatDb.Outbox.COLUMN_NAME_CREATED + " INTEGER NOT NULL,"
+                + ChatDb.Outbox.COLUMN_NAME_ATTEMPTS + " INTEGER NOT NULL DEFAULT 0,"
+                + ChatDb.Outbox.COLUMN_NAME_PROGRESS + " TEXT"
+                + ");");
     }
 
     @Override
@@ -96,6 +124,82 @@ public class DatabaseHelper extends SQLiteOpenHelper {
                     + ";";
             db.execSQL(sql);
         }
+        /* the outbox of unsent shouts */
+        if (oldVersion < 4) {
+            createOutbox(db);
+        }
+        /*
+         * replace UNIQUE(timestamp, message_html) by the fingerprint (5), then fingerprint the
+         * canonical form of the html (6). Both are done by fingerprinting all rows anew.
+         */
+        if (oldVersion < 6) {
+            migrateToFingerprints(db);
+        }
+        /* how far each shout got; an outbox created above has the column already */
+        if (oldVersion >= 4 && oldVersion < 7) {
+            db.execSQL("ALTER TABLE " + ChatDb.Outbox.TABLE_NAME + " ADD COLUMN "
+                    + ChatDb.Outbox.COLUMN_NAME_PROGRESS + " TEXT;");
+        }
+    }
+
+    /**
+     * SQLite can't drop a constraint, so the messages table is created anew and all messages are
+     * copied over, together with their fingerprint. Rows which turn out to be the same post (e.g.
+     * once stored from Jsoup's html, once from the server's) are copied only once.
+     */
+    private static void migrateToFingerprints(SQLiteDatabase db) {
+        String oldTable = ChatDb.Messages.TABLE_NAME + "_old";
+        /* the indexes move along with the renamed table, but their names are needed again */
+        db.execSQL("DROP INDEX IF EXISTS " + ChatDb.Messages.TABLE_NAME + "_fingerprint;");
+        db.execSQL("DROP INDEX IF EXISTS " + ChatDb.Messages.TABLE_NAME + "_timestamp;");
+        db.execSQL("ALTER TABLE " + ChatDb.Messages.TABLE_NAME + " RENAME TO " + oldTable + ";");
+        createMessages(db);
+
+        SQLiteStatement insert = db.compileStatement("INSERT OR IGNORE INTO "
+                + ChatDb.Messages.TABLE_NAME + " ("
+                + ChatDb.Messages.COLUMN_NAME_TIMESTAMP + ","
+                + ChatDb.Messages.COLUMN_NAME_MESSAGE_HTML + ","
+                + ChatDb.Messages.COLUMN_NAME_MESSAGE_TEXT + ","
+                + ChatDb.Messages.COLUMN_NAME_TYPE + ","
+                + ChatDb.Messages.COLUMN_NAME_AUTHOR_NAME + ","
+                + ChatDb.Messages.COLUMN_NAME_FINGERPRINT
+                + ") VALUES (?, ?, ?, ?, ?, ?);");
+        Cursor c = db.query(oldTable, new String[]{
+                ChatDb.Messages.COLUMN_NAME_TIMESTAMP,
+                ChatDb.Messages.COLUMN_NAME_MESSAGE_HTML,
+                ChatDb.Messages.COLUMN_NAME_MESSAGE_TEXT,
+                ChatDb.Messages.COLUMN_NAME_TYPE,
+                ChatDb.Messages.COLUMN_NAME_AUTHOR_NAME
+        }, null, null, null, null, null);
+        try {
+            while (c.moveToNext()) {
+                long timestamp = c.getLong(0);
+                String html = c.getString(1);
+                String type = c.getString(3);
+                String authorName = c.getString(4);
+                insert.clearBindings();
+                insert.bindLong(1, timestamp);
+                bindStringOrNull(insert, 2, html);
+                bindStringOrNull(insert, 3, c.getString(2));
+                insert.bindString(4, type);
+                bindStringOrNull(insert, 5, authorName);
+                insert.bindLong(6, Post.fingerprint(timestamp, authorName,
+                        Message.Type.valueOf(type), html));
+                insert.executeInsert();
+            }
+        } finally {
+            c.close();
+            insert.close();
+        }
+        db.execSQL("DROP TABLE " + oldTable + ";");
+    }
+
+    private static void bindStringOrNull(SQLiteStatement statement, int index, String value) {
+        if (value == null) {
+            statement.bindNull(index);
+        } else {
+            statement.bindString(index, value);
+        }
     }
 
     @Override
@@ -67,7 +67,9 @@ import de.msal.shoutemo.R;
 import de.msal.shoutemo.adapters.ChatAdapter;
 import de.msal.shoutemo.adapters.EmoticonsAdapter;
 import de.msal.shoutemo.connector.GetPostsService;
-import de.msal.shoutemo.connector.SendPostTask;
+import de.msal.shoutemo.connector.OutboxService;
+import de.msal.shoutemo.connector.PipelineStats;
+import de.msal.shoutemo.connector.SyncService;
 import de.msal.shoutemo.connector.model.Message;
 import de.msal.shoutemo.connector.model.Post;
 import de.msal.shoutemo.db.ChatDb;
@@ -129,7 +131,7 @@ public class ChatFragment extends Fragment implements LoaderManager.LoaderCallba
             @Override
             public void onClick(View v) {
                 if (mInputField.getText() != null && !TextUtils.isEmpty(mInputField.getText())) {
-                    new SendPostTask(getActivity()).execute(mInputField.getText().toString());
+                    OutboxService.enqueue(getActivity(), mInputField.getText().toString());
                     mInputField.setText("");
                 }
             }
@@ -236,15 +238,17 @@ public class ChatFragment extends Fragment implements LoaderManager.LoaderCallba
     @Override
     public void onResume() {
         super.onResume();
-        /* retrieve data */
+        /* retrieve data; the background syncs aren't needed meanwhile */
+        SyncService.stop(getActivity());
         getActivity().startService(new Intent(getActivity(), GetPostsService.class));
     }
 
     @Override
     public void onPause() {
         super.onPause();
-        /* stop retrieving data */
+        /* stop retrieving data, only sync now and then in the background */
         getActivity().stopService(new Intent(getActivity(), GetPostsService.class));
+        SyncService.start(getActivity());
     }
 
     @Override
@@ -422,6 +426,7 @@ public class ChatFragment extends Fragment implements LoaderManager.LoaderCallba
                 if (mListAdapter.swap(posts) && wasAtBottom) {
                     mLayoutManager.scrollToPosition(mListAdapter.getItemCount() - 1);
                 }
+                PipelineStats.onReloaded();
                 break;
         }
     }
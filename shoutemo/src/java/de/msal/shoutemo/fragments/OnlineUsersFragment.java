@@ -156,7 +156,7 @@ public class OnlineUsersFragment extends Fragment {
         protected List<Author> doInBackground(Void... params) {
             try {
                 long start = System.nanoTime();
-                mAuthors = new ArrayList<>(Connection.getOnlineUsers());
+                mAuthors = new ArrayList<>(Connection.getDefault().getOnlineUsers());
 
                 // also persist the users in the database, while we're at it...
                 ContentValues values;
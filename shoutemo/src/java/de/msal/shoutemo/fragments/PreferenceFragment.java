@@ -17,21 +17,52 @@
 
 package de.msal.shoutemo.fragments;
 
+import android.content.Context;
 import android.content.Intent;
 import android.content.pm.PackageManager;
+import android.content.res.AssetManager;
 import android.net.Uri;
+import android.os.AsyncTask;
 import android.os.Bundle;
+import android.preference.CheckBoxPreference;
 import android.preference.Preference;
+import android.preference.PreferenceCategory;
+import android.text.TextUtils;
+import android.text.format.Formatter;
+import android.util.Log;
 import android.view.LayoutInflater;
 import android.view.View;
 import android.view.ViewGroup;
 
+import java.io.IOException;
+import java.text.DateFormat;
+import java.text.SimpleDateFormat;
 import java.util.Calendar;
+import java.util.Date;
+import java.util.List;
+import java.util.Locale;
+import java.util.TimeZone;
 
+import de.msal.shoutemo.BuildConfig;
 import de.msal.shoutemo.R;
+import de.msal.shoutemo.connector.Connection;
+import de.msal.shoutemo.connector.Endpoints;
+import de.msal.shoutemo.connector.GetPostsService;
+import de.msal.shoutemo.connector.PipelineStats;
+import de.msal.shoutemo.connector.PollPlanner;
+import de.msal.shoutemo.connector.PollScheduler;
+import de.msal.shoutemo.connector.PollSimulator;
+import de.msal.shoutemo.connector.fixture.FixtureServer;
+import de.msal.shoutemo.connector.fixture.ParserParity;
+import de.msal.shoutemo.connector.http.ConnectionPool;
+import de.msal.shoutemo.connector.http.EndpointStats;
 
 public class PreferenceFragment extends android.preference.PreferenceFragment implements
-        Preference.OnPreferenceClickListener {
+        Preference.OnPreferenceClickListener, Preference.OnPreferenceChangeListener {
+
+    private static final String TAG = "Shoutemo|PreferenceFragment";
+    /* lives as long as the process, so the app keeps talking to it when leaving the settings */
+    private static FixtureServer sFixtureServer;
 
     public static PreferenceFragment newInstance() {
         return new PreferenceFragment();
@@ -44,6 +75,16 @@ public class PreferenceFragment extends android.preference.PreferenceFragment im
         super.onCreate(savedInstanceState);
 
         addPreferencesFromResource(R.xml.pref_about);
+        if (BuildConfig.DEBUG) {
+            addPreferencesFromResource(R.xml.pref_debug);
+            findPreference("debug_fixture_server").setOnPreferenceChangeListener(this);
+            findPreference("debug_fixture_latency").setOnPreferenceChangeListener(this);
+            findPreference("debug_fixture_jitter").setOnPreferenceChangeListener(this);
+            findPreference("debug_fixture_payload_size").setOnPreferenceChangeListener(this);
+            findPreference("debug_poll_simulation").setOnPreferenceClickListener(this);
+            findPreference("debug_pipeline_dump").setOnPreferenceClickListener(this);
+            findPreference("debug_parser_parity").setOnPreferenceClickListener(this);
+        }
 
         findPreference("notices").setOnPreferenceClickListener(this);
         try { /* show correct version name & copyright year */
@@ -56,6 +97,184 @@ public class PreferenceFragment extends android.preference.PreferenceFragment im
         }
     }
 
+    @Override
+    public void onResume() {
+        super.onResume();
+        if (BuildConfig.DEBUG) {
+            showNetworkStats();
+            showPollTimeline();
+            showPipelineStats();
+            showFixtureServer();
+        }
+    }
+
+    /**
+     * Shows the statistics of the connection pool and of every endpoint used since the app was
+     * started.
+     */
+    private void showNetworkStats() {
+        ConnectionPool pool = Connection.getDefault().getConnectionPool();
+        findPreference("debug_connection_pool").setSummary(getString(
+                R.string.pref_debug_connection_pool_summary,
+                pool.getHitCount(), pool.getMissCount(), pool.getIdleCount()));
+
+        PreferenceCategory category = (PreferenceCategory) findPreference("debug_network");
+        for (EndpointStats stats : Connection.getDefault().getEndpointStats().values()) {
+            String key = "debug_endpoint_" + stats.getName();
+            Preference preference = category.findPreference(key);
+            if (preference == null) {
+                preference = new Preference(getActivity());
+                preference.setKey(key);
+                preference.setPersistent(false);
+                preference.setSelectable(false);
+                preference.setTitle(stats.getName());
+                category.addPreference(preference);
+            }
+            /* latency histogram, e.g. "<=50ms: 3  <=100ms: 12 ... >5000ms: 0" */
+            long[] bounds = EndpointStats.getLatencyBounds();
+            long[] counts = stats.getLatencyCounts();
+            StringBuilder histogram = new StringBuilder();
+            for (int i = 0; i < counts.length; i++) {
+                histogram.append(i < bounds.length ? "<=" + bounds[i] : ">" + bounds[i - 1])
+                        .append("ms: ").append(counts[i]).append("  ");
+            }
+            preference.setSummary(getString(R.string.pref_debug_endpoint_summary,
+                    stats.getRequestCount(),
+                    Formatter.formatShortFileSize(getActivity(), stats.getWireBytes()),
+                    Formatter.formatShortFileSize(getActivity(), stats.getDecodedBytes()),
+                    stats.getAverageLatency(),
+                    histogram.toString().trim()));
+        }
+    }
+
+    /**
+     * Shows the last polls of the {@link GetPostsService}, newest first: when they started, how
+     * late, how long they took and which delay they asked for.
+     */
+    private void showPollTimeline() {
+        Preference preference = findPreference("debug_poll_timeline");
+        PollScheduler scheduler = GetPostsService.getScheduler();
+        if (scheduler == null) {
+            preference.setSummary(R.string.pref_debug_poll_timeline_idle);
+            return;
+        }
+        List<PollScheduler.Run> timeline = scheduler.getTimeline();
+        StringBuilder runs = new StringBuilder();
+        DateFormat format = new SimpleDateFormat("HH:mm:ss", Locale.US);
+        for (int i = timeline.size() - 1; i >= Math.max(0, timeline.size() - 10); i--) {
+            PollScheduler.Run run = timeline.get(i);
+            runs.append(format.format(new Date(run.getStartedAt())))
+                    .append(" +").append(run.getLateness())
+                    .append("ms, took ").append(run.getDuration())
+                    .append("ms, next in ").append(run.getNextDelay()).append("ms\n");
+        }
+        preference.setSummary(getString(R.string.pref_debug_poll_timeline_summary,
+                scheduler.getTimeUntilNextPoll(), runs.toString().trim()));
+    }
+
+    /**
+     * Shows how long each stage of the polls took lately, one preference per stage.
+     */
+    private void showPipelineStats() {
+        PreferenceCategory category = (PreferenceCategory) findPreference("debug_pipeline");
+        for (PipelineStats.Stage stage : PipelineStats.Stage.values()) {
+            String key = "debug_pipeline_" + stage.name();
+            Preference preference = category.findPreference(key);
+            if (preference == null) {
+                preference = new Preference(getActivity());
+                preference.setKey(key);
+                preference.setPersistent(false);
+                preference.setSelectable(false);
+                preference.setTitle(stage.name());
+                category.addPreference(preference);
+            }
+            PipelineStats.StageStats stats = PipelineStats.get(stage);
+            preference.setSummary(getString(R.string.pref_debug_pipeline_stage_summary,
+                    stats.getCount(), stats.getPercentile(50), stats.getPercentile(95),
+                    stats.getHistogram()));
+        }
+    }
+
+    private void showFixtureServer() {
+        CheckBoxPreference preference = (CheckBoxPreference) findPreference("debug_fixture_server");
+        boolean running = sFixtureServer != null && sFixtureServer.isRunning();
+        preference.setChecked(running);
+        if (running) {
+            preference.setSummary(getString(R.string.pref_debug_fixture_server_running,
+                    sFixtureServer.getBaseUrl(), sFixtureServer.getRequestCount()));
+        } else {
+            preference.setSummary(R.string.pref_debug_fixture_server_summary);
+        }
+    }
+
+    private FixtureServer getFixtureServer() throws IOException {
+        if (sFixtureServer == null) {
+            sFixtureServer = FixtureServer.fromAssets(getActivity().getAssets());
+        }
+        return sFixtureServer;
+    }
+
+    /**
+     * Starts the {@link FixtureServer} and lets the whole app talk to it, or stops it and switches
+     * back to autemo.com.
+     */
+    private boolean setFixtureServerEnabled(boolean enabled) {
+        if (enabled) {
+            try {
+                getFixtureServer().start();
+            } catch (IOException e) {
+                Log.e(TAG, "Starting the fixture server failed: " + e.getMessage());
+                return false;
+            }
+            Connection.setDefault(new Connection(sFixtureServer.getEndpoints()));
+        } else {
+            Connection.setDefault(new Connection(Endpoints.AUTEMO));
+            if (sFixtureServer != null) {
+                sFixtureServer.stop();
+            }
+        }
+        return true;
+    }
+
+    @Override
+    public boolean onPreferenceChange(Preference preference, Object newValue) {
+        switch (preference.getKey()) {
+            case "debug_fixture_server":
+                if (!setFixtureServerEnabled((Boolean) newValue)) {
+                    return false;
+                }
+                showFixtureServer();
+                return false; // the summary was updated already
+            default: // latency, jitter & payload size
+                int value;
+                try {
+                    value = Integer.parseInt((String) newValue);
+                } catch (NumberFormatException e) {
+                    return false;
+                }
+                FixtureServer server;
+                try {
+                    server = getFixtureServer();
+                } catch (IOException e) {
+                    Log.e(TAG, "Loading the fixtures failed: " + e.getMessage());
+                    return false;
+                }
+                switch (preference.getKey()) {
+                    case "debug_fixture_latency":
+                        server.setLatency(value);
+                        break;
+                    case "debug_fixture_jitter":
+                        server.setJitter(value);
+                        break;
+                    case "debug_fixture_payload_size":
+                        server.setPayloadSize(value);
+                        break;
+                }
+                preference.setSummary(String.valueOf(value));
+                return true;
+        }
+    }
+
     @Override
     public View onCreateView(LayoutInflater inflater, ViewGroup container, Bundle savedInstanceState) {
         getActivity().setTitle(getString(R.string.menu_prefs));
@@ -68,8 +287,112 @@ public class PreferenceFragment extends android.preference.PreferenceFragment im
             Intent i = new Intent(Intent.ACTION_VIEW);
             i.setData(Uri.parse("http://bogo-d.deviantart.com"));
             startActivity(i);
+        } else if (preference.getKey().equals("debug_poll_simulation")) {
+            new PollSimulationTask(preference).execute();
+        } else if (preference.getKey().equals("debug_pipeline_dump")) {
+            new PipelineDumpTask(preference, getActivity().getApplicationContext()).execute();
+        } else if (preference.getKey().equals("debug_parser_parity")) {
+            new ParserParityTask(preference, getActivity().getAssets()).execute();
         }
         return true;
     }
 
+    /**
+     * Replays the stored messages against the poll planner, for a few target delays, and shows the
+     * reports as the summary of the given preference.
+     */
+    private class PollSimulationTask extends AsyncTask<Void, Void, String> {
+
+        private final Preference preference;
+
+        PollSimulationTask(Preference preference) {
+            this.preference = preference;
+        }
+
+        @Override
+        protected void onPreExecute() {
+            preference.setSummary(R.string.pref_debug_poll_simulation_running);
+        }
+
+        @Override
+        protected String doInBackground(Void... params) {
+            long[] targets = {2000, 3000, 5000};
+            PollSimulator.Report[] reports = PollSimulator.compare(
+                    PollPlanner.loadHistory(getActivity().getContentResolver()),
+                    TimeZone.getDefault(), targets);
+            StringBuilder summary = new StringBuilder("baseline: ").append(reports[0]);
+            for (int i = 1; i < reports.length; i++) {
+                summary.append("\ntarget ").append(targets[i - 1]).append("ms: ")
+                        .append(reports[i]);
+            }
+            if (reports.length == 1) {
+                summary.append("\n").append(getString(R.string.pref_debug_poll_simulation_few));
+            }
+            return summary.toString();
+        }
+
+        @Override
+        protected void onPostExecute(String summary) {
+            preference.setSummary(summary);
+        }
+    }
+
+    /**
+     * Writes the pipeline stats to a file, and shows where as the summary of the given preference.
+     */
+    private static class PipelineDumpTask extends AsyncTask<Void, Void, String> {
+
+        private final Preference preference;
+        private final Context context;
+
+        PipelineDumpTask(Preference preference, Context context) {
+            this.preference = preference;
+            this.context = context;
+        }
+
+        @Override
+        protected String doInBackground(Void... params) {
+            try {
+                return context.getString(R.string.pref_debug_pipeline_dump_done,
+                        PipelineStats.dump(context).getAbsolutePath());
+            } catch (IOException e) {
+                return e.getMessage();
+            }
+        }
+
+        @Override
+        protected void onPostExecute(String summary) {
+            preference.setSummary(summary);
+        }
+    }
+
+    /**
+     * Compares the tokenizer and Jsoup on the recorded pages, and shows the differences as the
+     * summary of the given preference.
+     */
+    private static class ParserParityTask extends AsyncTask<Void, Void, String> {
+
+        private final Preference preference;
+        private final AssetManager assets;
+
+        ParserParityTask(Preference preference, AssetManager assets) {
+            this.preference = preference;
+            this.assets = assets;
+        }
+
+        @Override
+        protected String doInBackground(Void... params) {
+            try {
+                return TextUtils.join("\n", ParserParity.check(assets));
+            } catch (IOException e) {
+                return e.getMessage();
+            }
+        }
+
+        @Override
+        protected void onPostExecute(String summary) {
+            preference.setSummary(summary);
+        }
+    }
+
 }